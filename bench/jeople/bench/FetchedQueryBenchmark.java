@@ -0,0 +1,88 @@
+package jeople.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jeople.Condition;
+import jeople.Cursor;
+import jeople.Query;
+import jeople.bench.Fixtures.Person;
+import jeople.comparators.FieldComparator;
+import jeople.conditions.Range;
+import jeople.support.FetchedQuery;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Queries over entities already in memory ({@link FetchedQuery}): filtering,
+ * sorting, reverse sorting, and both.
+ *
+ * @author Reda El Khattabi
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FetchedQueryBenchmark {
+
+	@Param({ "1000", "100000" })
+	public int rows;
+
+	private FetchedQuery<Person> query;
+	private Condition<Person> condition;
+	private FieldComparator<Person> order;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		List<Person> l = new ArrayList<Person>(this.rows);
+		for (int i = 1; i <= this.rows; ++i)
+			l.add(Fixtures.person(i));
+		this.query = new FetchedQuery<Person>(l);
+		this.condition = new Range<Person>("age", 0, 29);
+		this.order = new FieldComparator<Person>("age", "name");
+	}
+
+	private static void consume(Query<Person> query, Blackhole bh) {
+		try (Cursor<Person> c = query.iterator()) {
+			while (c.hasNext())
+				bh.consume(c.next());
+		}
+	}
+
+	@Benchmark
+	public void where(Blackhole bh) {
+		FetchedQueryBenchmark.consume(this.query.where(this.condition), bh);
+	}
+
+	@Benchmark
+	public void orderBy(Blackhole bh) {
+		FetchedQueryBenchmark.consume(this.query.orderBy(this.order), bh);
+	}
+
+	@Benchmark
+	public void orderByDesc(Blackhole bh) {
+		FetchedQueryBenchmark.consume(this.query.orderBy(this.order).desc(),
+				bh);
+	}
+
+	@Benchmark
+	public void whereOrderBy(Blackhole bh) {
+		FetchedQueryBenchmark.consume(
+				this.query.where(this.condition).orderBy(this.order), bh);
+	}
+}
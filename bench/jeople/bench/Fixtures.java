@@ -0,0 +1,126 @@
+package jeople.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import jeople.Entity;
+import jeople.Key;
+import jeople.errors.InternalError;
+
+/**
+ * Entities and SQLite databases shared by the benchmarks.
+ *
+ * @author Reda El Khattabi
+ */
+class Fixtures {
+
+	public static class Person extends Entity {
+		@Key
+		public long id;
+		public String name;
+		public int age;
+		public double score;
+	}
+
+	/**
+	 * An entity with many attributes, of various types.
+	 */
+	public static class Wide extends Entity {
+		public long id;
+		public int i0, i1, i2, i3, i4, i5, i6, i7;
+		public long l0, l1, l2, l3, l4, l5, l6, l7;
+		public double d0, d1, d2, d3, d4, d5, d6, d7;
+		public String s0, s1, s2, s3, s4, s5, s6, s7;
+	}
+
+	private Fixtures() {
+	}
+
+	public static Person person(long id) {
+		Person p = new Person();
+		p.id = id;
+		p.name = "person-" + id;
+		p.age = (int) (id % 90);
+		p.score = id * 0.5;
+		return p;
+	}
+
+	public static Wide wide(long id) {
+		Wide w = new Wide();
+		w.id = id;
+		for (java.lang.reflect.Field f : Wide.class.getFields())
+			try {
+				if (f.getType() == int.class)
+					f.setInt(w, (int) id);
+				else if (f.getType() == long.class)
+					f.setLong(w, id);
+				else if (f.getType() == double.class)
+					f.setDouble(w, id / 3.0);
+				else if (f.getType() == String.class)
+					f.set(w, f.getName() + "-" + id);
+			} catch (IllegalAccessException e) {
+				throw new InternalError(e);
+			}
+		return w;
+	}
+
+	/**
+	 * A new SQLite database file, with an (empty) person table.
+	 */
+	public static Path createDatabase() {
+		try {
+			Class.forName("org.sqlite.JDBC");
+			Path file = Files.createTempFile("jeople-bench", ".db");
+			try (Connection c = DriverManager.getConnection("jdbc:sqlite:"
+					+ file); Statement s = c.createStatement()) {
+				s.executeUpdate("create table person (id integer primary key,"
+						+ " name varchar(40), age integer, score double)");
+			}
+			return file;
+		} catch (IOException e) {
+			throw new InternalError(e);
+		} catch (SQLException e) {
+			throw new InternalError(e);
+		} catch (ClassNotFoundException e) {
+			throw new InternalError("Driver not found: org.sqlite.JDBC", e);
+		}
+	}
+
+	/**
+	 * Inserts persons 1 to <code>rows</code> directly (in a single JDBC
+	 * batch), so that loading isn't part of what is measured.
+	 */
+	public static void fill(Path file, int rows) {
+		try (Connection c = DriverManager.getConnection("jdbc:sqlite:" + file);
+				PreparedStatement ps = c
+						.prepareStatement("insert into person values (?, ?, ?, ?)")) {
+			c.setAutoCommit(false);
+			for (int i = 1; i <= rows; ++i) {
+				Person p = Fixtures.person(i);
+				ps.setLong(1, p.id);
+				ps.setString(2, p.name);
+				ps.setInt(3, p.age);
+				ps.setDouble(4, p.score);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			c.commit();
+		} catch (SQLException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	public static void delete(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			throw new InternalError(e);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package jeople.bench;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import jeople.Condition;
+import jeople.Cursor;
+import jeople.Query;
+import jeople.bench.Fixtures.Person;
+import jeople.conditions.Range;
+import jeople.impl.JDBCDataSource;
+import jeople.impl.SQLiteDataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Full scans of a SQLite table through {@link jeople.support.QuerySupport}:
+ * plain, with a condition translated to SQL, and with a condition evaluated
+ * on the client side; with a plain {@link JDBCDataSource} (a single result
+ * set) and with a {@link SQLiteDataSource} (ROWID chunks).
+ *
+ * @author Reda El Khattabi
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScanBenchmark {
+
+	@Param({ "1000", "100000" })
+	public int rows;
+
+	@Param({ "jdbc", "rowid" })
+	public String mode;
+
+	private Path file;
+	private JDBCDataSource db;
+	private Condition<Person> pushed;
+	private Condition<Person> client;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		this.file = Fixtures.createDatabase();
+		Fixtures.fill(this.file, this.rows);
+		if (this.mode.equals("rowid"))
+			this.db = new SQLiteDataSource(this.file.toString());
+		else
+			this.db = new JDBCDataSource("org.sqlite.JDBC", "jdbc:sqlite:"
+					+ this.file, "", "");
+		// both select a third of the records
+		this.pushed = new Range<Person>("age", 0, 29);
+		this.client = new Condition<Person>() {
+			@Override
+			public boolean evaluate(Person element) {
+				return element.age < 30;
+			}
+		};
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.db.close();
+		Fixtures.delete(this.file);
+	}
+
+	private static void consume(Query<Person> query, Blackhole bh) {
+		try (Cursor<Person> c = query.iterator()) {
+			while (c.hasNext())
+				bh.consume(c.next());
+		}
+	}
+
+	@Benchmark
+	public void scan(Blackhole bh) {
+		ScanBenchmark.consume(this.db.select(Person.class), bh);
+	}
+
+	@Benchmark
+	public void scanWithPushedCondition(Blackhole bh) {
+		ScanBenchmark.consume(
+				this.db.select(Person.class).where(this.pushed), bh);
+	}
+
+	@Benchmark
+	public void scanWithClientCondition(Blackhole bh) {
+		ScanBenchmark.consume(
+				this.db.select(Person.class).where(this.client), bh);
+	}
+
+	@Benchmark
+	public long count() {
+		return this.db.select(Person.class).where(this.pushed).count();
+	}
+}
@@ -0,0 +1,52 @@
+package jeople.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import jeople.bench.Fixtures.Person;
+import jeople.bench.Fixtures.Wide;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@link jeople.Entity#toString()}, on a small entity and on one with 33
+ * attributes.
+ *
+ * @author Reda El Khattabi
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ToStringBenchmark {
+
+	private Person person;
+	private Wide wide;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		this.person = Fixtures.person(42);
+		this.wide = Fixtures.wide(42);
+	}
+
+	@Benchmark
+	public String small() {
+		return this.person.toString();
+	}
+
+	@Benchmark
+	public String wide() {
+		return this.wide.toString();
+	}
+}
@@ -0,0 +1,97 @@
+package jeople.bench;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jeople.bench.Fixtures.Person;
+import jeople.impl.JDBCDataSource;
+import jeople.impl.SQLiteDataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Saves into a SQLite table: single inserts and updates (one statement, and
+ * transaction, each), and bulk inserts through
+ * {@link jeople.DataSource#saveAll(Iterable)} (one JDBC batch).
+ *
+ * @author Reda El Khattabi
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WriteBenchmark {
+
+	@Param({ "100" })
+	public int batch;
+
+	private Path file;
+	private JDBCDataSource db;
+	private long nextId;
+	private Person updated;
+
+	@Setup(Level.Iteration)
+	public void setUp() {
+		this.file = Fixtures.createDatabase();
+		this.db = new SQLiteDataSource(this.file.toString());
+		this.nextId = 0;
+		this.updated = this.db.create(Person.class);
+		this.updated.id = --this.nextId;
+		this.updated.save();
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		this.db.close();
+		Fixtures.delete(this.file);
+	}
+
+	private Person next() {
+		Person p = this.db.create(Person.class);
+		Person data = Fixtures.person(++this.nextId);
+		p.id = data.id;
+		p.name = data.name;
+		p.age = data.age;
+		p.score = data.score;
+		return p;
+	}
+
+	@Benchmark
+	public void insert() {
+		this.next().save();
+	}
+
+	@Benchmark
+	public void update() {
+		++this.updated.age;
+		this.updated.save();
+	}
+
+	/**
+	 * Throughput is in batches: multiply by the batch size to compare with
+	 * {@link #insert()}.
+	 */
+	@Benchmark
+	public void insertAll() {
+		List<Person> l = new ArrayList<Person>(this.batch);
+		for (int i = 0; i < this.batch; ++i)
+			l.add(this.next());
+		this.db.saveAll(l);
+	}
+}
@@ -0,0 +1,29 @@
+package jeople;
+
+import java.util.Iterator;
+
+/**
+ * A {@link Query} iteration.<br>
+ * Resources held by the data source (eg. a database connection) are released
+ * when the iteration is over, or when the cursor is closed, which allows
+ * stopping an iteration early:
+ * 
+ * <pre>
+ * try (Cursor&lt;Person&gt; c = query.iterator()) {
+ * 	...
+ * }
+ * </pre>
+ * 
+ * @author Reda El Khattabi
+ * 
+ * @param <T>
+ *            the query entity type
+ */
+public interface Cursor<T extends Entity> extends Iterator<T>, AutoCloseable {
+	/**
+	 * Ends the iteration, releasing the associated resources. Closing a
+	 * cursor more than once has no effect.
+	 */
+	@Override
+	void close();
+}
@@ -10,7 +10,30 @@ public interface DataSource {
 
 	public <T extends Entity> T create(Class<T> type);
 
+	/**
+	 * The entity with the given key values (in key order, see {@link Key}),
+	 * or null if there is none.
+	 */
+	public <T extends Entity> T get(Class<T> type, Object... key);
+
 	public <T extends Entity> void save(T entity);
 
 	public <T extends Entity> void delete(T entity);
+
+	/**
+	 * Saves all the given entities, possibly in a single batch.
+	 */
+	public <T extends Entity> void saveAll(Iterable<T> entities);
+
+	/**
+	 * Deletes all the given entities, possibly in a single batch.
+	 */
+	public <T extends Entity> void deleteAll(Iterable<T> entities);
+
+	/**
+	 * Fetches the given attributes of an entity (all the attributes that
+	 * haven't been fetched if none is given, see {@link Query#fields(String...)}
+	 * ), replacing their current values.
+	 */
+	public <T extends Entity> void load(T entity, String... fields);
 }
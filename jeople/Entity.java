@@ -1,9 +1,8 @@
 package jeople;
 
-import java.lang.reflect.Field;
 import java.util.Map;
 
-import jeople.errors.InternalError;
+import jeople.support.EntityModel;
 
 /**
  * Represents an entity. Every entity has to subclass this.<br>
@@ -18,16 +17,10 @@ public class Entity {
 
 	/**
 	 * First element in query or null, useful when querying one element.<br>
-	 * This method will loop through the entire query (to guarantee iterator
-	 * completion / connection closing / etc), but only return the first
-	 * element.
+	 * Same as {@link Query#first()}.
 	 */
 	public static <T extends Entity> T firstIn(Query<T> query) {
-		T ret = null;
-		for (T t : query)
-			if (ret == null)
-				ret = t;
-		return ret;
+		return query.first();
 	}
 
 	public void save() {
@@ -38,19 +31,23 @@ public class Entity {
 		this.datasource.delete(this);
 	}
 
+	/**
+	 * Fetches attributes left out by {@link Query#fields(String...)}.
+	 * 
+	 * @see DataSource#load(Entity, String...)
+	 */
+	public void load(String... fields) {
+		this.datasource.load(this, fields);
+	}
+
 	@Override
 	public String toString() {
 		String s = "{";
 		String sep = "";
-		for (Field f : this.getClass().getFields())
-			try {
-				s += sep + f.getName() + "=" + f.get(this).toString();
-				sep = ", ";
-			} catch (IllegalArgumentException e) {
-				throw new InternalError(e);
-			} catch (IllegalAccessException e) {
-				throw new InternalError(e);
-			}
+		for (EntityModel.Attribute a : EntityModel.of(this).getAttributes()) {
+			s += sep + a.getName() + "=" + a.get(this);
+			sep = ", ";
+		}
 		s += "}";
 		return s;
 	}
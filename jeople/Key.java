@@ -0,0 +1,30 @@
+package jeople;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the attributes identifying an entity (its primary key):
+ *
+ * <pre>
+ * public class Person extends Entity {
+ * 	&#64;Key
+ * 	public long id;
+ * 	public String name;
+ * }
+ * </pre>
+ *
+ * Updates and deletes then look records up by these attributes only. Without
+ * any marked attribute, the primary key reported by the data source is used,
+ * or all the attributes if there is none.
+ *
+ * @author Reda El Khattabi
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Key {
+}
@@ -2,7 +2,7 @@ package jeople;
 
 /**
  * An ordered query result.<br>
- * Allows the {@link #desc()} statement.
+ * Allows the {@link #desc()} statement, which reverses the ordering.
  * 
  * @author Reda El Khattabi
  * 
@@ -12,4 +12,13 @@ package jeople;
 public interface OrderedQuery<T extends Entity> extends Query<T> {
 
 	OrderedQuery<T> desc();
+
+	@Override
+	OrderedQuery<T> limit(int count);
+
+	@Override
+	OrderedQuery<T> offset(int count);
+
+	@Override
+	OrderedQuery<T> parallel(boolean ordered);
 }
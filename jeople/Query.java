@@ -1,6 +1,10 @@
 package jeople;
 
 import java.util.Comparator;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
 
 /**
  * An unordered query result.
@@ -12,8 +16,130 @@ import java.util.Comparator;
  */
 public interface Query<T extends Entity> extends Iterable<T> {
 
+	/**
+	 * Starts a new iteration of the query.
+	 */
+	@Override
+	Cursor<T> iterator();
+
+	/**
+	 * A stream over a new iteration of the query. Data source resources are
+	 * released when all elements have been consumed or when the stream is
+	 * closed, short-circuiting streams (eg. {@link Stream#findFirst()})
+	 * should thus be closed:
+	 * 
+	 * <pre>
+	 * try (Stream&lt;Person&gt; s = query.stream()) {
+	 * 	return s.findFirst();
+	 * }
+	 * </pre>
+	 */
+	Stream<T> stream();
+
 	Query<T> where(Condition<T> condition);
 
 	OrderedQuery<T> orderBy(Comparator<T> comparator);
 
+	/**
+	 * Restricts the query to its first <code>count</code> elements. Like
+	 * {@link #offset(int)}, it applies after all the conditions and the
+	 * ordering, whatever the order of the calls.
+	 */
+	Query<T> limit(int count);
+
+	/**
+	 * Skips the first <code>count</code> elements of the query.
+	 */
+	Query<T> offset(int count);
+
+	/**
+	 * The first element of the query, or null if the query is empty. Only the
+	 * first matching record is read when possible, and the iteration is
+	 * closed as soon as it is found.
+	 */
+	T first();
+
+	/**
+	 * Whether the query has at least one element (same as
+	 * <code>first() != null</code>).
+	 */
+	boolean exists();
+
+	/**
+	 * The number of elements of the query. Counted by the data source when
+	 * it evaluates all the conditions itself, otherwise elements are
+	 * counted as they are fetched (without sorting them nor keeping them).
+	 */
+	long count();
+
+	/**
+	 * The sum of the (non null) values of the given numeric attribute, or
+	 * null if there is none. Computed by the data source when possible,
+	 * otherwise in a single pass over the query.
+	 */
+	Number sum(String field);
+
+	/**
+	 * The average of the (non null) values of the given numeric attribute,
+	 * or null if there is none.
+	 */
+	Double avg(String field);
+
+	/**
+	 * The smallest (non null) value of the given attribute, or null if there
+	 * is none.
+	 */
+	Object min(String field);
+
+	/**
+	 * The largest (non null) value of the given attribute, or null if there
+	 * is none.
+	 */
+	Object max(String field);
+
+	/**
+	 * The number of elements for each value of the given attribute.
+	 */
+	Map<Object, Long> countBy(String field);
+
+	/**
+	 * Groups the query elements by key, and reduces each group with the
+	 * given collector (eg. {@link java.util.stream.Collectors#counting()}),
+	 * in a single pass over the query: only the running result of each group
+	 * is kept in memory (the iteration itself can be
+	 * {@link #parallel(boolean) parallel}).
+	 */
+	<K, R> Map<K, R> groupBy(Function<? super T, ? extends K> key,
+			Collector<? super T, ?, R> downstream);
+
+	/**
+	 * Evaluates the query in parallel: records are fetched from the data
+	 * source in the background, while entities are built and filtered by
+	 * several threads. Worthwhile when conditions can't be evaluated by the
+	 * data source and are expensive.<br>
+	 * Conditions must then be thread safe.
+	 * 
+	 * @param ordered
+	 *            whether elements must be returned in the data source order,
+	 *            rather than as soon as they are ready (ordered queries always
+	 *            keep their order)
+	 */
+	Query<T> parallel(boolean ordered);
+
+	/**
+	 * Only fetches the given attributes (and the key attributes, so that
+	 * entities can still be deleted and loaded), to spare the transfer and
+	 * the memory of the others, eg. large or many columns. Other attributes
+	 * keep their default value until they are loaded (see
+	 * {@link Entity#load(String...)}), and the entities can't be saved before
+	 * (setting an attribute to its default value couldn't be told from not
+	 * having fetched it).<br>
+	 * Conditions, comparators and aggregates on attributes see the attributes
+	 * they refer to, any other condition, comparator or grouping evaluated on
+	 * the client side only sees the fetched attributes. Records of tables without a key are always
+	 * fetched entirely, as are those of data sources unable to fetch columns
+	 * selectively.
+	 */
+	Query<T> fields(String... fields);
+
 }
\ No newline at end of file
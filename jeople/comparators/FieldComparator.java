@@ -0,0 +1,107 @@
+package jeople.comparators;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import jeople.Entity;
+import jeople.errors.InternalError;
+import jeople.support.EntityModel;
+import jeople.support.Values;
+
+/**
+ * Compares entities on one or more attributes (null values first).<br>
+ * Unlike arbitrary {@link Comparator}s, it can be inspected by the data
+ * source, and thus translated to its own query language (eg. a SQL
+ * <code>order by</code> clause) instead of being used to sort entities on the
+ * client side.
+ * 
+ * @author Reda El Khattabi
+ */
+public class FieldComparator<T extends Entity> implements Comparator<T> {
+
+	private static class Resolved {
+		public Class<?> type;
+		public EntityModel.Attribute[] attributes;
+	}
+
+	private String[] fields;
+	private boolean descending;
+	private volatile Resolved resolved;
+
+	/**
+	 * Compares entities on the given attributes, in ascending order.
+	 */
+	public FieldComparator(String... fields) {
+		this(fields, false);
+	}
+
+	private FieldComparator(String[] fields, boolean descending) {
+		this.fields = fields;
+		this.descending = descending;
+	}
+
+	/**
+	 * The compared attributes, by decreasing priority.
+	 */
+	public List<String> getFields() {
+		return Collections.unmodifiableList(Arrays.asList(this.fields));
+	}
+
+	public boolean isDescending() {
+		return this.descending;
+	}
+
+	/**
+	 * The same comparator, in reverse order (null values last).
+	 */
+	@Override
+	public FieldComparator<T> reversed() {
+		return new FieldComparator<T>(this.fields, !this.descending);
+	}
+
+	private EntityModel.Attribute[] attributes(T entity) {
+		Resolved r = this.resolved;
+		if (r == null || r.type != entity.getClass()) {
+			EntityModel<T> model = EntityModel.of(entity);
+			r = new Resolved();
+			r.type = entity.getClass();
+			r.attributes = new EntityModel.Attribute[this.fields.length];
+			for (int i = 0; i < this.fields.length; ++i) {
+				r.attributes[i] = model.getAttribute(this.fields[i]);
+				if (r.attributes[i] == null)
+					throw new InternalError("Unknown attribute "
+							+ this.fields[i] + " in " + r.type.getName());
+			}
+			this.resolved = r;
+		}
+		return r.attributes;
+	}
+
+	@Override
+	public int compare(T o1, T o2) {
+		EntityModel.Attribute[] a1 = this.attributes(o1);
+		EntityModel.Attribute[] a2 = o1.getClass() == o2.getClass() ? a1
+				: this.attributes(o2);
+		for (int i = 0; i < a1.length; ++i) {
+			Object v1 = a1[i].get(o1);
+			Object v2 = a2[i].get(o2);
+			int c;
+			if (v1 == null)
+				c = v2 == null ? 0 : -1;
+			else if (v2 == null)
+				c = 1;
+			else
+				c = Values.compare(v1, v2);
+			if (c != 0)
+				return this.descending ? -c : c;
+		}
+		return 0;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(this.fields) + (this.descending ? " desc" : "");
+	}
+}
@@ -0,0 +1,267 @@
+package jeople.conditions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jeople.Condition;
+import jeople.Entity;
+
+/**
+ * Evaluates a conjunction (or a disjunction) of conditions, short-circuiting
+ * in the order that minimizes the expected cost per element: the cost and
+ * pass rate of the conditions evaluated are sampled, and conditions that are
+ * cheap and likely to decide the result (to fail, for a conjunction) move
+ * first.<br>
+ * Only conditions that can be evaluated in any order (conditions on
+ * attributes, and those declared {@link Reorderable}, see
+ * {@link #isMovable(Condition)}) move, and only among the consecutive ones:
+ * any other condition keeps its place, so that conditions guarding it (eg.
+ * against null values) are still evaluated before it. The result is the one
+ * of a left to right evaluation, as long as conditions are side-effect
+ * free.<br>
+ * An evaluator can be shared by concurrent evaluations.
+ * 
+ * @author Reda El Khattabi
+ */
+public class AdaptiveEvaluator<T extends Entity> {
+
+	/**
+	 * Number of elements timed before the first reordering.
+	 */
+	private static final int WARMUP = 16;
+
+	/**
+	 * One element out of this number is timed, after the warm-up.
+	 */
+	private static final int SAMPLE_RATE = 64;
+
+	/**
+	 * Number of samples between reorderings.
+	 */
+	private static final int PERIOD = 16;
+
+	/**
+	 * Number of samples after which statistics are halved, so that older
+	 * samples weigh less.
+	 */
+	private static final int DECAY = 1024;
+
+	/**
+	 * The sampled statistics of a condition, when it has been evaluated.
+	 */
+	private static class Stats {
+		public int index;
+		public double cost;
+		public double evaluated;
+		public double passed;
+		public double rank;
+
+		public Stats(int index) {
+			this.index = index;
+			this.cost = 0;
+			this.evaluated = 0;
+			this.passed = 0;
+			this.rank = 0;
+		}
+	}
+
+	private static final Comparator<Stats> BY_RANK = new Comparator<Stats>() {
+		@Override
+		public int compare(Stats s1, Stats s2) {
+			int c = Double.compare(s1.rank, s2.rank);
+			return c != 0 ? c : Integer.compare(s1.index, s2.index);
+		}
+	};
+
+	private Condition<T>[] conditions;
+	private boolean any;
+	// the conditions that can move (see isMovable)
+	private boolean[] movable;
+	// whether there are consecutive conditions that can move
+	private boolean adaptive;
+
+	// the condition indexes in evaluation order, replaced (never modified)
+	// when reordering
+	private volatile int[] order;
+	private volatile boolean warm;
+
+	// guarded by itself
+	private Stats[] stats;
+	private double samples;
+	private int pending;
+
+	/**
+	 * @param any
+	 *            whether the evaluation succeeds if any of the conditions
+	 *            does (a disjunction), instead of all of them
+	 */
+	@SuppressWarnings("unchecked")
+	public AdaptiveEvaluator(List<? extends Condition<T>> conditions,
+			boolean any) {
+		this.conditions = (Condition<T>[]) conditions
+				.toArray(new Condition<?>[0]);
+		this.any = any;
+		this.order = new int[this.conditions.length];
+		for (int i = 0; i < this.order.length; ++i)
+			this.order[i] = i;
+		this.movable = new boolean[this.conditions.length];
+		this.adaptive = false;
+		for (int i = 0; i < this.conditions.length; ++i) {
+			this.movable[i] = AdaptiveEvaluator.isMovable(this.conditions[i]);
+			if (i > 0 && this.movable[i - 1] && this.movable[i])
+				this.adaptive = true;
+		}
+		this.warm = !this.adaptive;
+		this.stats = new Stats[this.conditions.length];
+		for (int i = 0; i < this.stats.length; ++i)
+			this.stats[i] = new Stats(i);
+		this.samples = 0;
+		this.pending = 0;
+	}
+
+	/**
+	 * Whether the condition can be evaluated before or after the others:
+	 * conditions on attributes (which can't fail whatever the element),
+	 * conditions declared {@link Reorderable}, and their combinations.
+	 */
+	public static boolean isMovable(Condition<?> condition) {
+		if (condition instanceof FieldCondition
+				|| condition instanceof Reorderable)
+			return true;
+		if (condition instanceof AllOf) {
+			for (Condition<?> c : ((AllOf<?>) condition).getConditions())
+				if (!AdaptiveEvaluator.isMovable(c))
+					return false;
+			return true;
+		}
+		if (condition instanceof OneOf) {
+			for (Condition<?> c : ((OneOf<?>) condition).getConditions())
+				if (!AdaptiveEvaluator.isMovable(c))
+					return false;
+			return true;
+		}
+		if (condition instanceof Not)
+			return AdaptiveEvaluator.isMovable(((Not<?>) condition)
+					.getCondition());
+		return false;
+	}
+
+	/**
+	 * The conditions, in declaration order.
+	 */
+	public List<Condition<T>> getConditions() {
+		return Collections.unmodifiableList(Arrays.asList(this.conditions));
+	}
+
+	/**
+	 * The conditions, in their current evaluation order.
+	 */
+	public List<Condition<T>> getOrder() {
+		int[] o = this.order;
+		List<Condition<T>> l = new ArrayList<Condition<T>>(o.length);
+		for (int i : o)
+			l.add(this.conditions[i]);
+		return Collections.unmodifiableList(l);
+	}
+
+	public boolean evaluate(T element) {
+		int[] o = this.order;
+		if (this.adaptive
+				&& (!this.warm || ThreadLocalRandom.current().nextInt(
+						SAMPLE_RATE) == 0))
+			return this.sample(o, element);
+		for (int i : o)
+			if (this.conditions[i].evaluate(element) == this.any)
+				return this.any;
+		return !this.any;
+	}
+
+	/**
+	 * Evaluates the conditions (short-circuiting as usual), timing those
+	 * evaluated.
+	 */
+	private boolean sample(int[] o, T element) {
+		long[] costs = new long[o.length];
+		boolean[] results = new boolean[o.length];
+		boolean result = !this.any;
+		int evaluated = 0;
+		long start = System.nanoTime();
+		while (evaluated < o.length) {
+			boolean r = this.conditions[o[evaluated]].evaluate(element);
+			long end = System.nanoTime();
+			costs[evaluated] = end - start;
+			results[evaluated] = r;
+			start = end;
+			++evaluated;
+			if (r == this.any) {
+				result = this.any;
+				break;
+			}
+		}
+		this.record(o, evaluated, costs, results);
+		return result;
+	}
+
+	private void record(int[] o, int evaluated, long[] costs,
+			boolean[] results) {
+		synchronized (this.stats) {
+			for (int i = 0; i < evaluated; ++i) {
+				Stats s = this.stats[o[i]];
+				s.cost += costs[i];
+				s.evaluated += 1;
+				if (results[i])
+					s.passed += 1;
+			}
+			this.samples += 1;
+			if (this.samples >= DECAY) {
+				for (Stats s : this.stats) {
+					s.cost /= 2;
+					s.evaluated /= 2;
+					s.passed /= 2;
+				}
+				this.samples /= 2;
+			}
+			if (++this.pending < (this.warm ? PERIOD : WARMUP))
+				return;
+			this.pending = 0;
+			this.reorder();
+			this.warm = true;
+		}
+	}
+
+	/**
+	 * Sorts each run of consecutive conditions that can move (in declaration
+	 * order) by expected cost per decisive result (a failure for a
+	 * conjunction, a success for a disjunction), the declaration order
+	 * breaking ties. Called with the statistics locked.
+	 */
+	private void reorder() {
+		for (Stats s : this.stats) {
+			if (s.evaluated == 0) {
+				// not reached yet, tried first to be sampled
+				s.rank = 0;
+				continue;
+			}
+			double decisive = this.any ? s.passed : s.evaluated - s.passed;
+			// conditions that never decided anything go last
+			s.rank = s.cost / Math.max(decisive, 0.5);
+		}
+		int[] o = new int[this.conditions.length];
+		int i = 0;
+		while (i < o.length) {
+			int end = i + 1;
+			if (this.movable[i])
+				while (end < o.length && this.movable[end])
+					++end;
+			Stats[] run = Arrays.copyOfRange(this.stats, i, end);
+			Arrays.sort(run, BY_RANK);
+			for (Stats s : run)
+				o[i++] = s.index;
+		}
+		this.order = o;
+	}
+}
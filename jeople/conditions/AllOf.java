@@ -1,5 +1,9 @@
 package jeople.conditions;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import jeople.Condition;
 import jeople.Entity;
 
@@ -11,17 +15,25 @@ import jeople.Entity;
 public class AllOf<T extends Entity> implements Condition<T> {
 
 	private Condition<T>[] conditions;
+	private AdaptiveEvaluator<T> evaluator;
 
 	public AllOf(Condition<T>... conditions) {
 		this.conditions = conditions;
+		this.evaluator = new AdaptiveEvaluator<T>(Arrays.asList(conditions),
+				false);
+	}
+
+	public List<Condition<T>> getConditions() {
+		return Collections.unmodifiableList(Arrays.asList(this.conditions));
 	}
 
+	/**
+	 * Evaluates the conditions in the order that is the cheapest so far (see
+	 * {@link AdaptiveEvaluator}).
+	 */
 	@Override
 	public boolean evaluate(T element) {
-		for (Condition<T> c : this.conditions)
-			if (!c.evaluate(element))
-				return false;
-		return true;
+		return this.evaluator.evaluate(element);
 	}
 
 }
@@ -0,0 +1,30 @@
+package jeople.conditions;
+
+import jeople.Entity;
+import jeople.support.Values;
+
+/**
+ * Implements the "=" operation on an attribute (a null value matches null
+ * attributes).
+ * 
+ * @author Reda El Khattabi
+ */
+public class Equals<T extends Entity> extends FieldCondition<T> {
+
+	private Object value;
+
+	public Equals(String field, Object value) {
+		super(field);
+		this.value = value;
+	}
+
+	public Object getValue() {
+		return this.value;
+	}
+
+	@Override
+	public boolean test(Object value) {
+		return Values.equal(value, this.value);
+	}
+
+}
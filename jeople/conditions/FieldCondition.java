@@ -0,0 +1,56 @@
+package jeople.conditions;
+
+import jeople.Condition;
+import jeople.Entity;
+import jeople.errors.InternalError;
+import jeople.support.EntityModel;
+
+/**
+ * Base class for conditions on a single entity attribute.<br>
+ * Unlike arbitrary {@link Condition}s, these conditions can be inspected by
+ * the data source, and thus translated to its own query language (eg. a SQL
+ * <code>where</code> clause) instead of being evaluated on the client side.
+ * 
+ * @author Reda El Khattabi
+ */
+public abstract class FieldCondition<T extends Entity> implements Condition<T> {
+
+	private static class Resolved {
+		public Class<?> type;
+		public EntityModel.Attribute attribute;
+	}
+
+	private String field;
+	private volatile Resolved resolved;
+
+	protected FieldCondition(String field) {
+		this.field = field;
+	}
+
+	/**
+	 * The attribute (column) name.
+	 */
+	public String getField() {
+		return this.field;
+	}
+
+	/**
+	 * Evaluate the condition for the given attribute value.
+	 */
+	public abstract boolean test(Object value);
+
+	@Override
+	public boolean evaluate(T element) {
+		Resolved r = this.resolved;
+		if (r == null || r.type != element.getClass()) {
+			r = new Resolved();
+			r.type = element.getClass();
+			r.attribute = EntityModel.of(element).getAttribute(this.field);
+			if (r.attribute == null)
+				throw new InternalError("Unknown attribute " + this.field
+						+ " in " + r.type.getName());
+			this.resolved = r;
+		}
+		return this.test(r.attribute.get(element));
+	}
+}
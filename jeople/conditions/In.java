@@ -0,0 +1,39 @@
+package jeople.conditions;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jeople.Entity;
+import jeople.support.Values;
+
+/**
+ * Implements the "IN" operation on an attribute (null attributes never
+ * match).
+ * 
+ * @author Reda El Khattabi
+ */
+public class In<T extends Entity> extends FieldCondition<T> {
+
+	private List<Object> values;
+
+	public In(String field, Object... values) {
+		super(field);
+		this.values = Collections.unmodifiableList(Arrays.asList(values));
+	}
+
+	public List<Object> getValues() {
+		return this.values;
+	}
+
+	@Override
+	public boolean test(Object value) {
+		if (value == null)
+			return false;
+		for (Object v : this.values)
+			if (Values.equal(value, v))
+				return true;
+		return false;
+	}
+
+}
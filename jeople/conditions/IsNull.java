@@ -0,0 +1,21 @@
+package jeople.conditions;
+
+import jeople.Entity;
+
+/**
+ * Implements the "IS NULL" operation on an attribute.
+ * 
+ * @author Reda El Khattabi
+ */
+public class IsNull<T extends Entity> extends FieldCondition<T> {
+
+	public IsNull(String field) {
+		super(field);
+	}
+
+	@Override
+	public boolean test(Object value) {
+		return value == null;
+	}
+
+}
@@ -0,0 +1,50 @@
+package jeople.conditions;
+
+import java.util.regex.Pattern;
+
+import jeople.Entity;
+
+/**
+ * Implements the SQL "LIKE" operation on an attribute: "%" matches any
+ * sequence of characters and "_" any single character. Matching is case
+ * insensitive: the value and the pattern are compared in lower case, and
+ * translated to SQL as <code>lower(column) like lower(?)</code>, so that the
+ * result doesn't depend on the database collation nor on where the
+ * condition is evaluated (databases lowering only ASCII characters, such as
+ * SQLite, still differ on other characters).
+ * 
+ * @author Reda El Khattabi
+ */
+public class Like<T extends Entity> extends FieldCondition<T> {
+
+	private String pattern;
+	private Pattern regex;
+
+	public Like(String field, String pattern) {
+		super(field);
+		this.pattern = pattern;
+		if (pattern != null) {
+			StringBuilder sb = new StringBuilder();
+			for (String s : pattern.toLowerCase().split("(?=[%_])|(?<=[%_])"))
+				if (s.equals("%"))
+					sb.append(".*");
+				else if (s.equals("_"))
+					sb.append(".");
+				else if (!s.isEmpty())
+					sb.append(Pattern.quote(s));
+			this.regex = Pattern.compile(sb.toString(), Pattern.DOTALL);
+		}
+	}
+
+	public String getPattern() {
+		return this.pattern;
+	}
+
+	@Override
+	public boolean test(Object value) {
+		if (value == null || this.regex == null)
+			return false;
+		return this.regex.matcher(value.toString().toLowerCase()).matches();
+	}
+
+}
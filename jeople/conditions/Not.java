@@ -16,6 +16,10 @@ public class Not<T extends Entity> implements Condition<T> {
 		this.condition = condition;
 	}
 
+	public Condition<T> getCondition() {
+		return this.condition;
+	}
+
 	@Override
 	public boolean evaluate(T element) {
 		return !this.condition.evaluate(element);
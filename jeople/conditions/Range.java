@@ -0,0 +1,69 @@
+package jeople.conditions;
+
+import jeople.Entity;
+import jeople.support.Values;
+
+/**
+ * Implements the "&lt;", "&lt;=", "&gt;" and "&gt;=" operations on an
+ * attribute. A null bound means the range is unbounded on that side, and null
+ * attributes are never in range.
+ * 
+ * @author Reda El Khattabi
+ */
+public class Range<T extends Entity> extends FieldCondition<T> {
+
+	private Object from;
+	private boolean fromInclusive;
+	private Object to;
+	private boolean toInclusive;
+
+	/**
+	 * Inclusive range.
+	 */
+	public Range(String field, Object from, Object to) {
+		this(field, from, true, to, true);
+	}
+
+	public Range(String field, Object from, boolean fromInclusive, Object to,
+			boolean toInclusive) {
+		super(field);
+		this.from = from;
+		this.fromInclusive = fromInclusive;
+		this.to = to;
+		this.toInclusive = toInclusive;
+	}
+
+	public Object getFrom() {
+		return this.from;
+	}
+
+	public boolean isFromInclusive() {
+		return this.fromInclusive;
+	}
+
+	public Object getTo() {
+		return this.to;
+	}
+
+	public boolean isToInclusive() {
+		return this.toInclusive;
+	}
+
+	@Override
+	public boolean test(Object value) {
+		if (value == null)
+			return false;
+		if (this.from != null) {
+			int c = Values.compare(value, this.from);
+			if (c < 0 || (c == 0 && !this.fromInclusive))
+				return false;
+		}
+		if (this.to != null) {
+			int c = Values.compare(value, this.to);
+			if (c > 0 || (c == 0 && !this.toInclusive))
+				return false;
+		}
+		return true;
+	}
+
+}
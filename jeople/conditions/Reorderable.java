@@ -0,0 +1,21 @@
+package jeople.conditions;
+
+import jeople.Condition;
+import jeople.Entity;
+
+/**
+ * A client side condition declared safe to evaluate before or after the
+ * other conditions of a query (or of an {@link AllOf} or {@link OneOf}), so
+ * that it can be moved by the {@link AdaptiveEvaluator}.<br>
+ * This holds when the condition doesn't rely on other conditions to guard
+ * it (it doesn't fail on elements they reject, eg. on null attribute
+ * values) and has no side effect. Lambdas can be declared reorderable by a
+ * cast: <code>(Reorderable&lt;Car&gt;) c -&gt; expensive(c)</code>.
+ * 
+ * @author Reda El Khattabi
+ * 
+ * @param <T>
+ *            the entity type.
+ */
+public interface Reorderable<T extends Entity> extends Condition<T> {
+}
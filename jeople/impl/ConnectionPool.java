@@ -0,0 +1,394 @@
+package jeople.impl;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import jeople.errors.InternalError;
+import jeople.metrics.Instrumentation;
+
+/**
+ * Bounded JDBC connection pool used by {@link JDBCDataSource}.<br>
+ * At most <code>maxSize</code> connections are open at any time, threads
+ * borrowing a connection while all of them are in use wait for one to be
+ * released. Idle connections are validated before being handed out, and those
+ * idle for longer than the idle timeout are closed (down to
+ * <code>minSize</code> connections) by a background timer.<br>
+ * Each connection also keeps its most recently used prepared statements (see
+ * {@link #prepare(Connection, String)}), so that repeated queries aren't
+ * parsed again by the database.
+ *
+ * @author Reda El Khattabi
+ */
+class ConnectionPool {
+
+	private static final int VALIDATION_TIMEOUT = 5; // seconds
+
+	/**
+	 * The prepared statements of a connection, by SQL, in least recently
+	 * used order. Only accessed by the thread borrowing the connection.
+	 */
+	private static class StatementCache extends
+			LinkedHashMap<String, PreparedStatement> {
+		private static final long serialVersionUID = 1L;
+
+		private int maxSize;
+		private int generation;
+
+		public StatementCache(int maxSize, int generation) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+			this.generation = generation;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<String, PreparedStatement> eldest) {
+			if (this.size() <= this.maxSize)
+				return false;
+			ConnectionPool.close(eldest.getValue());
+			return true;
+		}
+	}
+
+	private static class IdleConnection {
+		public Connection connection;
+		public long since;
+
+		public IdleConnection(Connection connection) {
+			this.connection = connection;
+			this.since = System.currentTimeMillis();
+		}
+	}
+
+	private String url;
+	private String user;
+	private String password;
+	private int minSize;
+	private int maxSize;
+	private long idleTimeout;
+	private long borrowTimeout;
+
+	private Deque<IdleConnection> idle;
+	private int open;
+	private boolean used;
+	private boolean closed;
+	private Timer evictor;
+	private volatile int statementCacheSize;
+	private Map<Connection, StatementCache> statements;
+	private volatile int generation;
+	private volatile Instrumentation instrumentation;
+
+	/**
+	 * @param idleTimeout
+	 *            milliseconds after which an idle connection can be closed (0
+	 *            to keep idle connections open)
+	 * @param borrowTimeout
+	 *            milliseconds to wait for a connection when the pool is
+	 *            exhausted (0 to wait indefinitely)
+	 */
+	public ConnectionPool(String url, String user, String password,
+			int minSize, int maxSize, long idleTimeout, long borrowTimeout) {
+		if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+			throw new IllegalArgumentException("Invalid pool size: " + minSize
+					+ ".." + maxSize);
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.idleTimeout = idleTimeout;
+		this.borrowTimeout = borrowTimeout;
+		this.idle = new ArrayDeque<IdleConnection>();
+		this.open = 0;
+		this.used = false;
+		this.closed = false;
+		this.statementCacheSize = 0;
+		this.statements = Collections
+				.synchronizedMap(new IdentityHashMap<Connection, StatementCache>());
+		this.generation = 0;
+		this.instrumentation = null;
+		if (idleTimeout > 0) {
+			this.evictor = new Timer("jeople-pool-evictor", true);
+			long period = Math.max(idleTimeout / 2, 1000);
+			this.evictor.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					ConnectionPool.this.evict();
+				}
+			}, period, period);
+		}
+	}
+
+	/**
+	 * Reports the connections opened (null to stop).
+	 */
+	public void setInstrumentation(Instrumentation instrumentation) {
+		this.instrumentation = instrumentation;
+	}
+
+	private Connection connect() {
+		Instrumentation in = this.instrumentation;
+		long start = in == null ? 0 : System.nanoTime();
+		try {
+			Connection connection = DriverManager.getConnection(this.url,
+					this.user, this.password);
+			if (in != null)
+				in.connected(System.nanoTime() - start);
+			return connection;
+		} catch (SQLException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	private void destroy(Connection connection) {
+		this.statements.remove(connection);
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			// already broken, nothing else to release
+		}
+	}
+
+	private static boolean isValid(Connection connection) {
+		try {
+			return connection.isValid(VALIDATION_TIMEOUT);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Gets a connection from the pool, opening a new one if none is idle and
+	 * the pool is not full, or waiting for one to be released otherwise.
+	 */
+	public Connection borrow() {
+		long deadline = System.currentTimeMillis() + this.borrowTimeout;
+		while (true) {
+			IdleConnection candidate = null;
+			synchronized (this) {
+				if (this.closed)
+					throw new InternalError("Connection pool is closed");
+				this.used = true;
+				if (!this.idle.isEmpty())
+					candidate = this.idle.pollFirst();
+				else if (this.open < this.maxSize)
+					++this.open;
+				else {
+					long wait = 0;
+					if (this.borrowTimeout > 0) {
+						wait = deadline - System.currentTimeMillis();
+						if (wait <= 0)
+							throw new InternalError(
+									"Timed out waiting for a connection");
+					}
+					try {
+						this.wait(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InternalError(e);
+					}
+					continue;
+				}
+			}
+			if (candidate == null)
+				try {
+					return this.connect();
+				} catch (InternalError e) {
+					this.discarded();
+					throw e;
+				}
+			if (ConnectionPool.isValid(candidate.connection))
+				return candidate.connection;
+			this.destroy(candidate.connection);
+			this.discarded();
+		}
+	}
+
+	/**
+	 * Returns a borrowed connection to the pool. The connection is reset to
+	 * auto-commit mode (rolling back any pending transaction) before being
+	 * reused.
+	 */
+	public void release(Connection connection) {
+		boolean reusable;
+		try {
+			reusable = !connection.isClosed();
+			if (reusable && !connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			reusable = false;
+		}
+		synchronized (this) {
+			if (reusable && !this.closed) {
+				this.idle.addFirst(new IdleConnection(connection));
+				this.notify();
+				return;
+			}
+		}
+		this.destroy(connection);
+		this.discarded();
+	}
+
+	/**
+	 * Closes a borrowed connection instead of returning it to the pool, for
+	 * connections left in an unknown state.
+	 */
+	public void invalidate(Connection connection) {
+		this.destroy(connection);
+		this.discarded();
+	}
+
+	private synchronized void discarded() {
+		--this.open;
+		this.notify();
+	}
+
+	/**
+	 * Closes idle connections above the minimum size that have not been used
+	 * for the idle timeout, and tops the pool back up to its minimum size.
+	 */
+	void evict() {
+		long limit = System.currentTimeMillis() - this.idleTimeout;
+		Deque<Connection> expired = new ArrayDeque<Connection>();
+		int missing;
+		synchronized (this) {
+			if (this.closed)
+				return;
+			Iterator<IdleConnection> it = this.idle.descendingIterator();
+			while (it.hasNext() && this.open > this.minSize) {
+				IdleConnection ic = it.next();
+				if (ic.since > limit)
+					break;
+				it.remove();
+				expired.add(ic.connection);
+				--this.open;
+			}
+			missing = this.used ? this.minSize - this.open : 0;
+			if (missing > 0)
+				this.open += missing;
+		}
+		for (Connection c : expired)
+			this.destroy(c);
+		for (int i = 0; i < missing; ++i)
+			try {
+				this.release(this.connect());
+			} catch (InternalError e) {
+				this.discarded();
+			}
+	}
+
+	/**
+	 * Closes all idle connections and refuses further borrowing. Connections
+	 * currently in use are closed when released.
+	 */
+	public void close() {
+		Deque<IdleConnection> connections;
+		synchronized (this) {
+			if (this.closed)
+				return;
+			this.closed = true;
+			connections = this.idle;
+			this.idle = new ArrayDeque<IdleConnection>();
+			this.open -= connections.size();
+			this.notifyAll();
+		}
+		if (this.evictor != null)
+			this.evictor.cancel();
+		for (IdleConnection ic : connections)
+			this.destroy(ic.connection);
+	}
+
+	// ///////////////////////////////// STATEMENTS
+
+	/**
+	 * Number of prepared statements kept open by each connection (0, the
+	 * default, to close statements after use).
+	 */
+	public int getStatementCacheSize() {
+		return this.statementCacheSize;
+	}
+
+	public void setStatementCacheSize(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("Invalid statement cache size: "
+					+ size);
+		this.statementCacheSize = size;
+	}
+
+	/**
+	 * Drops the cached statements of all connections. Borrowed connections
+	 * may be running theirs, so each connection closes them on its next
+	 * {@link #prepare(Connection, String)}.
+	 */
+	public synchronized void clearStatements() {
+		++this.generation;
+	}
+
+	private static void close(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			// nothing else to release
+		}
+	}
+
+	/**
+	 * Prepares a statement on a borrowed connection, reusing the one
+	 * previously prepared for the same SQL if it is still cached. The
+	 * statement must be handed back with
+	 * {@link #release(Connection, PreparedStatement)} rather than closed.
+	 */
+	public PreparedStatement prepare(Connection connection, String sql)
+			throws SQLException {
+		int size = this.statementCacheSize;
+		if (size == 0)
+			return connection.prepareStatement(sql);
+		int generation = this.generation;
+		StatementCache cache = this.statements.get(connection);
+		if (cache == null) {
+			cache = new StatementCache(size, generation);
+			this.statements.put(connection, cache);
+		} else if (cache.generation != generation) {
+			for (PreparedStatement s : cache.values())
+				close(s);
+			cache.clear();
+			cache.generation = generation;
+		}
+		cache.maxSize = size;
+		PreparedStatement statement = cache.get(sql);
+		if (statement == null || statement.isClosed()) {
+			statement = connection.prepareStatement(sql);
+			cache.put(sql, statement);
+		}
+		return statement;
+	}
+
+	/**
+	 * Hands back a statement obtained from
+	 * {@link #prepare(Connection, String)}: cached statements are reset for
+	 * their next use, others are closed.
+	 */
+	public void release(Connection connection, PreparedStatement statement)
+			throws SQLException {
+		StatementCache cache = this.statements.get(connection);
+		if (cache != null && cache.containsValue(statement)
+				&& !statement.isClosed()) {
+			statement.clearParameters();
+			statement.clearBatch();
+		} else
+			statement.close();
+	}
+}
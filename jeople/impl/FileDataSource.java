@@ -0,0 +1,1236 @@
+package jeople.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import jeople.Condition;
+import jeople.DataSource;
+import jeople.comparators.FieldComparator;
+import jeople.errors.InternalError;
+import jeople.support.DataSourceSupport;
+import jeople.support.Row;
+import jeople.support.RowLayout;
+import jeople.support.Selection;
+import jeople.support.Values;
+
+/**
+ * A {@link DataSource} storing its records in local files, for single process
+ * applications.<br>
+ * Each table is a log of records, split in segment files (named
+ * <code>table.N.seg</code>, in the data source directory) that are only ever
+ * appended to: inserting or updating a record appends its new version,
+ * deleting one appends a deletion marker. Records are encoded in a compact
+ * binary form (column names are written once per column set and segment),
+ * and framed with their length and a CRC32 checksum.<br>
+ * Segments are memory mapped, and records are decoded straight from the
+ * mapping, an in-memory index giving the position of the current version of
+ * each record. The index is rebuilt when a table is first used, by reading
+ * its segments: an incomplete or corrupt record (eg. after a crash) is
+ * discarded, with everything after it in its segment.<br>
+ * Superseded versions and deleted records are reclaimed by compaction, which
+ * copies the live records to new segments before removing the old ones. It
+ * runs in the background once they take more space than the live records
+ * (see {@link #compact(String)}).<br>
+ * Conditions on attributes, orderings and limits are evaluated on the
+ * records, as with {@link MemoryDataSource}. Reads never lock, writes lock
+ * the table they modify. Records are handed to the operating system on each
+ * write, and also forced to the disk if requested (see
+ * {@link #FileDataSource(String, long, boolean)}).
+ *
+ * @author Reda El Khattabi
+ */
+public class FileDataSource extends DataSourceSupport {
+
+	public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+	public static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+	private static final long COMPACTION_INTERVAL = 10000;
+	private static final long MIN_GARBAGE = 1L << 20;
+	private static final int FLUSH_SIZE = 1 << 20;
+
+	// record frame: length, checksum, body (type first)
+	private static final int HEADER = 8;
+	private static final byte LAYOUT = 1;
+	private static final byte PUT = 2;
+	private static final byte DELETE = 3;
+
+	// value tags
+	private static final byte NULL = 0;
+	private static final byte FALSE = 1;
+	private static final byte TRUE = 2;
+	private static final byte BYTE = 3;
+	private static final byte SHORT = 4;
+	private static final byte INT = 5;
+	private static final byte LONG = 6;
+	private static final byte FLOAT = 7;
+	private static final byte DOUBLE = 8;
+	private static final byte CHAR = 9;
+	private static final byte STRING = 10;
+	private static final byte BIG_INTEGER = 11;
+	private static final byte BIG_DECIMAL = 12;
+	private static final byte DATE = 13;
+	private static final byte SQL_DATE = 14;
+	private static final byte SQL_TIME = 15;
+	private static final byte TIMESTAMP = 16;
+	private static final byte BYTES = 17;
+
+	/**
+	 * A segment file, mapped as it grows.
+	 */
+	private static class Segment {
+		public int number;
+		public Path path;
+		public FileChannel channel;
+		public volatile long size;
+		public volatile MappedByteBuffer map;
+		// layouts written in this segment, guarded by the table
+		public Set<Integer> layouts;
+
+		public Segment(int number, Path path, FileChannel channel, long size) {
+			this.number = number;
+			this.path = path;
+			this.channel = channel;
+			this.size = size;
+			this.map = null;
+			this.layouts = new HashSet<Integer>();
+		}
+
+		/**
+		 * The segment mapping, covering at least the given position (only
+		 * absolute reads are done on the shared buffer).
+		 */
+		public ByteBuffer buffer(long end) {
+			MappedByteBuffer m = this.map;
+			if (m == null || m.limit() < end) {
+				synchronized (this) {
+					m = this.map;
+					if (m == null || m.limit() < end) {
+						try {
+							m = this.channel.map(FileChannel.MapMode.READ_ONLY,
+									0, this.size);
+						} catch (IOException e) {
+							throw new InternalError(e);
+						}
+						this.map = m;
+					}
+				}
+			}
+			return m;
+		}
+
+		public void close() {
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				throw new InternalError(e);
+			}
+		}
+	}
+
+	/**
+	 * The location (segment number and offset) of the current version of
+	 * each record, by record id, and the segments they are in. Iterations
+	 * keep the state they started with, compactions replace it.
+	 */
+	private static class State {
+		public ConcurrentSkipListMap<Long, Long> records;
+		public ConcurrentMap<Integer, Segment> segments;
+
+		public State() {
+			this.records = new ConcurrentSkipListMap<Long, Long>();
+			this.segments = new ConcurrentHashMap<Integer, Segment>();
+		}
+	}
+
+	/**
+	 * Where a write started in the active segment, to undo what it wrote if
+	 * it fails.
+	 */
+	private static class Savepoint {
+		public Segment segment;
+		public long size;
+		public Set<Integer> layouts;
+
+		public Savepoint(Segment segment) {
+			this.segment = segment;
+			this.size = segment.size;
+			this.layouts = new HashSet<Integer>(segment.layouts);
+		}
+	}
+
+	/**
+	 * Key values, numbers being compared by value.
+	 */
+	private static class Key {
+		private Object[] values;
+		private int hash;
+
+		public Key(Object[] values) {
+			this.values = values;
+			int h = 0;
+			for (Object v : values)
+				h = 31 * h + Values.hashCode(v);
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key k = (Key) obj;
+			for (int i = 0; i < this.values.length; ++i)
+				if (!Values.equal(this.values[i], k.values[i]))
+					return false;
+			return true;
+		}
+	}
+
+	/**
+	 * A table log. Everything but its state and layouts is guarded by the
+	 * table itself.
+	 */
+	private static class Table {
+		public String name;
+		public volatile State state;
+		public Segment active;
+		public ConcurrentMap<Integer, RowLayout> layouts;
+		public Map<List<String>, Integer> layoutIds;
+		public long nextId;
+		// bytes taken by the current record versions
+		public long live;
+		// appended records, not written yet
+		public List<ByteBuffer> pending;
+		public long pendingSize;
+		// record ids by key values, built on the first update or delete
+		public List<String> keyColumns;
+		public Map<Key, List<Long>> keys;
+
+		public Table(String name) {
+			this.name = name;
+			this.state = new State();
+			this.active = null;
+			this.layouts = new ConcurrentHashMap<Integer, RowLayout>();
+			this.layoutIds = new HashMap<List<String>, Integer>();
+			this.nextId = 0;
+			this.live = 0;
+			this.pending = new ArrayList<ByteBuffer>();
+			this.pendingSize = 0;
+			this.keyColumns = null;
+			this.keys = null;
+		}
+	}
+
+	/**
+	 * Sequential reads at absolute positions of a shared buffer.
+	 */
+	private static class Reader {
+		private ByteBuffer buffer;
+		private int position;
+
+		public Reader(ByteBuffer buffer, int position) {
+			this.buffer = buffer;
+			this.position = position;
+		}
+
+		public byte getByte() {
+			return this.buffer.get(this.position++);
+		}
+
+		public int getInt() {
+			int v = this.buffer.getInt(this.position);
+			this.position += 4;
+			return v;
+		}
+
+		public long getLong() {
+			long v = this.buffer.getLong(this.position);
+			this.position += 8;
+			return v;
+		}
+
+		public byte[] getBytes() {
+			byte[] b = new byte[this.getInt()];
+			this.buffer.get(this.position, b);
+			this.position += b.length;
+			return b;
+		}
+
+		public String getString() {
+			return new String(this.getBytes(), StandardCharsets.UTF_8);
+		}
+
+		public Object getValue() {
+			byte tag = this.getByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case FALSE:
+				return false;
+			case TRUE:
+				return true;
+			case BYTE:
+				return this.getByte();
+			case SHORT:
+				short s = this.buffer.getShort(this.position);
+				this.position += 2;
+				return s;
+			case INT:
+				return this.getInt();
+			case LONG:
+				return this.getLong();
+			case FLOAT:
+				return Float.intBitsToFloat(this.getInt());
+			case DOUBLE:
+				return Double.longBitsToDouble(this.getLong());
+			case CHAR:
+				char c = this.buffer.getChar(this.position);
+				this.position += 2;
+				return c;
+			case STRING:
+				return this.getString();
+			case BIG_INTEGER:
+				return new BigInteger(this.getBytes());
+			case BIG_DECIMAL:
+				int scale = this.getInt();
+				return new BigDecimal(new BigInteger(this.getBytes()), scale);
+			case DATE:
+				return new java.util.Date(this.getLong());
+			case SQL_DATE:
+				return new java.sql.Date(this.getLong());
+			case SQL_TIME:
+				return new java.sql.Time(this.getLong());
+			case TIMESTAMP:
+				java.sql.Timestamp t = new java.sql.Timestamp(this.getLong());
+				t.setNanos(this.getInt());
+				return t;
+			case BYTES:
+				return this.getBytes();
+			default:
+				throw new InternalError("Unknown value tag " + tag);
+			}
+		}
+	}
+
+	/**
+	 * An iteration over the records of a table.
+	 */
+	private static class ScanStatus {
+		public Table table;
+		public State state;
+		public Iterator<Long> locations;
+		public Iterator<Row> sorted;
+		public List<Condition<?>> conditions;
+		public int skip;
+		public int remaining;
+
+		public ScanStatus(Table table, Selection selection) {
+			this.table = table;
+			this.state = table.state;
+			this.locations = null;
+			this.sorted = null;
+			this.conditions = selection.getConditions();
+			this.skip = selection.getOffset();
+			this.remaining = selection.getLimit();
+		}
+	}
+
+	private Path directory;
+	private long segmentSize;
+	private boolean sync;
+	private Map<String, Table> tables;
+	private Timer compactor;
+
+	/**
+	 * A data source storing its tables in the given directory (created if
+	 * needed), with the default segment size, without forcing writes to the
+	 * disk.
+	 */
+	public FileDataSource(String directory) {
+		this(directory, FileDataSource.DEFAULT_SEGMENT_SIZE, false);
+	}
+
+	/**
+	 * @param directory
+	 *            the directory of the table files (created if needed)
+	 * @param segmentSize
+	 *            the size (in bytes) after which a new segment is started, at
+	 *            most {@link #MAX_SEGMENT_SIZE}
+	 * @param sync
+	 *            whether each write is forced to the disk before returning,
+	 *            otherwise written records survive a crash of the application
+	 *            but not of the system
+	 */
+	public FileDataSource(String directory, long segmentSize, boolean sync) {
+		if (segmentSize <= 0 || segmentSize > FileDataSource.MAX_SEGMENT_SIZE)
+			throw new IllegalArgumentException("Invalid segment size: "
+					+ segmentSize);
+		this.directory = Paths.get(directory);
+		this.segmentSize = segmentSize;
+		this.sync = sync;
+		this.tables = new ConcurrentHashMap<String, Table>();
+		try {
+			Files.createDirectories(this.directory);
+		} catch (IOException e) {
+			throw new InternalError(e);
+		}
+		this.compactor = new Timer("jeople-file-compactor", true);
+		this.compactor.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				FileDataSource.this.compactIfNeeded();
+			}
+		}, FileDataSource.COMPACTION_INTERVAL,
+				FileDataSource.COMPACTION_INTERVAL);
+	}
+
+	/**
+	 * Stops the background compaction and closes the table files.
+	 */
+	public void close() {
+		this.compactor.cancel();
+		synchronized (this.tables) {
+			for (Table t : this.tables.values())
+				synchronized (t) {
+					for (Segment s : t.state.segments.values())
+						s.close();
+				}
+			this.tables.clear();
+		}
+	}
+
+	/**
+	 * Copies the live records of the table to new segments, and removes the
+	 * old ones. Iterations already started go on reading the old segments.
+	 */
+	public void compact(String table) {
+		Table t = this.table(table);
+		synchronized (t) {
+			this.compact(t);
+		}
+	}
+
+	/**
+	 * Compacts all the tables used so far.
+	 */
+	public void compact() {
+		for (Table t : this.tables.values())
+			synchronized (t) {
+				this.compact(t);
+			}
+	}
+
+	private Table table(String name) {
+		String key = name.toLowerCase();
+		Table t = this.tables.get(key);
+		if (t != null)
+			return t;
+		synchronized (this.tables) {
+			t = this.tables.get(key);
+			if (t == null) {
+				t = this.open(key);
+				this.tables.put(key, t);
+			}
+			return t;
+		}
+	}
+
+	// ///////////////////////////////// SEGMENTS
+
+	private Segment segment(Table t, int number) {
+		Path path = this.directory.resolve(t.name + "." + number + ".seg");
+		try {
+			FileChannel channel = FileChannel.open(path,
+					StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE);
+			long size = channel.size();
+			channel.position(size);
+			return new Segment(number, path, channel, size);
+		} catch (IOException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	/**
+	 * Opens the segments of a table, and rebuilds its index.
+	 */
+	private Table open(String name) {
+		Table t = new Table(name);
+		Pattern p = Pattern.compile(Pattern.quote(name) + "\\.(\\d+)\\.seg");
+		List<Integer> numbers = new ArrayList<Integer>();
+		try (DirectoryStream<Path> files = Files
+				.newDirectoryStream(this.directory)) {
+			for (Path f : files) {
+				Matcher m = p.matcher(f.getFileName().toString());
+				if (m.matches())
+					numbers.add(Integer.parseInt(m.group(1)));
+			}
+		} catch (IOException e) {
+			throw new InternalError(e);
+		}
+		Collections.sort(numbers);
+		if (numbers.isEmpty())
+			numbers.add(1);
+		for (int n : numbers) {
+			Segment s = this.segment(t, n);
+			t.state.segments.put(n, s);
+			this.recover(t, s);
+			t.active = s;
+		}
+		return t;
+	}
+
+	private static int checksum(ByteBuffer buffer, int offset, int length) {
+		CRC32 crc = new CRC32();
+		ByteBuffer b = buffer.duplicate();
+		b.limit(offset + length).position(offset);
+		crc.update(b);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Replays the records of a segment, up to the first incomplete or
+	 * corrupt one, where the segment is truncated.
+	 */
+	private void recover(Table t, Segment s) {
+		ByteBuffer b = s.buffer(s.size);
+		int position = 0;
+		while (position + FileDataSource.HEADER <= s.size) {
+			int length = b.getInt(position);
+			if (length <= 0
+					|| position + FileDataSource.HEADER + length > s.size
+					|| FileDataSource.checksum(b, position
+							+ FileDataSource.HEADER, length) != b
+							.getInt(position + 4))
+				break;
+			Reader r = new Reader(b, position + FileDataSource.HEADER);
+			byte type = r.getByte();
+			if (type == FileDataSource.LAYOUT) {
+				int id = r.getInt();
+				String[] names = new String[r.getInt()];
+				for (int i = 0; i < names.length; ++i)
+					names[i] = r.getString();
+				t.layouts.put(id, new RowLayout(names, null));
+				t.layoutIds.put(Arrays.asList(names), id);
+				s.layouts.add(id);
+			} else {
+				long id = r.getLong();
+				t.nextId = Math.max(t.nextId, id);
+				long location = type == FileDataSource.PUT ? FileDataSource
+						.location(s.number, position) : -1;
+				this.apply(t, id, location, FileDataSource.HEADER + length);
+			}
+			position += FileDataSource.HEADER + length;
+		}
+		if (position < s.size)
+			try {
+				s.channel.truncate(position);
+				s.channel.position(position);
+				s.size = position;
+				s.map = null;
+			} catch (IOException e) {
+				throw new InternalError(e);
+			}
+	}
+
+	private static long location(int segment, long offset) {
+		return ((long) segment << 32) | offset;
+	}
+
+	/**
+	 * The size of the record at the given location.
+	 */
+	private static int size(State state, long location) {
+		Segment s = state.segments.get((int) (location >>> 32));
+		int offset = (int) location;
+		return FileDataSource.HEADER
+				+ s.buffer(offset + FileDataSource.HEADER).getInt(offset);
+	}
+
+	/**
+	 * Publishes a written record version (or deletion, for a negative
+	 * location).
+	 */
+	private void apply(Table t, long id, long location, int size) {
+		State st = t.state;
+		Long old = location >= 0 ? st.records.put(id, location) : st.records
+				.remove(id);
+		if (old != null)
+			t.live -= FileDataSource.size(st, old);
+		if (location >= 0)
+			t.live += size;
+	}
+
+	private Row read(Table t, State state, long location) {
+		Segment s = state.segments.get((int) (location >>> 32));
+		int offset = (int) location;
+		ByteBuffer b = s.buffer(offset + FileDataSource.HEADER);
+		b = s.buffer(offset + FileDataSource.HEADER + b.getInt(offset));
+		Reader r = new Reader(b, offset + FileDataSource.HEADER + 1 + 8);
+		RowLayout layout = t.layouts.get(r.getInt());
+		Object[] values = new Object[layout.size()];
+		for (int i = 0; i < values.length; ++i)
+			values[i] = r.getValue();
+		return new Row(layout, values);
+	}
+
+	// ///////////////////////////////// WRITES (table locked)
+
+	private static ByteBuffer frame(byte[] body) {
+		ByteBuffer b = ByteBuffer.allocate(FileDataSource.HEADER + body.length);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		b.putInt(body.length).putInt((int) crc.getValue()).put(body);
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * Queues a record for writing to the active segment, after the layout
+	 * it uses if the segment doesn't have it yet (or -1). New segments are
+	 * added to the given state.
+	 *
+	 * @return the record location
+	 */
+	private long append(Table t, State st, ByteBuffer record, int layout) {
+		Segment s = t.active;
+		if (s.size + t.pendingSize + record.remaining() > this.segmentSize
+				&& s.size + t.pendingSize > 0)
+			s = this.roll(t, st);
+		if (layout >= 0 && !s.layouts.contains(layout)) {
+			ByteBuffer b = FileDataSource.frame(FileDataSource.encode(layout,
+					t.layouts.get(layout)));
+			t.pending.add(b);
+			t.pendingSize += b.remaining();
+			s.layouts.add(layout);
+		}
+		long location = FileDataSource.location(s.number, s.size
+				+ t.pendingSize);
+		t.pending.add(record);
+		t.pendingSize += record.remaining();
+		if (t.pendingSize >= FileDataSource.FLUSH_SIZE)
+			this.flush(t, false);
+		return location;
+	}
+
+	/**
+	 * Writes the queued records to the active segment.
+	 */
+	private void flush(Table t, boolean force) {
+		Segment s = t.active;
+		ByteBuffer[] buffers = t.pending.toArray(new ByteBuffer[t.pending
+				.size()]);
+		long size = t.pendingSize;
+		t.pending.clear();
+		t.pendingSize = 0;
+		try {
+			long written = 0;
+			while (written < size)
+				written += s.channel.write(buffers);
+			if (force)
+				s.channel.force(false);
+			s.size += size;
+		} catch (IOException e) {
+			// layouts may have been lost with the records
+			s.layouts.clear();
+			try {
+				s.channel.truncate(s.size);
+				s.channel.position(s.size);
+			} catch (IOException e2) {
+				e.addSuppressed(e2);
+			}
+			throw new InternalError(e);
+		}
+	}
+
+	/**
+	 * Starts a new active segment, after the last one, in the given state.
+	 */
+	private Segment roll(Table t, State st) {
+		this.flush(t, this.sync);
+		Segment s = this.segment(t, t.active.number + 1);
+		st.segments.put(s.number, s);
+		t.active = s;
+		return s;
+	}
+
+	private int layout(Table t, Row row) {
+		RowLayout layout = row.getLayout();
+		String[] names = new String[layout.size()];
+		for (int i = 0; i < names.length; ++i)
+			names[i] = layout.getName(i);
+		List<String> key = Arrays.asList(names);
+		Integer id = t.layoutIds.get(key);
+		if (id == null) {
+			id = t.layoutIds.size() + 1;
+			while (t.layouts.containsKey(id))
+				++id;
+			t.layouts.put(id, layout);
+			t.layoutIds.put(key, id);
+		}
+		return id;
+	}
+
+	private static Row row(Map<String, ?> data) {
+		if (data instanceof Row)
+			return (Row) data;
+		String[] names = data.keySet().toArray(new String[data.size()]);
+		Object[] values = new Object[names.length];
+		for (int i = 0; i < names.length; ++i)
+			values[i] = data.get(names[i]);
+		return new Row(new RowLayout(names, null), values);
+	}
+
+	private static byte[] encode(int id, RowLayout layout) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(FileDataSource.LAYOUT);
+			out.writeInt(id);
+			out.writeInt(layout.size());
+			for (int i = 0; i < layout.size(); ++i)
+				FileDataSource.writeBytes(out,
+						layout.getName(i).getBytes(StandardCharsets.UTF_8));
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	private static byte[] encode(long id, int layout, Row row) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+					16 + 8 * row.size());
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(FileDataSource.PUT);
+			out.writeLong(id);
+			out.writeInt(layout);
+			for (int i = 0; i < row.size(); ++i)
+				FileDataSource.writeValue(out, row.get(i));
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	private static byte[] encode(long id) {
+		return ByteBuffer.allocate(9).put(FileDataSource.DELETE).putLong(id)
+				.array();
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] b)
+			throws IOException {
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	private static void writeValue(DataOutputStream out, Object v)
+			throws IOException {
+		if (v == null)
+			out.writeByte(FileDataSource.NULL);
+		else if (v instanceof Boolean)
+			out.writeByte((Boolean) v ? FileDataSource.TRUE
+					: FileDataSource.FALSE);
+		else if (v instanceof Byte) {
+			out.writeByte(FileDataSource.BYTE);
+			out.writeByte((Byte) v);
+		} else if (v instanceof Short) {
+			out.writeByte(FileDataSource.SHORT);
+			out.writeShort((Short) v);
+		} else if (v instanceof Integer) {
+			out.writeByte(FileDataSource.INT);
+			out.writeInt((Integer) v);
+		} else if (v instanceof Long) {
+			out.writeByte(FileDataSource.LONG);
+			out.writeLong((Long) v);
+		} else if (v instanceof Float) {
+			out.writeByte(FileDataSource.FLOAT);
+			out.writeFloat((Float) v);
+		} else if (v instanceof Double) {
+			out.writeByte(FileDataSource.DOUBLE);
+			out.writeDouble((Double) v);
+		} else if (v instanceof Character) {
+			out.writeByte(FileDataSource.CHAR);
+			out.writeChar((Character) v);
+		} else if (v instanceof String) {
+			out.writeByte(FileDataSource.STRING);
+			FileDataSource.writeBytes(out,
+					((String) v).getBytes(StandardCharsets.UTF_8));
+		} else if (v instanceof BigInteger) {
+			out.writeByte(FileDataSource.BIG_INTEGER);
+			FileDataSource.writeBytes(out, ((BigInteger) v).toByteArray());
+		} else if (v instanceof BigDecimal) {
+			out.writeByte(FileDataSource.BIG_DECIMAL);
+			out.writeInt(((BigDecimal) v).scale());
+			FileDataSource.writeBytes(out, ((BigDecimal) v).unscaledValue()
+					.toByteArray());
+		} else if (v instanceof java.sql.Timestamp) {
+			out.writeByte(FileDataSource.TIMESTAMP);
+			out.writeLong(((java.sql.Timestamp) v).getTime());
+			out.writeInt(((java.sql.Timestamp) v).getNanos());
+		} else if (v instanceof java.sql.Date) {
+			out.writeByte(FileDataSource.SQL_DATE);
+			out.writeLong(((java.util.Date) v).getTime());
+		} else if (v instanceof java.sql.Time) {
+			out.writeByte(FileDataSource.SQL_TIME);
+			out.writeLong(((java.util.Date) v).getTime());
+		} else if (v instanceof java.util.Date) {
+			out.writeByte(FileDataSource.DATE);
+			out.writeLong(((java.util.Date) v).getTime());
+		} else if (v instanceof byte[]) {
+			out.writeByte(FileDataSource.BYTES);
+			FileDataSource.writeBytes(out, (byte[]) v);
+		} else
+			throw new IllegalArgumentException("Unsupported value type: "
+					+ v.getClass().getName());
+	}
+
+	/**
+	 * Appends a new version of a record, the key index being kept up to
+	 * date.
+	 *
+	 * @return the change to publish once written: record id, location and
+	 *         size
+	 */
+	private long[] put(Table t, long id, Row row, Row old) {
+		if (t.keys != null) {
+			if (old != null)
+				this.unindex(t, id, old);
+			this.index(t, id, row);
+		}
+		int layout = this.layout(t, row);
+		ByteBuffer record = FileDataSource.frame(FileDataSource.encode(id,
+				layout, row));
+		int size = record.remaining();
+		return new long[] { id, this.append(t, t.state, record, layout),
+				size };
+	}
+
+	private void index(Table t, long id, Row row) {
+		Key k = FileDataSource.key(t.keyColumns, row);
+		List<Long> ids = t.keys.get(k);
+		if (ids == null) {
+			ids = new ArrayList<Long>(1);
+			t.keys.put(k, ids);
+		}
+		ids.add(id);
+	}
+
+	private void unindex(Table t, long id, Map<String, ?> key) {
+		Key k = FileDataSource.key(t.keyColumns, key);
+		List<Long> ids = t.keys.get(k);
+		ids.remove(Long.valueOf(id));
+		if (ids.isEmpty())
+			t.keys.remove(k);
+	}
+
+	private static Key key(List<String> columns, Map<String, ?> data) {
+		Object[] values = new Object[columns.size()];
+		for (int i = 0; i < values.length; ++i)
+			values[i] = data.get(columns.get(i));
+		return new Key(values);
+	}
+
+	private static Map<String, ?> caseInsensitive(Map<String, ?> data) {
+		if (data instanceof Row
+				|| (data instanceof TreeMap && ((TreeMap<String, ?>) data)
+						.comparator() == String.CASE_INSENSITIVE_ORDER))
+			return data;
+		Map<String, Object> m = new TreeMap<String, Object>(
+				String.CASE_INSENSITIVE_ORDER);
+		m.putAll(data);
+		return m;
+	}
+
+	/**
+	 * The id of the only record with the given key values.
+	 */
+	private long find(Table t, Map<String, ?> key) {
+		Map<String, ?> k = FileDataSource.caseInsensitive(key);
+		List<String> columns = new ArrayList<String>();
+		for (String c : k.keySet())
+			columns.add(c.toLowerCase());
+		Collections.sort(columns);
+		if (t.keys == null || !columns.equals(t.keyColumns)) {
+			State st = t.state;
+			t.keyColumns = columns;
+			t.keys = new HashMap<Key, List<Long>>();
+			for (Map.Entry<Long, Long> e : st.records.entrySet())
+				this.index(t, e.getKey(), this.read(t, st, e.getValue()));
+		}
+		List<Long> ids = t.keys.get(FileDataSource.key(columns, k));
+		int count = ids != null ? ids.size() : 0;
+		if (count != 1)
+			throw new InternalError("Affected " + count
+					+ " records instead of one");
+		return ids.get(0);
+	}
+
+	/**
+	 * Publishes the written changes.
+	 */
+	private void commit(Table t, List<long[]> changes) {
+		for (long[] c : changes)
+			this.apply(t, c[0], c[1], (int) c[2]);
+	}
+
+	/**
+	 * Undoes a failed write: drops the queued records, truncates the
+	 * segment active when it started, and deletes the segments it added
+	 * (nothing it wrote was published). The key index is rebuilt on next
+	 * use.
+	 */
+	private void rollback(Table t, Savepoint sp, Throwable e) {
+		t.pending.clear();
+		t.pendingSize = 0;
+		t.keys = null;
+		for (Segment s : new ArrayList<Segment>(t.state.segments.values()))
+			if (s.number > sp.segment.number) {
+				t.state.segments.remove(s.number);
+				try {
+					s.close();
+					Files.deleteIfExists(s.path);
+				} catch (IOException | RuntimeException | Error e2) {
+					e.addSuppressed(e2);
+				}
+			}
+		Segment s = sp.segment;
+		t.active = s;
+		s.layouts = sp.layouts;
+		try {
+			s.channel.truncate(sp.size);
+			s.channel.position(sp.size);
+			s.size = sp.size;
+			s.map = null;
+		} catch (IOException e2) {
+			// layouts may have been lost with the records
+			s.layouts.clear();
+			e.addSuppressed(e2);
+		}
+	}
+
+
+	// ///////////////////////////////// COMPACTION
+
+	private void compactIfNeeded() {
+		for (Table t : this.tables.values())
+			synchronized (t) {
+				long total = 0;
+				for (Segment s : t.state.segments.values())
+					total += s.size;
+				long garbage = total - t.live;
+				if (garbage > FileDataSource.MIN_GARBAGE && garbage > t.live)
+					try {
+						this.compact(t);
+					} catch (InternalError e) {
+						// retried on next run
+					}
+			}
+	}
+
+	private void compact(Table t) {
+		State old = t.state;
+		Segment active = t.active;
+		List<Segment> segments = new ArrayList<Segment>(old.segments.values());
+		Collections.sort(segments, new Comparator<Segment>() {
+			@Override
+			public int compare(Segment s1, Segment s2) {
+				return Integer.compare(s1.number, s2.number);
+			}
+		});
+		// iterations started before keep reading the old segments after
+		// their channels are closed: map them entirely
+		for (Segment s : segments)
+			s.buffer(s.size);
+		// the new state is only published once all the records are written
+		State st = new State();
+		t.active = this.segment(t, active.number + 1);
+		st.segments.put(t.active.number, t.active);
+		try {
+			for (Map.Entry<Long, Long> e : old.records.entrySet()) {
+				long location = e.getValue();
+				Segment s = old.segments.get((int) (location >>> 32));
+				int offset = (int) location;
+				ByteBuffer b = s.buffer(s.size).duplicate();
+				int size = FileDataSource.HEADER + b.getInt(offset);
+				b.limit(offset + size).position(offset);
+				int layout = b.getInt(offset + FileDataSource.HEADER + 1 + 8);
+				st.records.put(e.getKey(),
+						this.append(t, st, b.slice(), layout));
+			}
+			this.flush(t, true);
+		} catch (RuntimeException | Error e) {
+			for (Segment s : st.segments.values()) {
+				s.close();
+				try {
+					Files.deleteIfExists(s.path);
+				} catch (IOException e2) {
+					e.addSuppressed(e2);
+				}
+			}
+			t.pending.clear();
+			t.pendingSize = 0;
+			t.active = active;
+			throw e;
+		}
+		t.state = st;
+		// the new segments hold all the live records: the old ones can go,
+		// oldest first so that a crash meanwhile leaves a replayable log
+		for (Segment s : segments) {
+			s.close();
+			try {
+				Files.delete(s.path);
+			} catch (IOException e) {
+				throw new InternalError(e);
+			}
+		}
+	}
+
+	// ///////////////////////////////// CUSTOMIZATIONS
+
+	@Override
+	protected Object select(String table) {
+		return this.select(table, new Selection());
+	}
+
+	@Override
+	protected boolean canFilter(String table, Condition<?> condition) {
+		return RowMatcher.canEvaluate(condition);
+	}
+
+	@Override
+	protected boolean canOrder(String table, Comparator<?> comparator) {
+		return comparator instanceof FieldComparator;
+	}
+
+	@Override
+	protected boolean canLimit(String table) {
+		return true;
+	}
+
+	/**
+	 * Reads the records in insertion order, or sorts the matching ones
+	 * first if an order is requested.
+	 */
+	@Override
+	protected Object select(String table, Selection selection) {
+		Table t = this.table(table);
+		ScanStatus ss = new ScanStatus(t, selection);
+		ss.locations = ss.state.records.values().iterator();
+		FieldComparator<?> order = (FieldComparator<?>) selection.getOrder();
+		if (order == null)
+			return ss;
+		List<Row> rows = new ArrayList<Row>();
+		while (ss.locations.hasNext()) {
+			Row row = this.read(t, ss.state, ss.locations.next());
+			if (RowMatcher.matches(ss.conditions, row))
+				rows.add(row);
+		}
+		Collections.sort(rows, RowMatcher.comparator(order));
+		ss.sorted = rows.iterator();
+		ss.conditions = Collections.emptyList();
+		return ss;
+	}
+
+	@Override
+	protected Map<String, ?> fetch(Object status) {
+		ScanStatus ss = (ScanStatus) status;
+		while (ss.remaining != 0) {
+			Row row;
+			if (ss.sorted != null) {
+				if (!ss.sorted.hasNext())
+					return null;
+				row = ss.sorted.next();
+			} else {
+				if (!ss.locations.hasNext())
+					return null;
+				row = this.read(ss.table, ss.state, ss.locations.next());
+				if (!RowMatcher.matches(ss.conditions, row))
+					continue;
+			}
+			if (ss.skip > 0) {
+				--ss.skip;
+				continue;
+			}
+			if (ss.remaining > 0)
+				--ss.remaining;
+			return row;
+		}
+		return null;
+	}
+
+	@Override
+	protected long count(String table, Selection selection) {
+		Table t = this.table(table);
+		if (selection.getConditions().isEmpty())
+			return t.state.records.size();
+		ScanStatus ss = (ScanStatus) this.select(table, selection);
+		long count = 0;
+		while (this.fetch(ss) != null)
+			++count;
+		return count;
+	}
+
+	@Override
+	protected void insert(String table, Map<String, ?> data) {
+		this.insertAll(table, Collections.<Map<String, ?>> singletonList(data));
+	}
+
+	@Override
+	protected void update(String table, Map<String, ?> key,
+			Map<String, ?> data) {
+		this.updateAll(table, Collections.<Map<String, ?>> singletonList(key),
+				Collections.<Map<String, ?>> singletonList(data));
+	}
+
+	@Override
+	protected void delete(String table, Map<String, ?> key) {
+		this.deleteAll(table, Collections.<Map<String, ?>> singletonList(key));
+	}
+
+	/**
+	 * Appends all the records, then writes them at once. Nothing is
+	 * published (or kept in the segments) if any of them fails.
+	 */
+	@Override
+	protected void insertAll(String table, List<Map<String, ?>> data) {
+		Table t = this.table(table);
+		synchronized (t) {
+			List<long[]> changes = new ArrayList<long[]>(data.size());
+			Savepoint sp = new Savepoint(t.active);
+			try {
+				for (Map<String, ?> d : data)
+					changes.add(this.put(t, ++t.nextId, FileDataSource.row(d),
+							null));
+				this.flush(t, this.sync);
+			} catch (RuntimeException | Error e) {
+				this.rollback(t, sp, e);
+				throw e;
+			}
+			this.commit(t, changes);
+		}
+	}
+
+	/**
+	 * Appends the new versions of all the records (only the given columns
+	 * change), then writes them at once. Nothing is published (or kept in
+	 * the segments) if any of them fails.
+	 */
+	@Override
+	protected void updateAll(String table, List<Map<String, ?>> keys,
+			List<Map<String, ?>> data) {
+		Table t = this.table(table);
+		synchronized (t) {
+			List<long[]> changes = new ArrayList<long[]>(keys.size());
+			Map<Long, Row> updated = new HashMap<Long, Row>();
+			Savepoint sp = new Savepoint(t.active);
+			try {
+				for (int i = 0; i < keys.size(); ++i) {
+					long id = this.find(t, keys.get(i));
+					Row old = updated.get(id);
+					if (old == null)
+						old = this.read(t, t.state, t.state.records.get(id));
+					Row row = FileDataSource.merge(old, data.get(i));
+					updated.put(id, row);
+					changes.add(this.put(t, id, row, old));
+				}
+				this.flush(t, this.sync);
+			} catch (RuntimeException | Error e) {
+				this.rollback(t, sp, e);
+				throw e;
+			}
+			this.commit(t, changes);
+		}
+	}
+
+	/**
+	 * Appends deletion markers for all the records, then writes them at
+	 * once. Nothing is published (or kept in the segments) if any of them
+	 * fails.
+	 */
+	@Override
+	protected void deleteAll(String table, List<Map<String, ?>> keys) {
+		Table t = this.table(table);
+		synchronized (t) {
+			List<long[]> changes = new ArrayList<long[]>(keys.size());
+			Savepoint sp = new Savepoint(t.active);
+			try {
+				for (Map<String, ?> k : keys) {
+					long id = this.find(t, k);
+					this.unindex(t, id, FileDataSource.caseInsensitive(k));
+					this.append(t, t.state,
+							FileDataSource.frame(FileDataSource.encode(id)), -1);
+					changes.add(new long[] { id, -1, 0 });
+				}
+				this.flush(t, this.sync);
+			} catch (RuntimeException | Error e) {
+				this.rollback(t, sp, e);
+				throw e;
+			}
+			this.commit(t, changes);
+		}
+	}
+
+	/**
+	 * The record, with the given columns changed.
+	 */
+	private static Row merge(Row old, Map<String, ?> data) {
+		RowLayout layout = old.getLayout();
+		Object[] values = new Object[layout.size()];
+		for (int i = 0; i < values.length; ++i)
+			values[i] = old.get(i);
+		Map<String, Object> added = null;
+		for (Map.Entry<String, ?> e : data.entrySet()) {
+			int i = layout.indexOf(e.getKey());
+			if (i >= 0)
+				values[i] = e.getValue();
+			else {
+				if (added == null)
+					added = new LinkedHashMap<String, Object>();
+				added.put(e.getKey(), e.getValue());
+			}
+		}
+		Row row = new Row(layout, values);
+		if (added == null)
+			return row;
+		added.putAll(row);
+		return FileDataSource.row(added);
+	}
+
+}
@@ -1,21 +1,36 @@
 package jeople.impl;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import jeople.Condition;
 import jeople.DataSource;
 import jeople.Query;
+import jeople.support.Aggregate;
 import jeople.support.DataSourceSupport;
+import jeople.support.Row;
+import jeople.support.RowLayout;
+import jeople.support.Selection;
 import jeople.errors.InternalError;
+import jeople.metrics.Instrumentation;
 
 /**
  * Basic JDBC {@link DataSource} implementation.<br>
@@ -27,28 +42,142 @@ import jeople.errors.InternalError;
  * no more elements.<br>
  * An alternative method (available to subclasses through the protected
  * {@link #JDBCDataSource(String, String, String, String, String)} constructor)
- * is to specify a "ROWID" column, that will be completely fetched on iteration
- * start, allowing the connection to be immediately closed. Each subsequent
- * iteration will retrieve the record data using the "ROWID" column.<br>
+ * is to specify a "ROWID" column, used to retrieve records in chunks of
+ * {@link #getFetchSize()} (<code>where ROWID &gt; ? order by ROWID limit
+ * N</code>), the connection being released between two chunks.<br>
+ * {@link jeople.conditions.FieldCondition}s on the table columns are
+ * translated to a SQL <code>where</code> clause (see
+ * {@link #canFilter(String, Condition)}), other conditions are evaluated on the
+ * client side. The same goes for orderings ({@link
+ * jeople.comparators.FieldComparator}s are translated to a SQL
+ * <code>order by</code> clause) and limits (on the databases supporting
+ * <code>limit ? offset ?</code>, see {@link #supportsLimit(DatabaseMetaData)}).<br>
+ * Connections are taken from a bounded pool (see
+ * {@link #JDBCDataSource(String, String, String, String, int, int, long, long)}),
+ * "closing" a connection returns it to the pool, and {@link #close()} closes
+ * all of them. Each pooled connection keeps its most recently used prepared
+ * statements (see {@link #setStatementCacheSize(int)}), and the SQL of
+ * inserts, updates and deletes is built once per table and column set.<br>
+ * {@link #saveAll(Iterable)} and {@link #deleteAll(Iterable)} group records
+ * by table and column set, and send them as JDBC batches (of
+ * {@link #getBatchSize()} statements), all on one connection and in a single
+ * transaction: a failure rolls back all of them.<br>
  * Subclasses can also override the
  * {@link #getColumnValue(ResultSet, int, String)} and
  * {@link #setColumnValue(PreparedStatement, int, String, Object)} methods to
- * customize how data is retrieved from the columns depending on their type.
+ * customize how data is retrieved from the columns depending on their type
+ * (the type name comes from the cached {@link TableSchema} of the table, see
+ * {@link #getSchema(String)}).<br>
+ * Records are fetched as {@link Row}s, the column names and types being
+ * read once per query (see {@link RowLayout}), with only the selected
+ * columns (see {@link Query#fields(String...)}).
  * 
  * @author Reda El Khattabi
  */
 public class JDBCDataSource extends DataSourceSupport {
 
-	private String url;
-	private String user;
-	private String password;
+	/**
+	 * Default maximum number of pooled connections.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 10;
+
+	/**
+	 * Default time (in milliseconds) after which idle pooled connections are
+	 * closed.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	/**
+	 * Default time (in milliseconds) to wait for a pooled connection when all
+	 * of them are in use.
+	 */
+	public static final long DEFAULT_BORROW_TIMEOUT = 30000;
+
+	/**
+	 * Default number of prepared statements kept open by each pooled
+	 * connection.
+	 */
+	public static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+
+	// number of operation templates kept
+	private static final int TEMPLATE_CACHE_SIZE = 256;
+
+	/**
+	 * The SQL of the operations, by operation, table and column lists, in
+	 * least recently used order.
+	 */
+	private static class TemplateCache extends
+			LinkedHashMap<List<Object>, String> {
+		private static final long serialVersionUID = 1L;
+
+		public TemplateCache() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<List<Object>, String> eldest) {
+			return this.size() > TEMPLATE_CACHE_SIZE;
+		}
+	}
+
+	// product names of the databases supporting "limit ? offset ?"
+	private static final String[] LIMIT_DATABASES = { "sqlite", "mysql",
+			"mariadb", "postgresql", "h2", "hsql" };
+
+	private ConnectionPool pool;
 	private String rowid;
+	private ConcurrentMap<String, TableSchema> schemas;
+	private int batchSize;
+	private int fetchSize;
+	private Map<List<Object>, String> templates;
+	private volatile Boolean limitSupported;
+	// the connection of the batches of the current thread, in a transaction
+	private ThreadLocal<Connection> transaction;
 
 	public JDBCDataSource(String driver, String url, String user,
 			String password) {
 		this(driver, url, user, password, null);
 	}
 
+	/**
+	 * @param minConnections
+	 *            number of connections kept open once the data source has been
+	 *            used
+	 * @param maxConnections
+	 *            maximum number of simultaneously open connections
+	 * @param idleTimeout
+	 *            milliseconds after which an idle connection is closed (0 to
+	 *            never close idle connections)
+	 */
+	public JDBCDataSource(String driver, String url, String user,
+			String password, int minConnections, int maxConnections,
+			long idleTimeout) {
+		this(driver, url, user, password, minConnections, maxConnections,
+				idleTimeout, DEFAULT_BORROW_TIMEOUT);
+	}
+
+	/**
+	 * @param minConnections
+	 *            number of connections kept open once the data source has been
+	 *            used
+	 * @param maxConnections
+	 *            maximum number of simultaneously open connections
+	 * @param idleTimeout
+	 *            milliseconds after which an idle connection is closed (0 to
+	 *            never close idle connections)
+	 * @param borrowTimeout
+	 *            milliseconds to wait for a connection when all of them are in
+	 *            use, before failing with an {@link InternalError} (0 to wait
+	 *            indefinitely)
+	 */
+	public JDBCDataSource(String driver, String url, String user,
+			String password, int minConnections, int maxConnections,
+			long idleTimeout, long borrowTimeout) {
+		this(driver, url, user, password, null, minConnections,
+				maxConnections, idleTimeout, borrowTimeout);
+	}
+
 	/**
 	 * Allows a select query to free the JDBC connection between fetches (by
 	 * indexing the rowid column on initial select)
@@ -57,97 +186,472 @@ public class JDBCDataSource extends DataSourceSupport {
 	 */
 	protected JDBCDataSource(String driver, String url, String user,
 			String password, String rowIdColumn) {
+		this(driver, url, user, password, rowIdColumn, 0,
+				DEFAULT_MAX_CONNECTIONS, DEFAULT_IDLE_TIMEOUT);
+	}
+
+	protected JDBCDataSource(String driver, String url, String user,
+			String password, String rowIdColumn, int minConnections,
+			int maxConnections, long idleTimeout) {
+		this(driver, url, user, password, rowIdColumn, minConnections,
+				maxConnections, idleTimeout, DEFAULT_BORROW_TIMEOUT);
+	}
+
+	protected JDBCDataSource(String driver, String url, String user,
+			String password, String rowIdColumn, int minConnections,
+			int maxConnections, long idleTimeout, long borrowTimeout) {
+		if (borrowTimeout < 0)
+			throw new IllegalArgumentException("Invalid borrow timeout: "
+					+ borrowTimeout);
 		try {
 			Class.forName(driver);
 		} catch (ClassNotFoundException e) {
 			throw new InternalError("Driver not found: " + "org.sqlite.JDBC", e);
 		}
-		this.url = url;
-		this.user = user;
-		this.password = password;
+		this.pool = new ConnectionPool(url, user, password, minConnections,
+				maxConnections, idleTimeout, borrowTimeout);
 		this.rowid = rowIdColumn;
+		this.schemas = new ConcurrentHashMap<String, TableSchema>();
+		this.batchSize = 1000;
+		this.fetchSize = 500;
+		this.templates = Collections
+				.synchronizedMap(new TemplateCache());
+		this.limitSupported = null;
+		this.transaction = new ThreadLocal<Connection>();
+		this.pool.setStatementCacheSize(DEFAULT_STATEMENT_CACHE_SIZE);
+	}
+
+	/**
+	 * Closes all pooled connections. The data source can not be used anymore
+	 * afterwards.
+	 */
+	public void close() {
+		this.pool.close();
+	}
+
+	/**
+	 * Also reports the connections opened, and the statements executed.
+	 */
+	@Override
+	public void setInstrumentation(Instrumentation instrumentation) {
+		super.setInstrumentation(instrumentation);
+		this.pool.setInstrumentation(instrumentation);
+	}
+
+	/**
+	 * The (cached) schema of the given table, loaded on first use.
+	 */
+	public TableSchema getSchema(String table) {
+		TableSchema ts = this.schemas.get(table.toLowerCase());
+		if (ts != null)
+			return ts;
+		Connection connection = this.pool.borrow();
+		try {
+			return this.getSchema(connection, table);
+		} finally {
+			this.pool.release(connection);
+		}
+	}
+
+	private TableSchema getSchema(Connection connection, String table) {
+		String name = table.toLowerCase();
+		TableSchema ts = this.schemas.get(name);
+		if (ts == null) {
+			ts = TableSchema.load(connection, table);
+			TableSchema previous = this.schemas.putIfAbsent(name, ts);
+			if (previous != null)
+				ts = previous;
+		}
+		return ts;
+	}
+
+	/**
+	 * Drops the cached schema of the given table, it will be reloaded on next
+	 * use. Should be called after altering the table.<br>
+	 * The cached SQL and prepared statements are dropped as well.
+	 */
+	public void invalidateSchema(String table) {
+		this.schemas.remove(table.toLowerCase());
+		this.templates.clear();
+		this.pool.clearStatements();
+	}
+
+	/**
+	 * Drops all cached table schemas, SQL and prepared statements.
+	 */
+	public void invalidateSchema() {
+		this.schemas.clear();
+		this.templates.clear();
+		this.pool.clearStatements();
 	}
 
 	private static class ConnectionStatus {
+		private ConnectionPool pool;
+		public Instrumentation instrumentation;
+		public String table;
 		public Connection connection;
 		public PreparedStatement statement;
 		public ResultSet resultSet;
+		public RowLayout layout;
 
-		public ConnectionStatus(String url, String user, String password,
+		public ConnectionStatus(JDBCDataSource source, String table,
 				String query) {
+			this.pool = source.pool;
+			this.instrumentation = source.getInstrumentation();
+			this.table = table;
+			this.layout = null;
+			this.connection = this.pool.borrow();
 			try {
-				this.connection = DriverManager.getConnection(url, user,
-						password);
-				this.statement = this.connection.prepareStatement(query);
+				this.statement = this.pool.prepare(this.connection, query);
 				if (query.contains("?")) {
 					this.resultSet = null;
 					return;
 				}
+				long start = this.start();
 				if (query.toLowerCase().startsWith("select"))
 					this.resultSet = this.statement.executeQuery();
 				else {
 					this.statement.executeUpdate();
 					this.resultSet = null;
 				}
+				this.executed(start);
 			} catch (SQLException e) {
+				this.close();
 				throw new InternalError(e);
 			}
 		}
 
+		/**
+		 * The start time of a statement execution, if it is timed.
+		 */
+		public long start() {
+			return this.instrumentation == null ? 0 : System.nanoTime();
+		}
+
+		/**
+		 * Reports a statement executed since the given start time.
+		 */
+		public void executed(long start) {
+			if (this.instrumentation != null)
+				this.instrumentation.executed(this.table, System.nanoTime()
+						- start);
+		}
+
+		/**
+		 * Releases the statement and returns the connection to the pool (or
+		 * closes it if the statement can't be released). Does nothing once
+		 * done.
+		 */
 		public void close() {
+			Connection connection = this.connection;
+			if (connection == null)
+				return;
+			this.connection = null;
 			try {
-				if (this.resultSet != null) {
+				if (this.resultSet != null)
 					this.resultSet.close();
-
-					this.resultSet = null;
-				}
-				if (this.statement != null) {
-					this.statement.close();
-					this.statement = null;
-				}
-				if (this.connection != null) {
-					// this.connection.close();
-					this.connection = null;
-				}
+				if (this.statement != null)
+					this.pool.release(connection, this.statement);
 			} catch (SQLException e) {
+				this.pool.invalidate(connection);
 				throw new InternalError(e);
+			} finally {
+				this.resultSet = null;
+				this.statement = null;
 			}
+			this.pool.release(connection);
 		}
 	}
 
 	private static class TableFetchStatus {
 		private String table;
-		public List<Object> index;
+		public String columns;
+		public SQLBuilder.Clause where;
+		public String order;
+		public Deque<Map<String, ?>> chunk;
+		public RowLayout layout;
+		public String[] queries;
+		public Object last;
 		public int position;
+		public int remaining;
+		public boolean done;
 
-		public TableFetchStatus(String table) {
+		public TableFetchStatus(String table, String columns,
+				SQLBuilder.Clause where, String order, Selection selection) {
 			this.table = table;
-			this.index = new ArrayList<Object>();
-			this.position = 0;
+			this.columns = columns;
+			this.where = where;
+			this.order = order;
+			this.chunk = new ArrayDeque<Map<String, ?>>();
+			this.layout = null;
+			this.queries = new String[2];
+			this.last = null;
+			this.position = selection.getOffset();
+			this.remaining = selection.getLimit();
+			this.done = false;
 		}
 	}
 
 	@Override
 	public Object select(String table) {
-		if (this.rowid == null || this.rowid.isEmpty())
-			return new ConnectionStatus(this.url, this.user, this.password,
-					"select * from " + table + ";");
-		else {
-			TableFetchStatus tfs = new TableFetchStatus(table);
-			ConnectionStatus cs = new ConnectionStatus(this.url, this.user,
-					this.password, "select " + this.rowid + " from " + table
-							+ ";");
+		return this.select(table, new Selection());
+	}
+
+	/**
+	 * Conditions built from {@link jeople.conditions.FieldCondition}s (and
+	 * their combinations) on existing columns are translated to SQL.
+	 */
+	@Override
+	public boolean canFilter(String table, Condition<?> condition) {
+		return SQLBuilder.canTranslate(this.getSchema(table), condition);
+	}
+
+	/**
+	 * {@link jeople.comparators.FieldComparator}s on existing columns are
+	 * translated to SQL.
+	 */
+	@Override
+	public boolean canOrder(String table, Comparator<?> comparator) {
+		return SQLBuilder.canTranslate(this.getSchema(table), comparator);
+	}
+
+	/**
+	 * Ranges are translated to a SQL <code>limit ? offset ?</code> clause,
+	 * when the database supports that syntax (see
+	 * {@link #supportsLimit(DatabaseMetaData)}), or in "ROWID" mode.
+	 */
+	@Override
+	public boolean canLimit(String table) {
+		if (this.rowid != null && !this.rowid.isEmpty())
+			return true;
+		Boolean supported = this.limitSupported;
+		if (supported == null) {
+			Connection connection = this.pool.borrow();
 			try {
-				while (cs.resultSet.next())
-					tfs.index.add(cs.resultSet.getObject(1));
+				supported = this.supportsLimit(connection.getMetaData());
 			} catch (SQLException e) {
 				throw new InternalError(e);
+			} finally {
+				this.pool.release(connection);
+			}
+			this.limitSupported = supported;
+		}
+		return supported;
+	}
+
+	/**
+	 * Whether the database supports the <code>limit ? offset ?</code>
+	 * syntax, from its product name (SQLite, MySQL, MariaDB, PostgreSQL, H2
+	 * and HSQLDB do). Checked once, subclasses for other databases can
+	 * override it.
+	 */
+	protected boolean supportsLimit(DatabaseMetaData metaData)
+			throws SQLException {
+		String name = metaData.getDatabaseProductName();
+		if (name == null)
+			return false;
+		name = name.toLowerCase();
+		for (String s : JDBCDataSource.LIMIT_DATABASES)
+			if (name.contains(s))
+				return true;
+		return false;
+	}
+
+	/**
+	 * The primary key from the table schema.
+	 */
+	@Override
+	public List<String> primaryKey(String table) {
+		return this.getSchema(table).getPrimaryKey();
+	}
+
+	@Override
+	public Object select(String table, Selection selection) {
+		TableSchema ts = this.getSchema(table);
+		SQLBuilder.Clause where = SQLBuilder.where(ts,
+				selection.getConditions());
+		String order = SQLBuilder.orderBy(ts, selection.getOrder());
+		String columns = JDBCDataSource.columns(ts, selection);
+		if (this.rowid != null && !this.rowid.isEmpty())
+			return new TableFetchStatus(table, columns, where, order,
+					selection);
+		String query = "select " + columns + " from " + table;
+		if (where.sql != null)
+			query += " where " + where.sql;
+		if (order != null)
+			query += " order by " + order;
+		if (selection.getLimit() >= 0)
+			query += " limit " + selection.getLimit() + " offset "
+					+ selection.getOffset();
+		query += ";";
+		ConnectionStatus cs = new ConnectionStatus(this, table, query);
+		this.executeQuery(cs, where, 1);
+		return cs;
+	}
+
+	/**
+	 * The select list of a selection: its columns (those existing in the
+	 * table), or all of them.
+	 */
+	private static String columns(TableSchema ts, Selection selection) {
+		if (selection.getColumns() == null)
+			return "*";
+		StringBuilder sb = new StringBuilder();
+		String sep = "";
+		for (String name : selection.getColumns()) {
+			TableSchema.Column c = ts.getColumn(name);
+			if (c == null)
+				continue;
+			sb.append(sep).append(c.getName());
+			sep = ", ";
+		}
+		return sb.length() == 0 ? "*" : sb.toString();
+	}
+
+	/**
+	 * Counts records with a SQL <code>select count(*)</code>.
+	 */
+	@Override
+	public long count(String table, Selection selection) {
+		SQLBuilder.Clause where = SQLBuilder.where(this.getSchema(table),
+				selection.getConditions());
+		String query = "select count(*) from " + table;
+		if (where.sql != null)
+			query += " where " + where.sql;
+		query += ";";
+		ConnectionStatus cs = new ConnectionStatus(this, table, query);
+		this.executeQuery(cs, where, 1);
+		try {
+			cs.resultSet.next();
+			return cs.resultSet.getLong(1);
+		} catch (SQLException e) {
+			throw new InternalError(e);
+		} finally {
+			cs.close();
+		}
+	}
+
+	/**
+	 * Aggregates are computed on existing columns.
+	 */
+	@Override
+	public boolean canAggregate(String table, String column) {
+		return this.getSchema(table).getColumn(column) != null;
+	}
+
+	/**
+	 * Computes an aggregate with a SQL <code>select sum(...)</code> (or
+	 * <code>avg</code>, <code>min</code>, <code>max</code>).
+	 */
+	@Override
+	public Object aggregate(String table, Selection selection,
+			Aggregate function, String column) {
+		TableSchema ts = this.getSchema(table);
+		TableSchema.Column c = ts.getColumn(column);
+		SQLBuilder.Clause where = SQLBuilder.where(ts,
+				selection.getConditions());
+		String query = "select " + function.toSQL() + "(" + c.getName()
+				+ ") from " + table;
+		if (where.sql != null)
+			query += " where " + where.sql;
+		query += ";";
+		ConnectionStatus cs = new ConnectionStatus(this, table, query);
+		this.executeQuery(cs, where, 1);
+		try {
+			cs.resultSet.next();
+			if (function == Aggregate.MIN || function == Aggregate.MAX)
+				return this.getColumnValue(cs.resultSet, 1, c.getTypeName());
+			return cs.resultSet.getObject(1);
+		} catch (SQLException e) {
+			throw new InternalError(e);
+		} finally {
+			cs.close();
+		}
+	}
+
+	/**
+	 * Counts records with a SQL <code>group by</code>.
+	 */
+	@Override
+	public Map<Object, Long> countBy(String table, Selection selection,
+			String column) {
+		TableSchema ts = this.getSchema(table);
+		TableSchema.Column c = ts.getColumn(column);
+		SQLBuilder.Clause where = SQLBuilder.where(ts,
+				selection.getConditions());
+		String query = "select " + c.getName() + ", count(*) from " + table;
+		if (where.sql != null)
+			query += " where " + where.sql;
+		query += " group by " + c.getName() + ";";
+		ConnectionStatus cs = new ConnectionStatus(this, table, query);
+		this.executeQuery(cs, where, 1);
+		try {
+			Map<Object, Long> counts = new LinkedHashMap<Object, Long>();
+			while (cs.resultSet.next())
+				counts.put(this.getColumnValue(cs.resultSet, 1,
+						c.getTypeName()), cs.resultSet.getLong(2));
+			return counts;
+		} catch (SQLException e) {
+			throw new InternalError(e);
+		} finally {
+			cs.close();
+		}
+	}
+
+	/**
+	 * Binds the clause parameters (starting at the given index) and executes
+	 * the status query, unless it has already been executed (queries without
+	 * parameters are executed on {@link ConnectionStatus} creation).
+	 */
+	private void executeQuery(ConnectionStatus cs, SQLBuilder.Clause clause,
+			int index) {
+		try {
+			for (int i = 0; i < clause.values.size(); ++i)
+				this.setColumnValue(cs.statement, index + i,
+						this.getColumnTypeName(cs.connection, cs.table,
+								clause.columns.get(i)), clause.values.get(i));
+			if (cs.resultSet == null) {
+				long start = cs.start();
+				cs.resultSet = cs.statement.executeQuery();
+				cs.executed(start);
 			}
+		} catch (SQLException e) {
+			cs.close();
+			throw new InternalError(e);
+		} catch (RuntimeException e) {
 			cs.close();
-			return tfs;
+			throw e;
 		}
 	}
 
+	/**
+	 * Number of prepared statements kept open by each pooled connection
+	 * ({@link #DEFAULT_STATEMENT_CACHE_SIZE} by default), 0 to close
+	 * statements after each use.
+	 */
+	public int getStatementCacheSize() {
+		return this.pool.getStatementCacheSize();
+	}
+
+	public void setStatementCacheSize(int size) {
+		this.pool.setStatementCacheSize(size);
+	}
+
+	/**
+	 * Number of records retrieved by each query in "ROWID" mode (500 by
+	 * default). The connection is released between two such queries.
+	 */
+	public int getFetchSize() {
+		return this.fetchSize;
+	}
+
+	public void setFetchSize(int fetchSize) {
+		if (fetchSize < 1)
+			throw new IllegalArgumentException("Invalid fetch size: "
+					+ fetchSize);
+		this.fetchSize = fetchSize;
+	}
+
 	// TODO use a proxy object instead of the actual ResultSet
 	protected Object getColumnValue(ResultSet resultSet, int index,
 			String typeName) {
@@ -168,17 +672,35 @@ public class JDBCDataSource extends DataSourceSupport {
 		}
 	}
 
-	private static String getColumnTypeName(Connection connection,
-			String table, String column) {
+	private String getColumnTypeName(Connection connection, String table,
+			String column) {
+		TableSchema.Column c = this.getSchema(connection, table).getColumn(
+				column);
+		if (c == null)
+			throw new InternalError("Table or column not found for " + table
+					+ "." + column);
+		return c.getTypeName();
+	}
+
+	/**
+	 * The layout of the rows of a ResultSet (the columns from
+	 * <code>firstColumn</code>), computed once per query.
+	 */
+	private RowLayout layout(Connection connection, String table,
+			ResultSet resultSet, int firstColumn) {
 		try {
-			ResultSet rs = connection.getMetaData().getColumns(null, null,
-					table, column);
-			if (!rs.next())
-				throw new InternalError("Table or column not found for " + table + "."
-						+ column);
-			String ret = rs.getString("TYPE_NAME");
-			rs.close();
-			return ret;
+			TableSchema ts = this.getSchema(connection, table);
+			ResultSetMetaData md = resultSet.getMetaData();
+			int count = md.getColumnCount() - firstColumn + 1;
+			String[] names = new String[count];
+			String[] types = new String[count];
+			for (int i = 0; i < count; ++i) {
+				names[i] = md.getColumnName(firstColumn + i);
+				TableSchema.Column c = ts.getColumn(names[i]);
+				types[i] = c != null ? c.getTypeName() : md
+						.getColumnTypeName(firstColumn + i);
+			}
+			return new RowLayout(names, types);
 		} catch (SQLException e) {
 			throw new InternalError(e);
 		}
@@ -187,45 +709,102 @@ public class JDBCDataSource extends DataSourceSupport {
 	/**
 	 * get data from an already positioned ResultSet
 	 */
-	private Map<String, ?> fetchData(ResultSet resultSet) {
-		try {
-			Map<String, Object> m = new TreeMap<String, Object>(
-					String.CASE_INSENSITIVE_ORDER);
-			ResultSetMetaData md = resultSet.getMetaData();
-			for (int i = 0; i < md.getColumnCount(); ++i)
-				m.put(md.getColumnName(i + 1),
-						this.getColumnValue(resultSet, i + 1,
-								md.getColumnTypeName(i + 1)));
-			return m;
-		} catch (SQLException e) {
-			throw new InternalError(e);
+	private Row fetchData(ResultSet resultSet, RowLayout layout,
+			int firstColumn) {
+		Object[] values = new Object[layout.size()];
+		for (int i = 0; i < values.length; ++i)
+			values[i] = this.getColumnValue(resultSet, firstColumn + i,
+					layout.getTypeName(i));
+		return new Row(layout, values);
+	}
+
+	/**
+	 * The SQL of the chunks of a "ROWID" mode select, built once per select
+	 * (the rowid of the last fetched record, the clause parameters, the chunk
+	 * size and offset being bound on each chunk).
+	 */
+	private String chunkQuery(TableFetchStatus tfs, boolean keyset) {
+		int i = keyset ? 1 : 0;
+		if (tfs.queries[i] != null)
+			return tfs.queries[i];
+		StringBuilder sb = new StringBuilder();
+		sb.append("select ").append(this.rowid).append(", ")
+				.append(tfs.columns).append(" from ").append(tfs.table);
+		String sep = " where ";
+		if (keyset) {
+			sb.append(sep).append(this.rowid).append(" > ?");
+			sep = " and ";
 		}
+		if (tfs.where.sql != null)
+			sb.append(sep).append(tfs.where.sql);
+		sb.append(" order by ");
+		if (tfs.order != null)
+			sb.append(tfs.order).append(", ");
+		sb.append(this.rowid).append(" limit ? offset ?;");
+		tfs.queries[i] = sb.toString();
+		return tfs.queries[i];
 	}
 
-	private Map<String, ?> fetchTFS(TableFetchStatus tfs) {
-		if (tfs.position >= tfs.index.size())
-			return null;
-		ConnectionStatus cs = new ConnectionStatus(this.url, this.user,
-				this.password, "select * from " + tfs.table + " where "
-						+ this.rowid + " = ?;");
+	/**
+	 * Loads the next chunk of records, then releases the connection.<br>
+	 * Without specific ordering, records are read by increasing rowid, after
+	 * the last one already fetched. Otherwise, chunks are read by offset (the
+	 * rowid only breaking ties).
+	 */
+	private void fetchChunk(TableFetchStatus tfs) {
+		int size = this.fetchSize;
+		if (tfs.remaining >= 0)
+			size = Math.min(size, tfs.remaining);
+		if (size == 0) {
+			tfs.done = true;
+			return;
+		}
+		boolean keyset = tfs.order == null && tfs.last != null;
+		ConnectionStatus cs = new ConnectionStatus(this, tfs.table,
+				this.chunkQuery(tfs, keyset));
+		int index = keyset ? 2 : 1;
 		try {
-			cs.statement.setObject(1, tfs.index.get(tfs.position));
-			cs.resultSet = cs.statement.executeQuery();
-			if (!cs.resultSet.next())
-				throw new InternalError("Record not found for " + tfs.table + "."
-						+ this.rowid + " = " + tfs.index.get(tfs.position));
-			Map<String, ?> m = this.fetchData(cs.resultSet);
-			if (cs.resultSet.next())
-				throw new InternalError("Multiple record found for " + tfs.table + "."
-						+ this.rowid + " = " + tfs.index.get(tfs.position));
+			if (keyset)
+				cs.statement.setObject(1, tfs.last);
+			int range = index + tfs.where.values.size();
+			cs.statement.setInt(range, size);
+			cs.statement.setInt(range + 1, tfs.position);
+		} catch (SQLException e) {
 			cs.close();
-			++tfs.position;
-			return m;
+			throw new InternalError(e);
+		}
+		this.executeQuery(cs, tfs.where, index);
+		try {
+			if (tfs.layout == null)
+				tfs.layout = this.layout(cs.connection, tfs.table,
+						cs.resultSet, 2);
+			int count = 0;
+			while (cs.resultSet.next()) {
+				tfs.last = cs.resultSet.getObject(1);
+				tfs.chunk.add(this.fetchData(cs.resultSet, tfs.layout, 2));
+				++count;
+			}
+			if (tfs.order != null)
+				tfs.position += count;
+			else
+				tfs.position = 0;
+			if (tfs.remaining >= 0)
+				tfs.remaining -= count;
+			if (count < size || tfs.remaining == 0)
+				tfs.done = true;
 		} catch (SQLException e) {
 			throw new InternalError(e);
+		} finally {
+			cs.close();
 		}
 	}
 
+	private Map<String, ?> fetchTFS(TableFetchStatus tfs) {
+		if (tfs.chunk.isEmpty() && !tfs.done)
+			this.fetchChunk(tfs);
+		return tfs.chunk.poll();
+	}
+
 	private Map<String, ?> fetchCS(ConnectionStatus cs) {
 		if (cs.resultSet == null)
 			return null;
@@ -234,12 +813,22 @@ public class JDBCDataSource extends DataSourceSupport {
 				cs.close();
 				return null;
 			}
-			return this.fetchData(cs.resultSet);
+			if (cs.layout == null)
+				cs.layout = this.layout(cs.connection, cs.table,
+						cs.resultSet, 1);
+			return this.fetchData(cs.resultSet, cs.layout, 1);
 		} catch (SQLException e) {
+			cs.close();
 			throw new InternalError(e);
 		}
 	}
 
+	@Override
+	public void close(Object status) {
+		if (status instanceof ConnectionStatus)
+			((ConnectionStatus) status).close();
+	}
+
 	@Override
 	public Map<String, ?> fetch(Object status) {
 		if (this.rowid == null || this.rowid.isEmpty())
@@ -248,96 +837,342 @@ public class JDBCDataSource extends DataSourceSupport {
 			return this.fetchTFS((TableFetchStatus) status);
 	}
 
+	/**
+	 * The SQL of an operation on a table, built once per operation, table and
+	 * column lists.
+	 */
+	private String template(String operation, String table,
+			List<String> columns, List<String> keycols) {
+		List<Object> key = Arrays.<Object> asList(operation, table, columns,
+				keycols);
+		String query = this.templates.get(key);
+		if (query != null)
+			return query;
+		StringBuilder sb = new StringBuilder();
+		String sep = "";
+		if (operation.equals("insert")) {
+			sb.append("insert into ").append(table).append("(");
+			for (String s : columns) {
+				sb.append(sep).append(s);
+				sep = ", ";
+			}
+			sb.append(") values(");
+			sep = "";
+			for (int i = 0; i < columns.size(); ++i) {
+				sb.append(sep).append("?");
+				sep = ", ";
+			}
+			sb.append(")");
+		} else {
+			if (operation.equals("update")) {
+				sb.append("update ").append(table).append(" set ");
+				for (String s : columns) {
+					sb.append(sep).append(s).append(" = ?");
+					sep = ", ";
+				}
+			} else
+				sb.append("delete from ").append(table);
+			sb.append(" where ");
+			sep = "";
+			for (String s : keycols) {
+				sb.append(sep).append(s).append(" = ?");
+				sep = " and ";
+			}
+		}
+		query = sb.append(";").toString();
+		this.templates.put(key, query);
+		return query;
+	}
+
+	private String insertQuery(String table, List<String> columns) {
+		return this.template("insert", table, columns, null);
+	}
+
+	private String updateQuery(String table, List<String> datacols,
+			List<String> keycols) {
+		return this.template("update", table, datacols, keycols);
+	}
+
+	private String deleteQuery(String table, List<String> keycols) {
+		return this.template("delete", table, null, keycols);
+	}
+
 	@Override
 	public void insert(String table, Map<String, ?> data) {
 		List<String> columns = new ArrayList<String>(data.keySet());
-		String query = "insert into " + table + "(";
-		String sep = "";
-		for (String s : columns) {
-			query += sep + s;
-			sep = ", ";
-		}
-		query += ") values(";
-		sep = "";
-		for (int i = 0; i < columns.size(); ++i) {
-			query += sep + "?";
-			sep = ", ";
-		}
-		query += ");";
-		ConnectionStatus cs = new ConnectionStatus(this.url, this.user,
-				this.password, query);
-		for (int i = 0; i < columns.size(); ++i)
-			this.setColumnValue(cs.statement, i + 1, JDBCDataSource
-					.getColumnTypeName(cs.connection, table, columns.get(i)),
-					data.get(columns.get(i)));
+		ConnectionStatus cs = new ConnectionStatus(this, table,
+				this.insertQuery(table, columns));
 		try {
-			if (cs.statement.executeUpdate() != 1)
-				throw new InternalError("Affected more than one record");
+			for (int i = 0; i < columns.size(); ++i)
+				this.setColumnValue(cs.statement, i + 1,
+						this.getColumnTypeName(cs.connection, table,
+								columns.get(i)), data.get(columns.get(i)));
+			long start = cs.start();
+			int count = cs.statement.executeUpdate();
+			cs.executed(start);
+			JDBCDataSource.checkCount(count);
 		} catch (SQLException e) {
 			throw new InternalError(e);
+		} finally {
+			cs.close();
 		}
-		cs.close();
 	}
 
 	@Override
 	public void update(String table, Map<String, ?> key, Map<String, ?> data) {
 		List<String> datacols = new ArrayList<String>(data.keySet());
 		List<String> keycols = new ArrayList<String>(key.keySet());
-		String query = "update " + table + " set ";
-		String sep = "";
-		for (String s : datacols) {
-			query += sep + s + " = ?";
-			sep = ", ";
-		}
-		query += " where ";
-		sep = "";
-		for (String s : keycols) {
-			query += sep + s + " = ?";
-			sep = " and ";
-		}
-		query += ";";
-		ConnectionStatus cs = new ConnectionStatus(this.url, this.user,
-				this.password, query);
-		for (int i = 0; i < datacols.size(); ++i)
-			this.setColumnValue(cs.statement, i + 1, JDBCDataSource
-					.getColumnTypeName(cs.connection, table, datacols.get(i)),
-					data.get(datacols.get(i)));
-		for (int i = 0; i < keycols.size(); ++i)
-			this.setColumnValue(cs.statement, datacols.size() + i + 1,
-					JDBCDataSource.getColumnTypeName(cs.connection, table,
-							keycols.get(i)), key.get(keycols.get(i)));
+		ConnectionStatus cs = new ConnectionStatus(this, table,
+				this.updateQuery(table, datacols, keycols));
 		try {
-			if (cs.statement.executeUpdate() != 1)
-				throw new InternalError("Affected more than one record");
+			for (int i = 0; i < datacols.size(); ++i)
+				this.setColumnValue(cs.statement, i + 1,
+						this.getColumnTypeName(cs.connection, table,
+								datacols.get(i)), data.get(datacols.get(i)));
+			for (int i = 0; i < keycols.size(); ++i)
+				this.setColumnValue(cs.statement, datacols.size() + i + 1,
+						this.getColumnTypeName(cs.connection, table,
+								keycols.get(i)), key.get(keycols.get(i)));
+			long start = cs.start();
+			int count = cs.statement.executeUpdate();
+			cs.executed(start);
+			JDBCDataSource.checkCount(count);
 		} catch (SQLException e) {
 			throw new InternalError(e);
+		} finally {
+			cs.close();
 		}
-		cs.close();
 	}
 
 	@Override
 	public void delete(String table, Map<String, ?> key) {
 		List<String> columns = new ArrayList<String>(key.keySet());
-		String query = "delete from " + table + " where ";
-		String sep = "";
-		for (String s : columns) {
-			query += sep + s + " = ?";
-			sep = " and ";
+		ConnectionStatus cs = new ConnectionStatus(this, table,
+				this.deleteQuery(table, columns));
+		try {
+			for (int i = 0; i < columns.size(); ++i)
+				this.setColumnValue(cs.statement, i + 1,
+						this.getColumnTypeName(cs.connection, table,
+								columns.get(i)), key.get(columns.get(i)));
+			long start = cs.start();
+			int count = cs.statement.executeUpdate();
+			cs.executed(start);
+			JDBCDataSource.checkCount(count);
+		} catch (SQLException e) {
+			throw new InternalError(e);
+		} finally {
+			cs.close();
 		}
-		query += ";";
-		ConnectionStatus cs = new ConnectionStatus(this.url, this.user,
-				this.password, query);
-		for (int i = 0; i < columns.size(); ++i)
-			this.setColumnValue(cs.statement, i + 1, JDBCDataSource
-					.getColumnTypeName(cs.connection, table, columns.get(i)),
-					key.get(columns.get(i)));
+	}
+
+	// ///////////////////////////////// BATCH OPERATIONS
+
+	/**
+	 * Statements sharing the same SQL (ie. same table and column set),
+	 * executed as a JDBC batch.
+	 */
+	private static class BatchGroup {
+		public List<String> columns;
+		public List<Object[]> rows;
+
+		public BatchGroup(List<String> columns) {
+			this.columns = columns;
+			this.rows = new ArrayList<Object[]>();
+		}
+
+		/**
+		 * Adds a row, reading the first columns from <code>first</code> and
+		 * the remaining ones (if any) from <code>second</code>.
+		 */
+		public void add(Map<String, ?> first, Map<String, ?> second) {
+			Object[] row = new Object[this.columns.size()];
+			for (int i = 0; i < row.length; ++i)
+				row[i] = i < first.size() ? first.get(this.columns.get(i))
+						: second.get(this.columns.get(i));
+			this.rows.add(row);
+		}
+	}
+
+	private static BatchGroup group(Map<String, BatchGroup> groups,
+			String query, List<String> columns) {
+		BatchGroup g = groups.get(query);
+		if (g == null) {
+			g = new BatchGroup(columns);
+			groups.put(query, g);
+		}
+		return g;
+	}
+
+	private static List<String> sortedColumns(Map<String, ?> data) {
+		return new ArrayList<String>(new TreeMap<String, Object>(data)
+				.keySet());
+	}
+
+	/**
+	 * Number of statements sent to the database in a single JDBC batch (1000
+	 * by default).
+	 */
+	public int getBatchSize() {
+		return this.batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Invalid batch size: "
+					+ batchSize);
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public void insertAll(String table, List<Map<String, ?>> data) {
+		Map<String, BatchGroup> groups = new LinkedHashMap<String, BatchGroup>();
+		for (Map<String, ?> d : data) {
+			List<String> columns = JDBCDataSource.sortedColumns(d);
+			JDBCDataSource.group(groups, this.insertQuery(table, columns),
+					columns).add(d, null);
+		}
+		this.executeBatch(table, groups);
+	}
+
+	@Override
+	public void updateAll(String table, List<Map<String, ?>> keys,
+			List<Map<String, ?>> data) {
+		Map<String, BatchGroup> groups = new LinkedHashMap<String, BatchGroup>();
+		for (int i = 0; i < keys.size(); ++i) {
+			List<String> datacols = JDBCDataSource.sortedColumns(data.get(i));
+			List<String> keycols = JDBCDataSource.sortedColumns(keys.get(i));
+			List<String> columns = new ArrayList<String>(datacols);
+			columns.addAll(keycols);
+			JDBCDataSource.group(groups,
+					this.updateQuery(table, datacols, keycols), columns).add(
+					data.get(i), keys.get(i));
+		}
+		this.executeBatch(table, groups);
+	}
+
+	@Override
+	public void deleteAll(String table, List<Map<String, ?>> keys) {
+		Map<String, BatchGroup> groups = new LinkedHashMap<String, BatchGroup>();
+		for (Map<String, ?> k : keys) {
+			List<String> columns = JDBCDataSource.sortedColumns(k);
+			JDBCDataSource.group(groups, this.deleteQuery(table, columns),
+					columns).add(k, null);
+		}
+		this.executeBatch(table, groups);
+	}
+
+	private static void checkBatch(int[] counts) {
+		for (int c : counts)
+			if (c != Statement.SUCCESS_NO_INFO)
+				JDBCDataSource.checkCount(c);
+	}
+
+	private static void checkCount(int count) {
+		if (count != 1)
+			throw new InternalError("Affected " + count
+					+ " records instead of one");
+	}
+
+	private void executeBatch(PreparedStatement statement, String table,
+			Instrumentation in) throws SQLException {
+		long start = in == null ? 0 : System.nanoTime();
+		JDBCDataSource.checkBatch(statement.executeBatch());
+		if (in != null)
+			in.executed(table, System.nanoTime() - start);
+	}
+
+	/**
+	 * Borrows the connection of the batches, and keeps it for the calling
+	 * thread until the transaction ends.
+	 */
+	@Override
+	protected Object beginWrite() {
+		if (this.transaction.get() != null)
+			return null;
+		Connection connection = this.pool.borrow();
+		try {
+			connection.setAutoCommit(false);
+		} catch (SQLException e) {
+			this.pool.release(connection);
+			throw new InternalError(e);
+		}
+		this.transaction.set(connection);
+		return connection;
+	}
+
+	@Override
+	protected void commitWrite(Object transaction) {
+		Connection connection = (Connection) transaction;
+		this.transaction.remove();
 		try {
-			if (cs.statement.executeUpdate() != 1)
-				throw new InternalError("Affected more than one record");
+			connection.commit();
+		} catch (SQLException e) {
+			throw new InternalError(e);
+		} finally {
+			this.pool.release(connection);
+		}
+	}
+
+	/**
+	 * Releasing the connection rolls it back.
+	 */
+	@Override
+	protected void rollbackWrite(Object transaction) {
+		this.transaction.remove();
+		this.pool.release((Connection) transaction);
+	}
+
+	/**
+	 * Executes the statement groups of one operation on one table, sending
+	 * at most {@link #getBatchSize()} statements per batch. Within the
+	 * transaction of the calling thread if there is one, otherwise in a
+	 * transaction of their own.
+	 */
+	private void executeBatch(String table, Map<String, BatchGroup> groups) {
+		if (groups.isEmpty())
+			return;
+		Instrumentation in = this.getInstrumentation();
+		Connection connection = this.transaction.get();
+		boolean own = connection == null;
+		if (own)
+			connection = this.pool.borrow();
+		try {
+			if (own)
+				connection.setAutoCommit(false);
+			for (Map.Entry<String, BatchGroup> e : groups.entrySet()) {
+				BatchGroup g = e.getValue();
+				String[] types = new String[g.columns.size()];
+				for (int i = 0; i < types.length; ++i)
+					types[i] = this.getColumnTypeName(connection, table,
+							g.columns.get(i));
+				PreparedStatement statement = this.pool.prepare(connection,
+						e.getKey());
+				try {
+					int pending = 0;
+					for (Object[] row : g.rows) {
+						for (int i = 0; i < row.length; ++i)
+							this.setColumnValue(statement, i + 1, types[i],
+									row[i]);
+						statement.addBatch();
+						if (++pending == this.batchSize) {
+							this.executeBatch(statement, table, in);
+							pending = 0;
+						}
+					}
+					if (pending > 0)
+						this.executeBatch(statement, table, in);
+				} finally {
+					this.pool.release(connection, statement);
+				}
+			}
+			if (own)
+				connection.commit();
 		} catch (SQLException e) {
 			throw new InternalError(e);
+		} finally {
+			if (own)
+				this.pool.release(connection);
 		}
-		cs.close();
 	}
 
 }
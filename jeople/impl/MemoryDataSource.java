@@ -0,0 +1,626 @@
+package jeople.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import jeople.Condition;
+import jeople.DataSource;
+import jeople.Entity;
+import jeople.comparators.FieldComparator;
+import jeople.conditions.AllOf;
+import jeople.conditions.Equals;
+import jeople.conditions.FieldCondition;
+import jeople.conditions.In;
+import jeople.conditions.IsNull;
+import jeople.conditions.Range;
+import jeople.errors.InternalError;
+import jeople.support.DataSourceSupport;
+import jeople.support.EntityModel;
+import jeople.support.Row;
+import jeople.support.RowLayout;
+import jeople.support.Selection;
+import jeople.support.Values;
+
+/**
+ * A {@link DataSource} keeping its records in memory, for reference data and
+ * tests. Tables are created on their first insert.<br>
+ * Records are stored as immutable {@link Row}s in concurrent maps: reads
+ * never lock, and see a (weakly consistent) snapshot of the table; writes
+ * lock the table they modify only.<br>
+ * All the conditions on attributes (and their combinations) are evaluated
+ * on the records, without building entities, and so are orderings and
+ * limits. Secondary indexes (see
+ * {@link #createIndex(Class, String, boolean)}) speed up {@link Equals},
+ * {@link In} and {@link IsNull} conditions (and {@link Range}s, and
+ * orderings, for sorted indexes) instead of scanning the whole table.<br>
+ * Numbers are compared by value, as everywhere else (see {@link Values}).
+ *
+ * @author Reda El Khattabi
+ */
+public class MemoryDataSource extends DataSourceSupport {
+
+	/**
+	 * A hash index key, numbers being compared by value.
+	 */
+	private static class Value {
+		private Object value;
+
+		public Value(Object value) {
+			this.value = value;
+		}
+
+		@Override
+		public int hashCode() {
+			return Values.hashCode(this.value);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Value
+					&& Values.equal(this.value, ((Value) obj).value);
+		}
+	}
+
+	/**
+	 * The ids of the records by value of a column, null values apart.
+	 */
+	private static class Index {
+		public String column;
+		public boolean sorted;
+		public ConcurrentMap<Object, Set<Long>> values;
+		public Set<Long> nulls;
+
+		public Index(String column, boolean sorted) {
+			this.column = column;
+			this.sorted = sorted;
+			if (sorted)
+				this.values = new ConcurrentSkipListMap<Object, Set<Long>>(
+						new Comparator<Object>() {
+							@Override
+							public int compare(Object o1, Object o2) {
+								return Values.compare(o1, o2);
+							}
+						});
+			else
+				this.values = new ConcurrentHashMap<Object, Set<Long>>();
+			this.nulls = ConcurrentHashMap.newKeySet();
+		}
+
+		private Object key(Object value) {
+			return this.sorted ? value : new Value(value);
+		}
+
+		public void add(Long id, Row row) {
+			Object v = row.get(this.column);
+			if (v == null) {
+				this.nulls.add(id);
+				return;
+			}
+			Set<Long> ids = this.values.get(this.key(v));
+			if (ids == null) {
+				ids = ConcurrentHashMap.newKeySet();
+				Set<Long> old = this.values.putIfAbsent(this.key(v), ids);
+				if (old != null)
+					ids = old;
+			}
+			ids.add(id);
+		}
+
+		public void remove(Long id, Row row) {
+			Object v = row.get(this.column);
+			if (v == null) {
+				this.nulls.remove(id);
+				return;
+			}
+			Set<Long> ids = this.values.get(this.key(v));
+			if (ids != null) {
+				ids.remove(id);
+				if (ids.isEmpty())
+					this.values.remove(this.key(v), ids);
+			}
+		}
+
+		/**
+		 * The ids of the records with the given value.
+		 */
+		public Collection<Long> get(Object value) {
+			if (value == null)
+				return this.nulls;
+			Set<Long> ids = this.values.get(this.key(value));
+			return ids != null ? ids : Collections.<Long> emptySet();
+		}
+
+		/**
+		 * The ids of the records in the given range (sorted indexes only),
+		 * by increasing value.
+		 */
+		public Collection<Long> range(Range<?> range) {
+			NavigableMap<Object, Set<Long>> m = (ConcurrentNavigableMap<Object, Set<Long>>) this.values;
+			if (range.getFrom() != null)
+				m = m.tailMap(range.getFrom(), range.isFromInclusive());
+			if (range.getTo() != null)
+				m = m.headMap(range.getTo(), range.isToInclusive());
+			List<Long> ids = new ArrayList<Long>();
+			for (Set<Long> s : m.values())
+				ids.addAll(MemoryDataSource.sorted(s));
+			return ids;
+		}
+
+		/**
+		 * All the record ids, in column order (null values first in
+		 * ascending order, last in descending order).
+		 */
+		public Iterator<Long> ordered(final boolean descending) {
+			final Iterator<Set<Long>> sets = descending ? ((ConcurrentNavigableMap<Object, Set<Long>>) this.values)
+					.descendingMap().values().iterator()
+					: this.values.values().iterator();
+			final Collection<Long> nulls = this.nulls;
+			return new Iterator<Long>() {
+				private Iterator<Long> current = descending ? Collections
+						.<Long> emptyIterator() : MemoryDataSource.sorted(
+						nulls).iterator();
+				private boolean nullsDone = !descending;
+
+				@Override
+				public boolean hasNext() {
+					while (!this.current.hasNext()) {
+						if (sets.hasNext())
+							this.current = MemoryDataSource.sorted(
+									sets.next()).iterator();
+						else if (!this.nullsDone) {
+							this.current = MemoryDataSource.sorted(nulls)
+									.iterator();
+							this.nullsDone = true;
+						} else
+							return false;
+					}
+					return true;
+				}
+
+				@Override
+				public Long next() {
+					this.hasNext();
+					return this.current.next();
+				}
+			};
+		}
+	}
+
+	/**
+	 * The records of a table, by increasing id (insertion order).
+	 */
+	private static class Table {
+		public ConcurrentSkipListMap<Long, Row> rows;
+		public ConcurrentMap<String, Index> indexes;
+		public ConcurrentMap<List<String>, RowLayout> layouts;
+		public long nextId;
+
+		public Table() {
+			this.rows = new ConcurrentSkipListMap<Long, Row>();
+			this.indexes = new ConcurrentHashMap<String, Index>();
+			this.layouts = new ConcurrentHashMap<List<String>, RowLayout>();
+			this.nextId = 0;
+		}
+
+		public Index index(String column) {
+			return this.indexes.get(column.toLowerCase());
+		}
+
+		/**
+		 * The record as an immutable row, values that can be changed in place
+		 * being copied (the caller keeps its own).
+		 */
+		public Row row(Map<String, ?> data) {
+			if (data instanceof Row)
+				return ((Row) data).copy();
+			String[] names = data.keySet().toArray(new String[data.size()]);
+			List<String> key = Arrays.asList(names);
+			RowLayout layout = this.layouts.get(key);
+			if (layout == null) {
+				layout = new RowLayout(names, null);
+				RowLayout old = this.layouts.putIfAbsent(key, layout);
+				if (old != null)
+					layout = old;
+			}
+			Object[] values = new Object[names.length];
+			for (int i = 0; i < names.length; ++i)
+				values[i] = Values.copy(data.get(names[i]));
+			return new Row(layout, values);
+		}
+
+		// writes, called with the table locked
+
+		public void add(Row row) {
+			Long id = ++this.nextId;
+			this.rows.put(id, row);
+			for (Index i : this.indexes.values())
+				i.add(id, row);
+		}
+
+		public void remove(Long id) {
+			Row row = this.rows.remove(id);
+			if (row == null)
+				return;
+			for (Index i : this.indexes.values())
+				i.remove(id, row);
+		}
+
+		public void replace(Long id, Row row) {
+			Row old = this.rows.put(id, row);
+			for (Index i : this.indexes.values()) {
+				if (old != null)
+					i.remove(id, old);
+				i.add(id, row);
+			}
+		}
+
+		/**
+		 * The id of the only record with the given key values.
+		 */
+		public Long find(Map<String, ?> key) {
+			Collection<Long> candidates = null;
+			for (Map.Entry<String, ?> e : key.entrySet()) {
+				Index i = this.index(e.getKey());
+				if (i != null) {
+					candidates = i.get(e.getValue());
+					break;
+				}
+			}
+			Iterator<Long> ids = candidates != null ? candidates.iterator()
+					: this.rows.keySet().iterator();
+			Long found = null;
+			int count = 0;
+			while (ids.hasNext()) {
+				Long id = ids.next();
+				Row row = this.rows.get(id);
+				if (row == null || !RowMatcher.matches(key, row))
+					continue;
+				found = id;
+				++count;
+			}
+			if (count != 1)
+				throw new InternalError("Affected " + count
+						+ " records instead of one");
+			return found;
+		}
+	}
+
+	/**
+	 * An iteration over the records of a table: candidate records, checked
+	 * against the conditions, then restricted to the requested range.
+	 */
+	private static class ScanStatus {
+		public ConcurrentSkipListMap<Long, Row> rows;
+		public Iterator<Long> ids;
+		public Iterator<Row> sorted;
+		public List<Condition<?>> conditions;
+		public int skip;
+		public int remaining;
+
+		public ScanStatus(Table table, Selection selection) {
+			this.rows = table.rows;
+			this.ids = null;
+			this.sorted = null;
+			this.conditions = selection.getConditions();
+			this.skip = selection.getOffset();
+			this.remaining = selection.getLimit();
+		}
+	}
+
+	private ConcurrentMap<String, Table> tables;
+
+	public MemoryDataSource() {
+		this.tables = new ConcurrentHashMap<String, Table>();
+	}
+
+	private Table table(String name) {
+		String key = name.toLowerCase();
+		Table t = this.tables.get(key);
+		if (t == null) {
+			t = new Table();
+			Table old = this.tables.putIfAbsent(key, t);
+			if (old != null)
+				t = old;
+		}
+		return t;
+	}
+
+	/**
+	 * Indexes the given attribute of the entities, to look records up by
+	 * value instead of scanning their table.
+	 *
+	 * @param sorted
+	 *            whether the index is sorted (and can also be used for ranges
+	 *            and orderings), or a hash index (for equality only)
+	 */
+	public void createIndex(Class<? extends Entity> type, String field,
+			boolean sorted) {
+		EntityModel<?> model = EntityModel.of(type);
+		EntityModel.Attribute a = model.getAttribute(field);
+		if (a == null)
+			throw new IllegalArgumentException("Unknown attribute " + field
+					+ " in " + type.getName());
+		this.createIndex(model.getTable(), a.getName(), sorted);
+	}
+
+	/**
+	 * Indexes the given column of the table, see
+	 * {@link #createIndex(Class, String, boolean)}. Replaces any index
+	 * already on that column.
+	 */
+	public void createIndex(String table, String column, boolean sorted) {
+		Table t = this.table(table);
+		synchronized (t) {
+			Index i = new Index(column, sorted);
+			for (Map.Entry<Long, Row> e : t.rows.entrySet())
+				i.add(e.getKey(), e.getValue());
+			t.indexes.put(column.toLowerCase(), i);
+		}
+	}
+
+	public void dropIndex(String table, String column) {
+		Table t = this.table(table);
+		synchronized (t) {
+			t.indexes.remove(column.toLowerCase());
+		}
+	}
+
+	/**
+	 * Number of records in the table.
+	 */
+	public int size(String table) {
+		return this.table(table).rows.size();
+	}
+
+	/**
+	 * Deletes all the records of the table (its indexes are kept).
+	 */
+	public void clear(String table) {
+		Table t = this.table(table);
+		synchronized (t) {
+			for (Long id : new ArrayList<Long>(t.rows.keySet()))
+				t.remove(id);
+		}
+	}
+
+	private static Collection<Long> sorted(Collection<Long> ids) {
+		if (ids instanceof TreeSet)
+			return ids;
+		List<Long> l = new ArrayList<Long>(ids);
+		Collections.sort(l);
+		return l;
+	}
+
+	/**
+	 * The ids of the records possibly satisfying the condition, from an
+	 * index, or null if no index applies.
+	 */
+	private static Collection<Long> lookup(Table table, Condition<?> condition) {
+		if (condition instanceof AllOf) {
+			Collection<Long> best = null;
+			for (Condition<?> c : ((AllOf<?>) condition).getConditions()) {
+				Collection<Long> ids = MemoryDataSource.lookup(table, c);
+				if (ids != null && (best == null || ids.size() < best.size()))
+					best = ids;
+			}
+			return best;
+		}
+		if (!(condition instanceof FieldCondition))
+			return null;
+		Index index = table.index(((FieldCondition<?>) condition).getField());
+		if (index == null)
+			return null;
+		if (condition instanceof Equals)
+			return index.get(((Equals<?>) condition).getValue());
+		if (condition instanceof IsNull)
+			return index.nulls;
+		if (condition instanceof In) {
+			// values may repeat, or be equal numbers of different types
+			Set<Long> ids = new TreeSet<Long>();
+			for (Object v : ((In<?>) condition).getValues())
+				if (v != null)
+					ids.addAll(index.get(v));
+			return ids;
+		}
+		if (condition instanceof Range && index.sorted)
+			return index.range((Range<?>) condition);
+		return null;
+	}
+
+	/**
+	 * The sorted index giving the order of the comparator, if any.
+	 */
+	private static Index ordering(Table table, FieldComparator<?> comparator) {
+		if (comparator.getFields().size() != 1)
+			return null;
+		Index index = table.index(comparator.getFields().get(0));
+		return index != null && index.sorted ? index : null;
+	}
+
+	// ///////////////////////////////// CUSTOMIZATIONS
+
+	@Override
+	protected Object select(String table) {
+		return this.select(table, new Selection());
+	}
+
+	/**
+	 * All the conditions on attributes, and their combinations, are
+	 * evaluated on the records.
+	 */
+	@Override
+	protected boolean canFilter(String table, Condition<?> condition) {
+		return RowMatcher.canEvaluate(condition);
+	}
+
+	@Override
+	protected boolean canOrder(String table, Comparator<?> comparator) {
+		return comparator instanceof FieldComparator;
+	}
+
+	@Override
+	protected boolean canLimit(String table) {
+		return true;
+	}
+
+	/**
+	 * Reads the records from the most selective index lookup if there is
+	 * one, in the order of a sorted index on the ordering attribute if there
+	 * is one (records are then never sorted, and the iteration stops as soon
+	 * as the range is read), or else scans the table.
+	 */
+	@Override
+	protected Object select(String table, Selection selection) {
+		Table t = this.table(table);
+		ScanStatus ss = new ScanStatus(t, selection);
+		Collection<Long> candidates = null;
+		for (Condition<?> c : ss.conditions) {
+			Collection<Long> ids = MemoryDataSource.lookup(t, c);
+			if (ids != null
+					&& (candidates == null || ids.size() < candidates.size()))
+				candidates = ids;
+		}
+		FieldComparator<?> order = (FieldComparator<?>) selection.getOrder();
+		if (order == null) {
+			ss.ids = candidates != null ? MemoryDataSource.sorted(candidates)
+					.iterator() : t.rows.keySet().iterator();
+			return ss;
+		}
+		Index index = MemoryDataSource.ordering(t, order);
+		if (index != null
+				&& (candidates == null || candidates.size() > t.rows.size() / 8)) {
+			ss.ids = index.ordered(order.isDescending());
+			return ss;
+		}
+		// sort the matching records, the range is applied while fetching
+		Iterator<Long> ids = candidates != null ? MemoryDataSource.sorted(
+				candidates).iterator() : t.rows.keySet().iterator();
+		List<Row> rows = new ArrayList<Row>();
+		while (ids.hasNext()) {
+			Row row = t.rows.get(ids.next());
+			if (row != null && RowMatcher.matches(ss.conditions, row))
+				rows.add(row);
+		}
+		Collections.sort(rows, RowMatcher.comparator(order));
+		ss.sorted = rows.iterator();
+		ss.conditions = Collections.emptyList();
+		return ss;
+	}
+
+	@Override
+	protected Map<String, ?> fetch(Object status) {
+		ScanStatus ss = (ScanStatus) status;
+		while (ss.remaining != 0) {
+			Row row;
+			if (ss.sorted != null) {
+				if (!ss.sorted.hasNext())
+					return null;
+				row = ss.sorted.next();
+			} else {
+				if (!ss.ids.hasNext())
+					return null;
+				row = ss.rows.get(ss.ids.next());
+				if (row == null
+						|| !RowMatcher.matches(ss.conditions, row))
+					continue;
+			}
+			if (ss.skip > 0) {
+				--ss.skip;
+				continue;
+			}
+			if (ss.remaining > 0)
+				--ss.remaining;
+			// readers get their own dates and arrays
+			return row.copy();
+		}
+		return null;
+	}
+
+	@Override
+	protected long count(String table, Selection selection) {
+		ScanStatus ss = (ScanStatus) this.select(table, selection);
+		long count = 0;
+		while (this.fetch(ss) != null)
+			++count;
+		return count;
+	}
+
+	@Override
+	protected void insert(String table, Map<String, ?> data) {
+		Table t = this.table(table);
+		Row row = t.row(data);
+		synchronized (t) {
+			t.add(row);
+		}
+	}
+
+	/**
+	 * Changes only the given columns of the record, whose other values are
+	 * kept.
+	 */
+	@Override
+	protected void update(String table, Map<String, ?> key,
+			Map<String, ?> data) {
+		Table t = this.table(table);
+		synchronized (t) {
+			Long id = t.find(key);
+			Row old = t.rows.get(id);
+			RowLayout layout = old.getLayout();
+			Object[] values = new Object[layout.size()];
+			for (int i = 0; i < values.length; ++i)
+				values[i] = old.get(i);
+			Map<String, Object> added = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, ?> e : data.entrySet()) {
+				int i = layout.indexOf(e.getKey());
+				if (i >= 0)
+					values[i] = Values.copy(e.getValue());
+				else
+					added.put(e.getKey(), e.getValue());
+			}
+			Row row = new Row(layout, values);
+			if (!added.isEmpty()) {
+				added.putAll(row);
+				row = t.row(added);
+			}
+			t.replace(id, row);
+		}
+	}
+
+	@Override
+	protected void delete(String table, Map<String, ?> key) {
+		Table t = this.table(table);
+		synchronized (t) {
+			t.remove(t.find(key));
+		}
+	}
+
+	/**
+	 * Inserts all the records while locking the table once.
+	 */
+	@Override
+	protected void insertAll(String table, List<Map<String, ?>> data) {
+		Table t = this.table(table);
+		List<Row> rows = new ArrayList<Row>(data.size());
+		for (Map<String, ?> d : data)
+			rows.add(t.row(d));
+		synchronized (t) {
+			for (Row r : rows)
+				t.add(r);
+		}
+	}
+
+}
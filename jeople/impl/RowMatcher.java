@@ -0,0 +1,117 @@
+package jeople.impl;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import jeople.Condition;
+import jeople.comparators.FieldComparator;
+import jeople.conditions.AllOf;
+import jeople.conditions.FieldCondition;
+import jeople.conditions.Not;
+import jeople.conditions.OneOf;
+import jeople.support.Row;
+import jeople.support.Values;
+
+/**
+ * Evaluation of conditions and orderings directly on records, for data
+ * sources that hold their records themselves (entities are only built for
+ * matching records).
+ *
+ * @author Reda El Khattabi
+ */
+class RowMatcher {
+
+	private RowMatcher() {
+	}
+
+	/**
+	 * Whether the condition can be evaluated on records: conditions on
+	 * attributes and their combinations.
+	 */
+	static boolean canEvaluate(Condition<?> condition) {
+		if (condition instanceof FieldCondition)
+			return true;
+		if (condition instanceof AllOf) {
+			for (Condition<?> c : ((AllOf<?>) condition).getConditions())
+				if (!RowMatcher.canEvaluate(c))
+					return false;
+			return true;
+		}
+		if (condition instanceof OneOf) {
+			for (Condition<?> c : ((OneOf<?>) condition).getConditions())
+				if (!RowMatcher.canEvaluate(c))
+					return false;
+			return true;
+		}
+		if (condition instanceof Not)
+			return RowMatcher.canEvaluate(((Not<?>) condition).getCondition());
+		return false;
+	}
+
+	/**
+	 * Whether the record has the given key values.
+	 */
+	static boolean matches(Map<String, ?> key, Row row) {
+		for (Map.Entry<String, ?> e : key.entrySet())
+			if (!Values.equal(e.getValue(), row.get(e.getKey())))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Evaluates a condition accepted by {@link #canEvaluate(Condition)}.
+	 */
+	static boolean matches(Condition<?> condition, Row row) {
+		if (condition instanceof FieldCondition) {
+			FieldCondition<?> fc = (FieldCondition<?>) condition;
+			return fc.test(row.get(fc.getField()));
+		}
+		if (condition instanceof AllOf) {
+			for (Condition<?> c : ((AllOf<?>) condition).getConditions())
+				if (!RowMatcher.matches(c, row))
+					return false;
+			return true;
+		}
+		if (condition instanceof OneOf) {
+			for (Condition<?> c : ((OneOf<?>) condition).getConditions())
+				if (RowMatcher.matches(c, row))
+					return true;
+			return false;
+		}
+		return !RowMatcher.matches(((Not<?>) condition).getCondition(), row);
+	}
+
+	static boolean matches(List<Condition<?>> conditions, Row row) {
+		for (Condition<?> c : conditions)
+			if (!RowMatcher.matches(c, row))
+				return false;
+		return true;
+	}
+
+	/**
+	 * The order of the comparator, on records (null values first).
+	 */
+	static Comparator<Row> comparator(final FieldComparator<?> comparator) {
+		final List<String> fields = comparator.getFields();
+		return new Comparator<Row>() {
+			@Override
+			public int compare(Row r1, Row r2) {
+				for (String f : fields) {
+					Object v1 = r1.get(f);
+					Object v2 = r2.get(f);
+					int c;
+					if (v1 == null)
+						c = v2 == null ? 0 : -1;
+					else if (v2 == null)
+						c = 1;
+					else
+						c = Values.compare(v1, v2);
+					if (c != 0)
+						return comparator.isDescending() ? -c : c;
+				}
+				return 0;
+			}
+		};
+	}
+}
@@ -0,0 +1,236 @@
+package jeople.impl;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import jeople.Condition;
+import jeople.comparators.FieldComparator;
+import jeople.conditions.AllOf;
+import jeople.conditions.Equals;
+import jeople.conditions.FieldCondition;
+import jeople.conditions.In;
+import jeople.conditions.IsNull;
+import jeople.conditions.Like;
+import jeople.conditions.Not;
+import jeople.conditions.OneOf;
+import jeople.conditions.Range;
+import jeople.errors.InternalError;
+
+/**
+ * Internal SQL generation helper for {@link JDBCDataSource}.<br>
+ * Translates {@link FieldCondition} trees to parameterized SQL, and
+ * {@link FieldComparator}s to <code>order by</code> clauses. Each
+ * translated attribute condition is false (rather than SQL NULL) for null
+ * columns, so that {@link Not}, {@link AllOf} and {@link OneOf} keep the
+ * semantics of their client side evaluation.
+ *
+ * @author Reda El Khattabi
+ */
+class SQLBuilder {
+
+	/**
+	 * A SQL fragment and its parameters.
+	 */
+	static class Clause {
+		public String sql;
+		public List<String> columns;
+		public List<Object> values;
+
+		public Clause() {
+			this.sql = null;
+			this.columns = new ArrayList<String>();
+			this.values = new ArrayList<Object>();
+		}
+
+		private void bind(String column, Object value) {
+			this.columns.add(column);
+			this.values.add(value);
+		}
+	}
+
+	private SQLBuilder() {
+	}
+
+	/**
+	 * Whether the condition can be translated to SQL, ie. is a tree of
+	 * {@link AllOf}, {@link OneOf}, {@link Not} and attribute conditions on
+	 * existing columns.
+	 */
+	static boolean canTranslate(TableSchema schema, Condition<?> condition) {
+		if (condition instanceof AllOf) {
+			for (Condition<?> c : ((AllOf<?>) condition).getConditions())
+				if (!SQLBuilder.canTranslate(schema, c))
+					return false;
+			return true;
+		}
+		if (condition instanceof OneOf) {
+			for (Condition<?> c : ((OneOf<?>) condition).getConditions())
+				if (!SQLBuilder.canTranslate(schema, c))
+					return false;
+			return true;
+		}
+		if (condition instanceof Not)
+			return SQLBuilder.canTranslate(schema,
+					((Not<?>) condition).getCondition());
+		if (condition instanceof Equals || condition instanceof Range
+				|| condition instanceof In || condition instanceof Like
+				|| condition instanceof IsNull)
+			return schema.getColumn(((FieldCondition<?>) condition)
+					.getField()) != null;
+		return false;
+	}
+
+	/**
+	 * Whether the comparator can be translated to a SQL <code>order by</code>
+	 * clause, ie. is a {@link FieldComparator} on existing columns.
+	 */
+	static boolean canTranslate(TableSchema schema, Comparator<?> comparator) {
+		if (!(comparator instanceof FieldComparator))
+			return false;
+		for (String f : ((FieldComparator<?>) comparator).getFields())
+			if (schema.getColumn(f) == null)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Translates a comparator to the content of a SQL <code>order by</code>
+	 * clause, or returns null if there is no comparator.<br>
+	 * Nulls come first in ascending order and last in descending order, as
+	 * with {@link FieldComparator}, whatever the database default: nullable
+	 * columns are sorted on a <code>case</code> expression first (the
+	 * <code>nulls first</code> syntax isn't supported everywhere).
+	 */
+	static String orderBy(TableSchema schema, Comparator<?> comparator) {
+		if (comparator == null)
+			return null;
+		FieldComparator<?> fc = (FieldComparator<?>) comparator;
+		String direction = fc.isDescending() ? " desc" : " asc";
+		String s = "";
+		String sep = "";
+		for (String f : fc.getFields()) {
+			TableSchema.Column c = schema.getColumn(f);
+			if (c.isNullable())
+				s += sep + "case when " + c.getName()
+						+ " is null then 0 else 1 end" + direction;
+			s += (c.isNullable() ? ", " : sep) + c.getName() + direction;
+			sep = ", ";
+		}
+		return s;
+	}
+
+	/**
+	 * Translates conditions (that have to be all satisfied) to a SQL boolean
+	 * expression, the returned clause has a null SQL fragment if there is no
+	 * condition.
+	 */
+	static Clause where(TableSchema schema, List<Condition<?>> conditions) {
+		Clause clause = new Clause();
+		if (conditions.isEmpty())
+			return clause;
+		StringBuilder sb = new StringBuilder();
+		String sep = "";
+		for (Condition<?> c : conditions) {
+			sb.append(sep).append("(");
+			SQLBuilder.translate(schema, c, sb, clause);
+			sb.append(")");
+			sep = " and ";
+		}
+		clause.sql = sb.toString();
+		return clause;
+	}
+
+	private static void junction(TableSchema schema,
+			List<? extends Condition<?>> conditions, String operator,
+			String empty, StringBuilder sb, Clause clause) {
+		if (conditions.isEmpty()) {
+			sb.append(empty);
+			return;
+		}
+		String sep = "";
+		for (Condition<?> c : conditions) {
+			sb.append(sep).append("(");
+			SQLBuilder.translate(schema, c, sb, clause);
+			sb.append(")");
+			sep = operator;
+		}
+	}
+
+	private static void translate(TableSchema schema, Condition<?> condition,
+			StringBuilder sb, Clause clause) {
+		if (condition instanceof AllOf) {
+			SQLBuilder.junction(schema, ((AllOf<?>) condition).getConditions(),
+					" and ", "1 = 1", sb, clause);
+			return;
+		}
+		if (condition instanceof OneOf) {
+			SQLBuilder.junction(schema, ((OneOf<?>) condition).getConditions(),
+					" or ", "1 = 0", sb, clause);
+			return;
+		}
+		if (condition instanceof Not) {
+			sb.append("not (");
+			SQLBuilder.translate(schema, ((Not<?>) condition).getCondition(),
+					sb, clause);
+			sb.append(")");
+			return;
+		}
+		FieldCondition<?> fc = (FieldCondition<?>) condition;
+		String column = schema.getColumn(fc.getField()).getName();
+		if (condition instanceof IsNull) {
+			sb.append(column).append(" is null");
+		} else if (condition instanceof Equals) {
+			Object value = ((Equals<?>) condition).getValue();
+			if (value == null)
+				sb.append(column).append(" is null");
+			else {
+				sb.append(column).append(" = ?");
+				clause.bind(column, value);
+				sb.append(" and ").append(column).append(" is not null");
+			}
+		} else if (condition instanceof Range) {
+			Range<?> r = (Range<?>) condition;
+			sb.append(column).append(" is not null");
+			if (r.getFrom() != null) {
+				sb.append(" and ").append(column)
+						.append(r.isFromInclusive() ? " >= ?" : " > ?");
+				clause.bind(column, r.getFrom());
+			}
+			if (r.getTo() != null) {
+				sb.append(" and ").append(column)
+						.append(r.isToInclusive() ? " <= ?" : " < ?");
+				clause.bind(column, r.getTo());
+			}
+		} else if (condition instanceof In) {
+			List<Object> values = new ArrayList<Object>();
+			for (Object v : ((In<?>) condition).getValues())
+				if (v != null)
+					values.add(v);
+			if (values.isEmpty())
+				sb.append("1 = 0");
+			else {
+				sb.append(column).append(" in (");
+				String sep = "";
+				for (Object v : values) {
+					sb.append(sep).append("?");
+					clause.bind(column, v);
+					sep = ", ";
+				}
+				sb.append(") and ").append(column).append(" is not null");
+			}
+		} else if (condition instanceof Like) {
+			String pattern = ((Like<?>) condition).getPattern();
+			if (pattern == null)
+				sb.append("1 = 0");
+			else {
+				// case insensitive whatever the collation, as on the client side
+				sb.append("lower(").append(column).append(") like lower(?)");
+				clause.bind(column, pattern);
+				sb.append(" and ").append(column).append(" is not null");
+			}
+		} else
+			throw new InternalError("Condition can not be translated to SQL: "
+					+ condition);
+	}
+}
@@ -28,6 +28,30 @@ public class SQLiteDataSource extends JDBCDataSource {
 		super("org.sqlite.JDBC", "jdbc:sqlite:" + filepath, "", "", "ROWID");
 	}
 
+	/**
+	 * @param filepath
+	 *            the file path/url (without jdbc:sqlite:.. )
+	 * @see JDBCDataSource#JDBCDataSource(String, String, String, String, int,
+	 *      int, long)
+	 */
+	public SQLiteDataSource(String filepath, int minConnections,
+			int maxConnections, long idleTimeout) {
+		super("org.sqlite.JDBC", "jdbc:sqlite:" + filepath, "", "", "ROWID",
+				minConnections, maxConnections, idleTimeout);
+	}
+
+	/**
+	 * @param filepath
+	 *            the file path/url (without jdbc:sqlite:.. )
+	 * @see JDBCDataSource#JDBCDataSource(String, String, String, String, int,
+	 *      int, long, long)
+	 */
+	public SQLiteDataSource(String filepath, int minConnections,
+			int maxConnections, long idleTimeout, long borrowTimeout) {
+		super("org.sqlite.JDBC", "jdbc:sqlite:" + filepath, "", "", "ROWID",
+				minConnections, maxConnections, idleTimeout, borrowTimeout);
+	}
+
 	/**
 	 * SQLite doesn't support date or time data types. We need to use the
 	 * provide
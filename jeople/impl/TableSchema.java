@@ -0,0 +1,211 @@
+package jeople.impl;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jeople.errors.InternalError;
+
+/**
+ * Column and primary key metadata of a database table, as reported by the
+ * JDBC {@link DatabaseMetaData}.<br>
+ * Instances are immutable, and thus can be shared between threads (see
+ * {@link JDBCDataSource#getSchema(String)}).
+ *
+ * @author Reda El Khattabi
+ */
+public class TableSchema {
+
+	/**
+	 * A table column.
+	 */
+	public static class Column {
+		private String name;
+		private String typeName;
+		private int jdbcType;
+		private boolean nullable;
+		private boolean primaryKey;
+
+		private Column(String name, String typeName, int jdbcType,
+				boolean nullable) {
+			this.name = name;
+			this.typeName = typeName;
+			this.jdbcType = jdbcType;
+			this.nullable = nullable;
+			this.primaryKey = false;
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * The database specific type name.
+		 */
+		public String getTypeName() {
+			return this.typeName;
+		}
+
+		/**
+		 * The SQL type from {@link java.sql.Types}.
+		 */
+		public int getJdbcType() {
+			return this.jdbcType;
+		}
+
+		/**
+		 * Whether the column may hold nulls (true if unknown).
+		 */
+		public boolean isNullable() {
+			return this.nullable;
+		}
+
+		public boolean isPrimaryKey() {
+			return this.primaryKey;
+		}
+
+		@Override
+		public String toString() {
+			return this.name + " " + this.typeName;
+		}
+	}
+
+	private String table;
+	private List<Column> columns;
+	private Map<String, Column> byName;
+	private List<String> primaryKey;
+
+	private TableSchema(String table) {
+		this.table = table;
+		this.columns = new ArrayList<Column>();
+		this.byName = new TreeMap<String, Column>(String.CASE_INSENSITIVE_ORDER);
+		this.primaryKey = new ArrayList<String>();
+	}
+
+	/**
+	 * Reads the schema of the given table. The table name is looked up as is,
+	 * then in upper and lower case, for databases that store unquoted
+	 * identifiers in a specific case.
+	 */
+	public static TableSchema load(Connection connection, String table) {
+		try {
+			DatabaseMetaData md = connection.getMetaData();
+			for (String name : new String[] { table, table.toUpperCase(),
+					table.toLowerCase() }) {
+				TableSchema ts = TableSchema.load(md, name);
+				if (ts != null)
+					return ts;
+			}
+			throw new InternalError("Table not found: " + table);
+		} catch (SQLException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	private static TableSchema load(DatabaseMetaData md, String table)
+			throws SQLException {
+		TableSchema ts = new TableSchema(table);
+		ResultSet rs = md.getColumns(null, null, TableSchema.escape(md, table),
+				null);
+		String name = null;
+		try {
+			while (rs.next()) {
+				// the pattern may be matched case insensitively, and without
+				// an escape string "_" and "%" still match other characters:
+				// only the columns of the first matching table are kept
+				String t = rs.getString("TABLE_NAME");
+				if (name == null && t.equalsIgnoreCase(table))
+					name = t;
+				if (!t.equals(name))
+					continue;
+				Column c = new Column(rs.getString("COLUMN_NAME"),
+						rs.getString("TYPE_NAME"), rs.getInt("DATA_TYPE"),
+						rs.getInt("NULLABLE") != DatabaseMetaData.columnNoNulls);
+				ts.columns.add(c);
+				ts.byName.put(c.name, c);
+			}
+		} finally {
+			rs.close();
+		}
+		if (ts.columns.isEmpty())
+			return null;
+		ts.table = name;
+		Map<Short, String> pk = new TreeMap<Short, String>();
+		rs = md.getPrimaryKeys(null, null, name);
+		try {
+			while (rs.next())
+				pk.put(rs.getShort("KEY_SEQ"), rs.getString("COLUMN_NAME"));
+		} finally {
+			rs.close();
+		}
+		for (String column : pk.values()) {
+			Column c = ts.byName.get(column);
+			if (c != null) {
+				c.primaryKey = true;
+				ts.primaryKey.add(c.name);
+			}
+		}
+		ts.columns = Collections.unmodifiableList(ts.columns);
+		ts.primaryKey = Collections.unmodifiableList(ts.primaryKey);
+		return ts;
+	}
+
+	/**
+	 * The table name as a metadata pattern, matching only itself.
+	 */
+	private static String escape(DatabaseMetaData md, String table)
+			throws SQLException {
+		String escape = md.getSearchStringEscape();
+		if (escape == null || escape.isEmpty())
+			return table;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < table.length(); ++i) {
+			char c = table.charAt(i);
+			if (c == '_' || c == '%' || escape.indexOf(c) >= 0)
+				sb.append(escape);
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The table name, as found in the database.
+	 */
+	public String getTable() {
+		return this.table;
+	}
+
+	/**
+	 * The table columns, in database order.
+	 */
+	public List<Column> getColumns() {
+		return this.columns;
+	}
+
+	/**
+	 * The column with the given name (case insensitive), or null if the table
+	 * has no such column.
+	 */
+	public Column getColumn(String name) {
+		return this.byName.get(name);
+	}
+
+	/**
+	 * The primary key column names, in key order (empty if the table has no
+	 * primary key).
+	 */
+	public List<String> getPrimaryKey() {
+		return this.primaryKey;
+	}
+
+	@Override
+	public String toString() {
+		return this.table + this.columns;
+	}
+}
@@ -0,0 +1,64 @@
+package jeople.metrics;
+
+/**
+ * Receives the timings of the operations of a data source (see
+ * {@link jeople.support.DataSourceSupport#setInstrumentation(Instrumentation)}
+ * ), per table, to collect metrics (see {@link MetricsRegistry}) or trace
+ * them.<br>
+ * Methods are called by the threads performing the operations (possibly
+ * concurrently, and in the middle of iterations): they should be fast and
+ * not throw. Durations are in nanoseconds. Nothing is timed while a data
+ * source has no instrumentation.
+ * 
+ * @author Reda El Khattabi
+ */
+public interface Instrumentation {
+
+	/**
+	 * The kinds of writes.
+	 */
+	public enum Write {
+		INSERT, UPDATE, DELETE
+	}
+
+	/**
+	 * A select has been started (query iterations start one, at the first
+	 * fetched record).
+	 */
+	public void selected(String table, long nanos);
+
+	/**
+	 * A record has been fetched from the data source.
+	 */
+	public void fetched(String table, long nanos);
+
+	/**
+	 * An entity has been built from a fetched record.
+	 */
+	public void hydrated(String table, long nanos);
+
+	/**
+	 * The client side conditions of a query (those the data source can't
+	 * evaluate itself) have been evaluated on an entity.
+	 * 
+	 * @param accepted
+	 *            whether the entity matched, and is returned by the query
+	 */
+	public void filtered(String table, long nanos, boolean accepted);
+
+	/**
+	 * A statement (or a batch of statements) has been executed by the
+	 * database.
+	 */
+	public void executed(String table, long nanos);
+
+	/**
+	 * A database connection has been opened.
+	 */
+	public void connected(long nanos);
+
+	/**
+	 * Records have been written (by a single operation, or a batch).
+	 */
+	public void written(String table, Write write, int records, long nanos);
+}
@@ -0,0 +1,212 @@
+package jeople.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import jeople.errors.InternalError;
+
+/**
+ * An {@link Instrumentation} keeping, in memory, the counters and total times
+ * of the operations of a data source, per table (see {@link TableMetrics}).
+ * <br>
+ * The metrics can be exposed through JMX (see {@link #register(String)}):
+ * the registry as <code>jeople:type=DataSource,name="..."</code>, and each
+ * table as <code>jeople:type=Table,source="...",name="..."</code> (names
+ * quoted with {@link ObjectName#quote(String)}).
+ * 
+ * @author Reda El Khattabi
+ */
+public class MetricsRegistry implements Instrumentation, MetricsRegistryMBean {
+
+	// by lower case table name
+	private ConcurrentMap<String, TableMetrics> tables;
+	private LongAdder connections;
+	private LongAdder connectionTime;
+
+	// the JMX name of the data source, while registered
+	private String name;
+	private List<ObjectName> registered;
+
+	public MetricsRegistry() {
+		this.tables = new ConcurrentHashMap<String, TableMetrics>();
+		this.connections = new LongAdder();
+		this.connectionTime = new LongAdder();
+		this.name = null;
+		this.registered = new ArrayList<ObjectName>();
+	}
+
+	/**
+	 * The metrics of the given table, created on first use.
+	 */
+	public TableMetrics getTable(String table) {
+		String k = table.toLowerCase();
+		TableMetrics m = this.tables.get(k);
+		if (m != null)
+			return m;
+		m = new TableMetrics(table);
+		TableMetrics previous = this.tables.putIfAbsent(k, m);
+		if (previous != null)
+			return previous;
+		synchronized (this) {
+			if (this.name != null)
+				this.register(m);
+		}
+		return m;
+	}
+
+	/**
+	 * The metrics of all the tables used so far.
+	 */
+	public Collection<TableMetrics> getTableMetrics() {
+		return new ArrayList<TableMetrics>(this.tables.values());
+	}
+
+	@Override
+	public String[] getTables() {
+		List<String> l = new ArrayList<String>();
+		for (TableMetrics m : this.tables.values())
+			l.add(m.getTable());
+		return l.toArray(new String[l.size()]);
+	}
+
+	@Override
+	public long getConnectionsOpened() {
+		return this.connections.sum();
+	}
+
+	@Override
+	public long getConnectionTime() {
+		return this.connectionTime.sum();
+	}
+
+	@Override
+	public void reset() {
+		for (TableMetrics m : this.tables.values())
+			m.reset();
+		this.connections.reset();
+		this.connectionTime.reset();
+	}
+
+	// ///////////////////////////////// INSTRUMENTATION
+
+	@Override
+	public void selected(String table, long nanos) {
+		this.getTable(table).selected(nanos);
+	}
+
+	@Override
+	public void fetched(String table, long nanos) {
+		this.getTable(table).fetched(nanos);
+	}
+
+	@Override
+	public void hydrated(String table, long nanos) {
+		this.getTable(table).hydrated(nanos);
+	}
+
+	@Override
+	public void filtered(String table, long nanos, boolean accepted) {
+		this.getTable(table).filtered(nanos, accepted);
+	}
+
+	@Override
+	public void executed(String table, long nanos) {
+		this.getTable(table).executed(nanos);
+	}
+
+	@Override
+	public void connected(long nanos) {
+		this.connections.increment();
+		this.connectionTime.add(nanos);
+	}
+
+	@Override
+	public void written(String table, Write write, int records, long nanos) {
+		this.getTable(table).written(write, records, nanos);
+	}
+
+	// ///////////////////////////////// JMX
+
+	private static ObjectName objectName(String name) {
+		try {
+			return new ObjectName(name);
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalArgumentException("Invalid name: " + name, e);
+		}
+	}
+
+	/**
+	 * Registers an MBean, with the registry locked.
+	 */
+	private void register(Object mbean, ObjectName on) throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		server.registerMBean(mbean, on);
+		this.registered.add(on);
+	}
+
+	/**
+	 * Registers the MBean of a table, unless already done. Also called while
+	 * recording an operation, so failures only leave the table unexposed.
+	 */
+	private void register(TableMetrics m) {
+		ObjectName on = MetricsRegistry.objectName("jeople:type=Table,source="
+				+ ObjectName.quote(this.name) + ",name="
+				+ ObjectName.quote(m.getTable()));
+		if (this.registered.contains(on))
+			return;
+		try {
+			this.register(m, on);
+		} catch (InstanceAlreadyExistsException e) {
+			// exposed by another registry under the same name
+		} catch (JMException | RuntimeException e) {
+			// the operation being recorded must not fail
+		}
+	}
+
+	/**
+	 * Exposes the metrics through the platform MBean server, under the given
+	 * data source name (tables used afterwards are exposed as well).
+	 * Registering again (under another name) unregisters the previous MBeans
+	 * first.
+	 */
+	public synchronized void register(String name) {
+		ObjectName on = MetricsRegistry.objectName("jeople:type=DataSource,name="
+				+ ObjectName.quote(name));
+		this.unregister();
+		try {
+			this.register(this, on);
+		} catch (JMException e) {
+			throw new InternalError(e);
+		}
+		this.name = name;
+		for (Map.Entry<String, TableMetrics> e : this.tables.entrySet())
+			this.register(e.getValue());
+	}
+
+	/**
+	 * Removes the MBeans registered by {@link #register(String)}.
+	 */
+	public synchronized void unregister() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName on : this.registered)
+			try {
+				server.unregisterMBean(on);
+			} catch (JMException e) {
+				// already unregistered
+			}
+		this.registered.clear();
+		this.name = null;
+	}
+}
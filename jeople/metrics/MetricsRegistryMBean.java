@@ -0,0 +1,16 @@
+package jeople.metrics;
+
+/**
+ * The JMX view of {@link MetricsRegistry}. Times are in nanoseconds.
+ * 
+ * @author Reda El Khattabi
+ */
+public interface MetricsRegistryMBean {
+	public String[] getTables();
+
+	public long getConnectionsOpened();
+
+	public long getConnectionTime();
+
+	public void reset();
+}
@@ -0,0 +1,216 @@
+package jeople.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters and total times (in nanoseconds) of the operations on a
+ * table, collected by a {@link MetricsRegistry}. They are updated without
+ * locking, so that a consistent snapshot of several of them can't be taken
+ * while the table is in use.
+ * 
+ * @author Reda El Khattabi
+ */
+public class TableMetrics implements TableMetricsMBean {
+
+	private String table;
+	private LongAdder selects;
+	private LongAdder selectTime;
+	private LongAdder fetched;
+	private LongAdder fetchTime;
+	private LongAdder returned;
+	private LongAdder hydrationTime;
+	private LongAdder conditionTime;
+	private LongAdder statements;
+	private LongAdder statementTime;
+	private LongAdder inserted;
+	private LongAdder updated;
+	private LongAdder deleted;
+	private LongAdder writes;
+	private LongAdder writeTime;
+
+	public TableMetrics(String table) {
+		this.table = table;
+		this.selects = new LongAdder();
+		this.selectTime = new LongAdder();
+		this.fetched = new LongAdder();
+		this.fetchTime = new LongAdder();
+		this.returned = new LongAdder();
+		this.hydrationTime = new LongAdder();
+		this.conditionTime = new LongAdder();
+		this.statements = new LongAdder();
+		this.statementTime = new LongAdder();
+		this.inserted = new LongAdder();
+		this.updated = new LongAdder();
+		this.deleted = new LongAdder();
+		this.writes = new LongAdder();
+		this.writeTime = new LongAdder();
+	}
+
+	void selected(long nanos) {
+		this.selects.increment();
+		this.selectTime.add(nanos);
+	}
+
+	void fetched(long nanos) {
+		this.fetched.increment();
+		this.fetchTime.add(nanos);
+	}
+
+	void hydrated(long nanos) {
+		this.hydrationTime.add(nanos);
+	}
+
+	void filtered(long nanos, boolean accepted) {
+		this.conditionTime.add(nanos);
+		if (accepted)
+			this.returned.increment();
+	}
+
+	void executed(long nanos) {
+		this.statements.increment();
+		this.statementTime.add(nanos);
+	}
+
+	void written(Instrumentation.Write write, int records, long nanos) {
+		switch (write) {
+		case INSERT:
+			this.inserted.add(records);
+			break;
+		case UPDATE:
+			this.updated.add(records);
+			break;
+		default:
+			this.deleted.add(records);
+		}
+		this.writes.increment();
+		this.writeTime.add(nanos);
+	}
+
+	@Override
+	public String getTable() {
+		return this.table;
+	}
+
+	/**
+	 * The number of selects started.
+	 */
+	@Override
+	public long getSelects() {
+		return this.selects.sum();
+	}
+
+	@Override
+	public long getSelectTime() {
+		return this.selectTime.sum();
+	}
+
+	/**
+	 * The number of records fetched from the data source by queries.
+	 */
+	@Override
+	public long getRowsFetched() {
+		return this.fetched.sum();
+	}
+
+	@Override
+	public long getFetchTime() {
+		return this.fetchTime.sum();
+	}
+
+	/**
+	 * The number of fetched records matching the client side conditions of
+	 * their query.
+	 */
+	@Override
+	public long getRowsReturned() {
+		return this.returned.sum();
+	}
+
+	/**
+	 * The fraction of fetched records matching the client side conditions
+	 * of their query (1 if no record has been fetched). A low selectivity
+	 * means that the data source sends many records for nothing.
+	 */
+	@Override
+	public double getSelectivity() {
+		long f = this.fetched.sum();
+		return f == 0 ? 1 : (double) this.returned.sum() / f;
+	}
+
+	@Override
+	public long getHydrationTime() {
+		return this.hydrationTime.sum();
+	}
+
+	@Override
+	public long getConditionTime() {
+		return this.conditionTime.sum();
+	}
+
+	/**
+	 * The number of statements (or batches) executed by the database.
+	 */
+	@Override
+	public long getStatements() {
+		return this.statements.sum();
+	}
+
+	@Override
+	public long getStatementTime() {
+		return this.statementTime.sum();
+	}
+
+	@Override
+	public long getRowsInserted() {
+		return this.inserted.sum();
+	}
+
+	@Override
+	public long getRowsUpdated() {
+		return this.updated.sum();
+	}
+
+	@Override
+	public long getRowsDeleted() {
+		return this.deleted.sum();
+	}
+
+	/**
+	 * The number of write operations (a batch counting as one).
+	 */
+	@Override
+	public long getWrites() {
+		return this.writes.sum();
+	}
+
+	@Override
+	public long getWriteTime() {
+		return this.writeTime.sum();
+	}
+
+	@Override
+	public void reset() {
+		this.selects.reset();
+		this.selectTime.reset();
+		this.fetched.reset();
+		this.fetchTime.reset();
+		this.returned.reset();
+		this.hydrationTime.reset();
+		this.conditionTime.reset();
+		this.statements.reset();
+		this.statementTime.reset();
+		this.inserted.reset();
+		this.updated.reset();
+		this.deleted.reset();
+		this.writes.reset();
+		this.writeTime.reset();
+	}
+
+	@Override
+	public String toString() {
+		return this.table + "[selects=" + this.getSelects() + ", fetched="
+				+ this.getRowsFetched() + ", returned="
+				+ this.getRowsReturned() + ", statements="
+				+ this.getStatements() + ", writes=" + this.getWrites() + "]";
+	}
+}
@@ -0,0 +1,42 @@
+package jeople.metrics;
+
+/**
+ * The JMX view of {@link TableMetrics}. Times are in nanoseconds.
+ * 
+ * @author Reda El Khattabi
+ */
+public interface TableMetricsMBean {
+	public String getTable();
+
+	public long getSelects();
+
+	public long getSelectTime();
+
+	public long getRowsFetched();
+
+	public long getFetchTime();
+
+	public long getRowsReturned();
+
+	public double getSelectivity();
+
+	public long getHydrationTime();
+
+	public long getConditionTime();
+
+	public long getStatements();
+
+	public long getStatementTime();
+
+	public long getRowsInserted();
+
+	public long getRowsUpdated();
+
+	public long getRowsDeleted();
+
+	public long getWrites();
+
+	public long getWriteTime();
+
+	public void reset();
+}
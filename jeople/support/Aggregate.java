@@ -0,0 +1,40 @@
+package jeople.support;
+
+/**
+ * Aggregate functions over an entity attribute (a column), null values being
+ * ignored, as in SQL. Data sources can compute them themselves (see
+ * {@link DataSourceSupport#aggregate(String, Selection, Aggregate, String)}).
+ *
+ * @author Reda El Khattabi
+ */
+public enum Aggregate {
+	/**
+	 * Sum of the values: a {@link Long} for integral values, a
+	 * {@link Double} if there are floating point values, or a
+	 * {@link java.math.BigDecimal} if there are decimal values. Null if there
+	 * is no value.
+	 */
+	SUM,
+
+	/**
+	 * Average of the values, as a {@link Double}. Null if there is no value.
+	 */
+	AVG,
+
+	/**
+	 * Smallest value, null if there is no value.
+	 */
+	MIN,
+
+	/**
+	 * Largest value, null if there is no value.
+	 */
+	MAX;
+
+	/**
+	 * The SQL function name.
+	 */
+	public String toSQL() {
+		return this.name().toLowerCase();
+	}
+}
@@ -0,0 +1,255 @@
+package jeople.support;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collector;
+
+import jeople.Entity;
+
+/**
+ * Client side evaluation of aggregates, in a single pass over the entities,
+ * keeping only the running result (or one running result per group).
+ *
+ * @author Reda El Khattabi
+ */
+class Aggregation {
+
+	/**
+	 * The running result of an aggregate.
+	 */
+	private static class Accumulator {
+		private Aggregate function;
+		private long count;
+		private long integral;
+		private double floating;
+		private boolean hasFloating;
+		private BigDecimal decimal;
+		private Object extreme;
+
+		public Accumulator(Aggregate function) {
+			this.function = function;
+			this.count = 0;
+			this.integral = 0;
+			this.floating = 0;
+			this.hasFloating = false;
+			this.decimal = null;
+			this.extreme = null;
+		}
+
+		public void add(String field, Object value) {
+			if (value == null)
+				return;
+			++this.count;
+			if (this.function == Aggregate.MIN
+					|| this.function == Aggregate.MAX) {
+				if (this.extreme == null) {
+					this.extreme = value;
+					return;
+				}
+				int c = Values.compare(value, this.extreme);
+				if (this.function == Aggregate.MIN ? c < 0 : c > 0)
+					this.extreme = value;
+				return;
+			}
+			if (!(value instanceof Number))
+				throw new IllegalArgumentException("Attribute " + field
+						+ " is not a number: " + value);
+			Number n = (Number) value;
+			if (n instanceof BigDecimal || n instanceof BigInteger)
+				this.decimal = this.decimal == null ? Values.toBigDecimal(n)
+						: this.decimal.add(Values.toBigDecimal(n));
+			else if (n instanceof Double || n instanceof Float) {
+				this.floating += n.doubleValue();
+				this.hasFloating = true;
+			} else
+				this.integral += n.longValue();
+		}
+
+		private Number sum() {
+			// NaN and infinities have no decimal value, and absorb the rest
+			if (!Double.isFinite(this.floating))
+				return this.floating;
+			if (this.decimal != null)
+				return this.decimal.add(BigDecimal.valueOf(this.integral)).add(
+						BigDecimal.valueOf(this.floating));
+			if (this.hasFloating)
+				return this.floating + this.integral;
+			return this.integral;
+		}
+
+		public Object result() {
+			if (this.count == 0)
+				return null;
+			switch (this.function) {
+			case SUM:
+				return this.sum();
+			case AVG:
+				return this.sum().doubleValue() / this.count;
+			default:
+				return this.extreme;
+			}
+		}
+	}
+
+	private Aggregation() {
+	}
+
+	/**
+	 * A function reading the given attribute (resolved once per entity
+	 * class).
+	 */
+	static <T extends Entity> Function<T, Object> getter(final String field) {
+		return new Function<T, Object>() {
+			private EntityModel.Attribute attribute = null;
+			private Class<?> type = null;
+
+			@Override
+			public Object apply(T t) {
+				if (t.getClass() != this.type) {
+					this.attribute = Aggregation.attribute(t, field);
+					this.type = t.getClass();
+				}
+				return this.attribute.get(t);
+			}
+		};
+	}
+
+	/**
+	 * Computes an aggregate of the given attribute over the entities.
+	 */
+	static <T extends Entity> Object aggregate(Iterator<T> entities,
+			Aggregate function, String field) {
+		Accumulator acc = new Accumulator(function);
+		Function<T, Object> getter = Aggregation.getter(field);
+		while (entities.hasNext())
+			acc.add(field, getter.apply(entities.next()));
+		return acc.result();
+	}
+
+	private static EntityModel.Attribute attribute(Entity entity,
+			String field) {
+		EntityModel.Attribute a = EntityModel.of(entity).getAttribute(field);
+		if (a == null)
+			throw new IllegalArgumentException("Unknown attribute " + field
+					+ " in " + entity.getClass().getName());
+		return a;
+	}
+
+	/**
+	 * Groups the entities by key (null keys are allowed), reducing each
+	 * group with the collector as entities come.
+	 */
+	static <T extends Entity, K, A, R> Map<K, R> groupBy(
+			Iterator<T> entities, Function<? super T, ? extends K> key,
+			Collector<? super T, A, R> downstream) {
+		Supplier<A> supplier = downstream.supplier();
+		BiConsumer<A, ? super T> accumulator = downstream.accumulator();
+		Map<K, A> groups = new LinkedHashMap<K, A>();
+		while (entities.hasNext()) {
+			T t = entities.next();
+			K k = key.apply(t);
+			A a = groups.get(k);
+			if (a == null && !groups.containsKey(k)) {
+				a = supplier.get();
+				groups.put(k, a);
+			}
+			accumulator.accept(a, t);
+		}
+		Function<A, R> finisher = downstream.finisher();
+		Map<K, R> result = new LinkedHashMap<K, R>();
+		for (Map.Entry<K, A> e : groups.entrySet())
+			result.put(e.getKey(), finisher.apply(e.getValue()));
+		return result;
+	}
+
+	// ///////////////////////////////// DATA SOURCE RESULTS
+
+	/**
+	 * Converts an aggregate computed by a data source to the type the client
+	 * side evaluation would give for an attribute of the given type: sums
+	 * are {@link Long}s, {@link Double}s or {@link BigDecimal}s, minimums
+	 * and maximums have the attribute type.
+	 */
+	static Object normalize(Class<?> type, Aggregate function, Object value) {
+		if (!(value instanceof Number))
+			return value;
+		Number n = (Number) value;
+		switch (function) {
+		case SUM:
+			if (BigDecimal.class.isAssignableFrom(type)
+					|| BigInteger.class.isAssignableFrom(type))
+				return Values.toBigDecimal(n);
+			if (type == double.class || type == float.class
+					|| type == Double.class || type == Float.class)
+				return n.doubleValue();
+			if (Aggregation.isIntegral(type))
+				return n.longValue();
+			if (n instanceof BigDecimal || n instanceof BigInteger)
+				return Values.toBigDecimal(n);
+			if (n instanceof Double || n instanceof Float)
+				return n.doubleValue();
+			return n.longValue();
+		case AVG:
+			return n.doubleValue();
+		default:
+			return Aggregation.convert(type, value);
+		}
+	}
+
+	/**
+	 * Converts a counts by value computed by a data source, its values
+	 * being converted to the attribute type (counts of values then equal
+	 * are added up).
+	 */
+	static Map<Object, Long> normalize(Class<?> type, Map<Object, Long> counts) {
+		Map<Object, Long> result = new LinkedHashMap<Object, Long>();
+		for (Map.Entry<Object, Long> e : counts.entrySet()) {
+			Object k = Aggregation.convert(type, e.getKey());
+			Long c = result.get(k);
+			result.put(k, c != null ? c + e.getValue() : e.getValue());
+		}
+		return result;
+	}
+
+	private static boolean isIntegral(Class<?> type) {
+		return type == int.class || type == long.class || type == short.class
+				|| type == byte.class || type == Integer.class
+				|| type == Long.class || type == Short.class
+				|| type == Byte.class;
+	}
+
+	/**
+	 * Converts a number to the given attribute type (other values are
+	 * returned as is).
+	 */
+	private static Object convert(Class<?> type, Object value) {
+		if (!(value instanceof Number) || type.isInstance(value))
+			return value;
+		Number n = (Number) value;
+		if (type == int.class || type == Integer.class)
+			return n.intValue();
+		if (type == long.class || type == Long.class)
+			return n.longValue();
+		if (type == double.class || type == Double.class)
+			return n.doubleValue();
+		if (type == float.class || type == Float.class)
+			return n.floatValue();
+		if (type == short.class || type == Short.class)
+			return n.shortValue();
+		if (type == byte.class || type == Byte.class)
+			return n.byteValue();
+		if (type == boolean.class || type == Boolean.class)
+			return n.intValue() != 0;
+		if (type == BigDecimal.class)
+			return Values.toBigDecimal(n);
+		if (type == BigInteger.class)
+			return Values.toBigDecimal(n).toBigInteger();
+		return value;
+	}
+}
@@ -0,0 +1,329 @@
+package jeople.support;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import jeople.Cursor;
+import jeople.DataSource;
+import jeople.Entity;
+import jeople.Query;
+
+/**
+ * An asynchronous view of a {@link DataSource}: each operation runs on an
+ * executor, and returns a {@link CompletableFuture} of its result (completed
+ * exceptionally if the operation fails). Queries can also be published (see
+ * {@link #publish(Query)}), entities being fetched as subscribers request
+ * them.<br>
+ * The default executor runs each operation on its own virtual thread when
+ * the JVM supports them, so that many blocking operations can be in flight
+ * at once, or else on a shared pool of daemon threads.
+ *
+ * @author Reda El Khattabi
+ */
+public class AsyncDataSource {
+
+	/**
+	 * The subscription of a {@link #publish(Query)} subscriber: entities are
+	 * fetched and delivered on the executor, serially, while there is
+	 * demand.
+	 */
+	private static class QuerySubscription<T extends Entity> implements
+			Flow.Subscription, Runnable {
+		private Query<T> query;
+		private Flow.Subscriber<? super T> subscriber;
+		private Executor executor;
+		private AtomicLong demand;
+		private AtomicInteger work;
+		private volatile boolean cancelled;
+		private volatile Throwable invalid;
+		// accessed by the delivery only
+		private Cursor<T> cursor;
+		private boolean done;
+
+		public QuerySubscription(Query<T> query,
+				Flow.Subscriber<? super T> subscriber, Executor executor) {
+			this.query = query;
+			this.subscriber = subscriber;
+			this.executor = executor;
+			this.demand = new AtomicLong();
+			this.work = new AtomicInteger();
+			this.cancelled = false;
+			this.invalid = null;
+			this.cursor = null;
+			this.done = false;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0)
+				this.invalid = new IllegalArgumentException(
+						"Invalid request: " + n);
+			else
+				while (true) {
+					long d = this.demand.get();
+					long r = d + n < 0 ? Long.MAX_VALUE : d + n;
+					if (this.demand.compareAndSet(d, r))
+						break;
+				}
+			this.schedule();
+		}
+
+		@Override
+		public void cancel() {
+			this.cancelled = true;
+			this.schedule();
+		}
+
+		/**
+		 * Runs the delivery, unless it is already running (it then goes on
+		 * with the new demand).
+		 */
+		private void schedule() {
+			if (this.work.getAndIncrement() == 0)
+				try {
+					this.executor.execute(this);
+				} catch (RuntimeException | Error e) {
+					this.cancelled = true;
+					this.work.set(0);
+					this.subscriber.onError(e);
+				}
+		}
+
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				this.deliver();
+				missed = this.work.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void finish() {
+			this.done = true;
+			if (this.cursor != null)
+				this.cursor.close();
+		}
+
+		private void deliver() {
+			if (this.done)
+				return;
+			if (this.cancelled) {
+				this.finish();
+				return;
+			}
+			if (this.invalid != null) {
+				this.finish();
+				this.subscriber.onError(this.invalid);
+				return;
+			}
+			try {
+				if (this.cursor == null)
+					this.cursor = this.query.iterator();
+				while (this.demand.get() > 0 && !this.cancelled) {
+					if (!this.cursor.hasNext()) {
+						this.finish();
+						this.subscriber.onComplete();
+						return;
+					}
+					T t = this.cursor.next();
+					if (this.demand.get() != Long.MAX_VALUE)
+						this.demand.decrementAndGet();
+					this.subscriber.onNext(t);
+				}
+				if (this.cancelled)
+					this.finish();
+			} catch (RuntimeException | Error e) {
+				this.finish();
+				this.subscriber.onError(e);
+			}
+		}
+	}
+
+	private static class DefaultExecutor {
+		public static final Executor INSTANCE = DefaultExecutor.create();
+
+		private static Executor create() {
+			try {
+				Method m = Executors.class
+						.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) m.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				// no virtual threads
+			}
+			final AtomicInteger count = new AtomicInteger();
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "jeople-async-"
+							+ count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	private DataSource source;
+	private Executor executor;
+
+	/**
+	 * An asynchronous view of the data source, on the default executor.
+	 */
+	public AsyncDataSource(DataSource source) {
+		this(source, AsyncDataSource.getDefaultExecutor());
+	}
+
+	public AsyncDataSource(DataSource source, Executor executor) {
+		this.source = source;
+		this.executor = executor;
+	}
+
+	/**
+	 * The executor running the operations when none is given: a virtual
+	 * thread per operation if the JVM supports them, or else a shared pool of
+	 * daemon threads, created as needed and reused.
+	 */
+	public static Executor getDefaultExecutor() {
+		return DefaultExecutor.INSTANCE;
+	}
+
+	public DataSource getDataSource() {
+		return this.source;
+	}
+
+	public Executor getExecutor() {
+		return this.executor;
+	}
+
+	private <R> CompletableFuture<R> async(Supplier<R> operation) {
+		return CompletableFuture.supplyAsync(operation, this.executor);
+	}
+
+	/**
+	 * @see DataSource#get(Class, Object...)
+	 */
+	public <T extends Entity> CompletableFuture<T> get(final Class<T> type,
+			final Object... key) {
+		return this.async(new Supplier<T>() {
+			@Override
+			public T get() {
+				return AsyncDataSource.this.source.get(type, key);
+			}
+		});
+	}
+
+	public <T extends Entity> CompletableFuture<Void> save(final T entity) {
+		return this.async(new Supplier<Void>() {
+			@Override
+			public Void get() {
+				AsyncDataSource.this.source.save(entity);
+				return null;
+			}
+		});
+	}
+
+	public <T extends Entity> CompletableFuture<Void> delete(final T entity) {
+		return this.async(new Supplier<Void>() {
+			@Override
+			public Void get() {
+				AsyncDataSource.this.source.delete(entity);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see DataSource#saveAll(Iterable)
+	 */
+	public <T extends Entity> CompletableFuture<Void> saveAll(
+			final Iterable<T> entities) {
+		return this.async(new Supplier<Void>() {
+			@Override
+			public Void get() {
+				AsyncDataSource.this.source.saveAll(entities);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @see DataSource#deleteAll(Iterable)
+	 */
+	public <T extends Entity> CompletableFuture<Void> deleteAll(
+			final Iterable<T> entities) {
+		return this.async(new Supplier<Void>() {
+			@Override
+			public Void get() {
+				AsyncDataSource.this.source.deleteAll(entities);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * The first entity of the query (of this data source), or null if there
+	 * is none.
+	 */
+	public <T extends Entity> CompletableFuture<T> first(final Query<T> query) {
+		return this.async(new Supplier<T>() {
+			@Override
+			public T get() {
+				return query.first();
+			}
+		});
+	}
+
+	/**
+	 * All the entities of the query (of this data source).
+	 */
+	public <T extends Entity> CompletableFuture<List<T>> list(
+			final Query<T> query) {
+		return this.async(new Supplier<List<T>>() {
+			@Override
+			public List<T> get() {
+				List<T> l = new ArrayList<T>();
+				try (Cursor<T> c = query.iterator()) {
+					while (c.hasNext())
+						l.add(c.next());
+				}
+				return l;
+			}
+		});
+	}
+
+	public CompletableFuture<Long> count(final Query<?> query) {
+		return this.async(new Supplier<Long>() {
+			@Override
+			public Long get() {
+				return query.count();
+			}
+		});
+	}
+
+	/**
+	 * The entities of the query (of this data source), for reactive
+	 * subscribers. Each subscription runs the query again, lazily: entities
+	 * are only fetched as they are requested (the query cursor stays open in
+	 * between), and the query is closed once all of them have been
+	 * delivered, or the subscription is cancelled, or an error occurs.
+	 */
+	public <T extends Entity> Flow.Publisher<T> publish(final Query<T> query) {
+		return new Flow.Publisher<T>() {
+			@Override
+			public void subscribe(Flow.Subscriber<? super T> subscriber) {
+				subscriber.onSubscribe(new QuerySubscription<T>(query,
+						subscriber, AsyncDataSource.this.executor));
+			}
+		};
+	}
+}
@@ -0,0 +1,458 @@
+package jeople.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jeople.Condition;
+import jeople.DataSource;
+
+/**
+ * A {@link DataSource} caching the records of another one, for read mostly
+ * tables.<br>
+ * The first iteration over all the records of a table reads them from the
+ * wrapped data source, and keeps them in memory; following iterations read
+ * them from memory (query conditions, ordering and limits are then applied
+ * on the client side), until:
+ * <ul>
+ * <li>a record of the table is inserted, updated or deleted through this
+ * data source (entities fetched or created by this data source are saved
+ * through it),</li>
+ * <li>or the records have been cached for longer than the time to live,</li>
+ * <li>or the least recently used tables are evicted to keep the number of
+ * cached records under the maximum.</li>
+ * </ul>
+ * Tables with more records than the maximum are never cached. Changes made
+ * directly to the underlying database (or through the wrapped data source)
+ * aren't detected, see {@link #invalidate(String)}.<br>
+ * While a table isn't cached, the conditions, ordering, limits, counts and
+ * aggregates the wrapped data source can handle are left to it, and the
+ * iterations restricted that way go straight to it, without filling the
+ * cache.<br>
+ * Hit and miss counts (of iterations over all the records) help tuning the
+ * cache size and time to live.
+ *
+ * @author Reda El Khattabi
+ */
+public class CachingDataSource extends DataSourceSupport {
+
+	/**
+	 * The cached records of a table.
+	 */
+	private static class Entry {
+		public List<Map<String, ?>> records;
+		public long loaded;
+
+		public Entry(List<Map<String, ?>> records, long loaded) {
+			this.records = records;
+			this.loaded = loaded;
+		}
+	}
+
+	/**
+	 * An iteration, over cached records, or over the wrapped data source
+	 * records (which are then recorded to fill the cache).
+	 */
+	private static class CacheStatus {
+		public String table;
+		public Iterator<Map<String, ?>> cached;
+		public Object status;
+		public long version;
+		public List<Map<String, ?>> records;
+
+		public CacheStatus(String table) {
+			this.table = table;
+			this.cached = null;
+			this.status = null;
+			this.version = 0;
+			this.records = null;
+		}
+	}
+
+	private DataSourceSupport source;
+	private int maxRecords;
+	private long timeToLive;
+
+	// access ordered, guarded by itself
+	private LinkedHashMap<String, Entry> entries;
+	private Map<String, Long> versions;
+	private long generation;
+	private int size;
+
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong evictions;
+
+	/**
+	 * @param source
+	 *            the cached data source
+	 * @param maxRecords
+	 *            maximum number of cached records (all tables)
+	 * @param timeToLive
+	 *            time (in milliseconds) after which cached records are read
+	 *            again, 0 to keep them until they are invalidated or evicted
+	 */
+	public CachingDataSource(DataSourceSupport source, int maxRecords,
+			long timeToLive) {
+		if (maxRecords < 0)
+			throw new IllegalArgumentException("Invalid cache size: "
+					+ maxRecords);
+		if (timeToLive < 0)
+			throw new IllegalArgumentException("Invalid time to live: "
+					+ timeToLive);
+		this.source = source;
+		this.maxRecords = maxRecords;
+		this.timeToLive = timeToLive;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		this.versions = new HashMap<String, Long>();
+		this.generation = 0;
+		this.size = 0;
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.evictions = new AtomicLong();
+	}
+
+	private static String key(String table) {
+		return table.toLowerCase();
+	}
+
+	private boolean expired(Entry e) {
+		return this.timeToLive > 0
+				&& System.nanoTime() - e.loaded > this.timeToLive * 1000000L;
+	}
+
+	/**
+	 * The cached records of the table, or null if they aren't cached (or
+	 * have expired).
+	 */
+	private List<Map<String, ?>> lookup(String table) {
+		synchronized (this.entries) {
+			Entry e = this.entries.get(CachingDataSource.key(table));
+			if (e == null)
+				return null;
+			if (this.expired(e)) {
+				this.entries.remove(CachingDataSource.key(table));
+				this.size -= e.records.size();
+				return null;
+			}
+			return e.records;
+		}
+	}
+
+	/**
+	 * A number increased each time the table is invalidated.
+	 */
+	private long version(String table) {
+		synchronized (this.entries) {
+			Long v = this.versions.get(CachingDataSource.key(table));
+			return this.generation + (v != null ? v : 0);
+		}
+	}
+
+	/**
+	 * Caches the records read by an iteration, unless the table has changed
+	 * since it started.
+	 */
+	private void store(String table, long version,
+			List<Map<String, ?>> records) {
+		synchronized (this.entries) {
+			if (this.version(table) != version)
+				return;
+			Entry old = this.entries.put(CachingDataSource.key(table),
+					new Entry(Collections.unmodifiableList(records),
+							System.nanoTime()));
+			if (old != null)
+				this.size -= old.records.size();
+			this.size += records.size();
+			Iterator<Entry> it = this.entries.values().iterator();
+			while (this.size > this.maxRecords && it.hasNext()) {
+				this.size -= it.next().records.size();
+				it.remove();
+				this.evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached records of the table, and prevents iterations started
+	 * before from caching what they read. Done automatically on each write
+	 * through this data source.
+	 */
+	public void invalidate(String table) {
+		String key = CachingDataSource.key(table);
+		synchronized (this.entries) {
+			Long v = this.versions.get(key);
+			this.versions.put(key, v != null ? v + 1 : 1);
+			Entry e = this.entries.remove(key);
+			if (e != null)
+				this.size -= e.records.size();
+		}
+	}
+
+	/**
+	 * Drops all cached records.
+	 */
+	public void invalidate() {
+		synchronized (this.entries) {
+			++this.generation;
+			this.entries.clear();
+			this.size = 0;
+		}
+	}
+
+	/**
+	 * Number of iterations served from the cache.
+	 */
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * Number of iterations that had to read the wrapped data source.
+	 */
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Number of tables evicted to keep the cache under its maximum size.
+	 */
+	public long getEvictionCount() {
+		return this.evictions.get();
+	}
+
+	/**
+	 * Number of records currently cached.
+	 */
+	public int getSize() {
+		synchronized (this.entries) {
+			return this.size;
+		}
+	}
+
+	public void resetStatistics() {
+		this.hits.set(0);
+		this.misses.set(0);
+		this.evictions.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "CachingDataSource[hits=" + this.getHitCount() + ", misses="
+				+ this.getMissCount() + ", evictions="
+				+ this.getEvictionCount() + ", size=" + this.getSize() + "]";
+	}
+
+	// ///////////////////////////////// CUSTOMIZATIONS
+
+	private boolean isCached(String table) {
+		return this.lookup(table) != null;
+	}
+
+	/**
+	 * Left to the wrapped data source while the table isn't cached.
+	 */
+	@Override
+	protected boolean canFilter(String table, Condition<?> condition) {
+		return !this.isCached(table) && this.source.canFilter(table, condition);
+	}
+
+	@Override
+	protected boolean canOrder(String table, Comparator<?> comparator) {
+		return !this.isCached(table)
+				&& this.source.canOrder(table, comparator);
+	}
+
+	@Override
+	protected boolean canLimit(String table) {
+		return !this.isCached(table) && this.source.canLimit(table);
+	}
+
+	@Override
+	protected boolean canAggregate(String table, String column) {
+		return !this.isCached(table)
+				&& this.source.canAggregate(table, column);
+	}
+
+	@Override
+	protected Object aggregate(String table, Selection selection,
+			Aggregate function, String column) {
+		return this.source.aggregate(table, selection, function, column);
+	}
+
+	@Override
+	protected Map<Object, Long> countBy(String table, Selection selection,
+			String column) {
+		return this.source.countBy(table, selection, column);
+	}
+
+	@Override
+	protected long count(String table, Selection selection) {
+		if (selection.getConditions().isEmpty()) {
+			List<Map<String, ?>> records = this.lookup(table);
+			if (records != null)
+				return records.size();
+		}
+		return this.source.count(table, selection);
+	}
+
+	/**
+	 * Iterations restricted by the wrapped data source (the table wasn't
+	 * cached when they were planned) read from it, otherwise see
+	 * {@link #select(String)}.
+	 */
+	@Override
+	protected Object select(String table, Selection selection) {
+		if (selection.getConditions().isEmpty()
+				&& selection.getOrder() == null
+				&& selection.getOffset() == 0 && selection.getLimit() < 0)
+			return this.select(table);
+		CacheStatus cs = new CacheStatus(table);
+		cs.status = this.source.select(table, selection);
+		return cs;
+	}
+
+	@Override
+	protected Object select(String table) {
+		CacheStatus cs = new CacheStatus(table);
+		List<Map<String, ?>> records = this.lookup(table);
+		if (records != null) {
+			this.hits.incrementAndGet();
+			cs.cached = records.iterator();
+			return cs;
+		}
+		this.misses.incrementAndGet();
+		cs.version = this.version(table);
+		cs.status = this.source.select(table, new Selection());
+		cs.records = new ArrayList<Map<String, ?>>();
+		return cs;
+	}
+
+	@Override
+	protected Map<String, ?> fetch(Object status) {
+		CacheStatus cs = (CacheStatus) status;
+		// cached records are shared, each reader gets its own dates and arrays
+		if (cs.cached != null)
+			return cs.cached.hasNext() ? DataSourceSupport.snapshot(cs.cached
+					.next()) : null;
+		if (cs.status == null)
+			return null;
+		Map<String, ?> m = this.source.fetch(cs.status);
+		if (m == null) {
+			cs.status = null;
+			if (cs.records != null)
+				this.store(cs.table, cs.version, cs.records);
+			cs.records = null;
+			return null;
+		}
+		if (cs.records != null) {
+			if (cs.records.size() < this.maxRecords)
+				cs.records.add(DataSourceSupport.snapshot(m));
+			else
+				cs.records = null;
+		}
+		return m;
+	}
+
+	@Override
+	protected void close(Object status) {
+		CacheStatus cs = (CacheStatus) status;
+		cs.cached = null;
+		cs.records = null;
+		if (cs.status != null) {
+			Object s = cs.status;
+			cs.status = null;
+			this.source.close(s);
+		}
+	}
+
+	@Override
+	protected List<String> primaryKey(String table) {
+		return this.source.primaryKey(table);
+	}
+
+	@Override
+	protected void insert(String table, Map<String, ?> data) {
+		try {
+			this.source.insert(table, data);
+		} finally {
+			this.invalidate(table);
+		}
+	}
+
+	@Override
+	protected void update(String table, Map<String, ?> key,
+			Map<String, ?> data) {
+		try {
+			this.source.update(table, key, data);
+		} finally {
+			this.invalidate(table);
+		}
+	}
+
+	@Override
+	protected void delete(String table, Map<String, ?> key) {
+		try {
+			this.source.delete(table, key);
+		} finally {
+			this.invalidate(table);
+		}
+	}
+
+	@Override
+	protected Object beginWrite() {
+		return this.source.beginWrite();
+	}
+
+	/**
+	 * Also drops all cached records, which may have been read again before
+	 * the batches were committed.
+	 */
+	@Override
+	protected void commitWrite(Object transaction) {
+		try {
+			this.source.commitWrite(transaction);
+		} finally {
+			this.invalidate();
+		}
+	}
+
+	@Override
+	protected void rollbackWrite(Object transaction) {
+		this.source.rollbackWrite(transaction);
+	}
+
+	@Override
+	protected void insertAll(String table, List<Map<String, ?>> data) {
+		try {
+			this.source.insertAll(table, data);
+		} finally {
+			this.invalidate(table);
+		}
+	}
+
+	@Override
+	protected void updateAll(String table, List<Map<String, ?>> keys,
+			List<Map<String, ?>> data) {
+		try {
+			this.source.updateAll(table, keys, data);
+		} finally {
+			this.invalidate(table);
+		}
+	}
+
+	@Override
+	protected void deleteAll(String table, List<Map<String, ?>> keys) {
+		try {
+			this.source.deleteAll(table, keys);
+		} finally {
+			this.invalidate(table);
+		}
+	}
+}
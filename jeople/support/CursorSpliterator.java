@@ -0,0 +1,73 @@
+package jeople.support;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+import jeople.Cursor;
+import jeople.Entity;
+
+/**
+ * {@link Spliterator} over a {@link Cursor}, used to build query streams.<br>
+ * The cursor is closed once exhausted. Splitting (for parallel streams) moves
+ * batches of increasing size to array based spliterators, like
+ * {@link Spliterators#spliteratorUnknownSize(java.util.Iterator, int)}.
+ * 
+ * @author Reda El Khattabi
+ */
+class CursorSpliterator<T extends Entity> implements Spliterator<T> {
+
+	private static final int BATCH_UNIT = 1 << 10;
+	private static final int MAX_BATCH = 1 << 25;
+
+	private Cursor<T> cursor;
+	private int characteristics;
+	private int batch;
+
+	public CursorSpliterator(Cursor<T> cursor, int characteristics) {
+		this.cursor = cursor;
+		this.characteristics = characteristics | Spliterator.NONNULL;
+		this.batch = 0;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super T> action) {
+		if (!this.cursor.hasNext()) {
+			this.cursor.close();
+			return false;
+		}
+		action.accept(this.cursor.next());
+		return true;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super T> action) {
+		while (this.cursor.hasNext())
+			action.accept(this.cursor.next());
+		this.cursor.close();
+	}
+
+	@Override
+	public Spliterator<T> trySplit() {
+		if (!this.cursor.hasNext())
+			return null;
+		int n = Math.min(this.batch + BATCH_UNIT, MAX_BATCH);
+		Object[] a = new Object[n];
+		int j = 0;
+		do
+			a[j] = this.cursor.next();
+		while (++j < n && this.cursor.hasNext());
+		this.batch = j;
+		return Spliterators.spliterator(a, 0, j, this.characteristics);
+	}
+
+	@Override
+	public long estimateSize() {
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public int characteristics() {
+		return this.characteristics;
+	}
+}
@@ -1,26 +1,45 @@
 package jeople.support;
 
-import java.lang.reflect.Field;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
+import jeople.Condition;
 import jeople.DataSource;
 import jeople.Entity;
+import jeople.Key;
 import jeople.Query;
-
+import jeople.conditions.Equals;
 import jeople.errors.InternalError;
+import jeople.metrics.Instrumentation;
 
 /**
  * Basic customizable {@link DataSource} implementation.<br>
  * Extending this class allows the implementation of a {@link DataSource}
  * through usual CRUD operations (only the "select" operation has to be
  * implemented in 2 steps; one for initiating the request, and one each time a
- * record is requested).
+ * record is requested).<br>
+ * Entities keep the state of their record as it was last fetched or saved:
+ * records are looked up by their key (see {@link #primaryKey(String)}), and
+ * only changed attributes are updated. An optional identity map (see
+ * {@link #setIdentityMapEnabled(boolean)}) shares entities between queries,
+ * and an optional write-behind mode (see
+ * {@link #setWriteBehind(int, long, int)}) queues and coalesces writes.
+ * Operations can be timed (see {@link #setInstrumentation(Instrumentation)}).
  * 
  * @author Reda El Khattabi
  */
 public abstract class DataSourceSupport implements DataSource {
 
+	private volatile IdentityMap identities = null;
+	private volatile WriteBehind writeBehind = null;
+	private volatile Instrumentation instrumentation = null;
+
 	@Override
 	public <T extends Entity> Query<T> select(Class<T> type) {
 		return new QuerySupport<T>(this, type);
@@ -28,95 +47,675 @@ public abstract class DataSourceSupport implements DataSource {
 
 	@Override
 	public <T extends Entity> T create(Class<T> type) {
-		try {
-			T t = type.newInstance();
-			Field dsf = Entity.class.getDeclaredField("datasource");
-			dsf.setAccessible(true);
-			dsf.set(t, this);
-			dsf.setAccessible(false);
+		T t = EntityModel.of(type).newInstance();
+		EntityModel.setDataSource(t, this);
+		return t;
+	}
+
+	/**
+	 * The columns identifying the records of the entity table: the
+	 * attributes marked as {@link Key}, or the table primary key (see
+	 * {@link #primaryKey(String)}), or null if records are identified by all
+	 * their columns.
+	 */
+	List<String> keyColumns(EntityModel<?> model) {
+		if (!model.getKeyColumns().isEmpty())
+			return model.getKeyColumns();
+		List<String> pk = this.primaryKey(model.getTable());
+		return pk == null || pk.isEmpty() ? null : pk;
+	}
+
+	/**
+	 * Looks the entity up in the identity map first (if enabled), then
+	 * selects the first record matching the key values (see
+	 * {@link #primaryKey(String)}).
+	 */
+	@Override
+	public <T extends Entity> T get(Class<T> type, Object... key) {
+		EntityModel<T> model = EntityModel.of(type);
+		List<String> columns = this.keyColumns(model);
+		if (columns == null)
+			throw new IllegalArgumentException("No key for "
+					+ model.getTable());
+		if (key.length != columns.size())
+			throw new IllegalArgumentException("Expected " + columns.size()
+					+ " key values for " + model.getTable() + columns
+					+ ", got " + key.length);
+		T t = this.getCached(type, key);
+		if (t != null)
+			return t;
+		Query<T> q = this.select(type);
+		for (int i = 0; i < key.length; ++i)
+			q = q.where(new Equals<T>(columns.get(i), key[i]));
+		return q.first();
+	}
+
+	// ///////////////////////////////// IDENTITY MAP
+
+	/**
+	 * Whether queries return the same entity instance for the same record
+	 * (disabled by default). Records are identified by their key (see
+	 * {@link #primaryKey(String)}), entities of tables without key are never
+	 * shared.
+	 */
+	public boolean isIdentityMapEnabled() {
+		return this.identities != null;
+	}
+
+	/**
+	 * Enables or disables the identity map. While enabled, fetching a record
+	 * whose entity is still in use returns that entity (as is, without
+	 * reading the record data again), and entities are weakly referenced, so
+	 * that unused ones are forgotten.
+	 */
+	public void setIdentityMapEnabled(boolean enabled) {
+		if (enabled == this.isIdentityMapEnabled())
+			return;
+		this.identities = enabled ? new IdentityMap() : null;
+	}
+
+	/**
+	 * Forgets all the entities of the identity map.
+	 */
+	public void clearIdentityMap() {
+		IdentityMap im = this.identities;
+		if (im != null)
+			im.clear();
+	}
+
+	/**
+	 * The entity in use for the record with the given key values (in key
+	 * column order), or null if there is none or if the identity map is
+	 * disabled. Doesn't access the data source.
+	 */
+	public <T extends Entity> T getCached(Class<T> type, Object... key) {
+		IdentityMap im = this.identities;
+		if (im == null)
+			return null;
+		return type.cast(im.get(new IdentityMap.Id(type, key.clone())));
+	}
+
+	/**
+	 * The identity of a record in the identity map, or null if the record
+	 * can't be identified.
+	 */
+	private IdentityMap.Id identify(EntityModel<?> model, Map<String, ?> data) {
+		List<String> columns = this.keyColumns(model);
+		if (columns == null || data == null)
+			return null;
+		Object[] values = new Object[columns.size()];
+		for (int i = 0; i < values.length; ++i) {
+			if (!data.containsKey(columns.get(i)))
+				return null;
+			values[i] = data.get(columns.get(i));
+		}
+		return new IdentityMap.Id(model.getType(), values);
+	}
+
+	/**
+	 * Whether the record state has all the entity attributes (records
+	 * fetched by queries restricted to some attributes don't, see
+	 * {@link Query#fields(String...)}). Only complete entities are shared
+	 * through the identity map.
+	 */
+	private static boolean isComplete(EntityModel<?> model,
+			Map<String, ?> data) {
+		for (EntityModel.Attribute a : model.getAttributes())
+			if (!data.containsKey(a.getName()))
+				return false;
+		return true;
+	}
+
+	/**
+	 * The state of a record fetched without some of the entity attributes
+	 * (see {@link Query#fields(String...)}). An attribute set to its default
+	 * value can't be told from one that wasn't fetched, so such entities
+	 * can't be saved until the missing attributes are loaded.
+	 */
+	private static class PartialState extends TreeMap<String, Object> {
+		private static final long serialVersionUID = 1L;
+
+		public PartialState() {
+			super(String.CASE_INSENSITIVE_ORDER);
+		}
+	}
+
+	/**
+	 * The entity of a fetched record, either the one in the identity map or
+	 * a new one. The record may lack some of the attributes if the query
+	 * restricted them.
+	 */
+	<T extends Entity> T hydrate(EntityModel<T> model, Map<String, ?> data,
+			boolean restricted) {
+		IdentityMap im = this.identities;
+		IdentityMap.Id id = im != null ? this.identify(model, data) : null;
+		if (id != null) {
+			Entity e = im.get(id);
+			if (e != null)
+				return model.getType().cast(e);
+		}
+		T t = model.newInstance();
+		model.setData(t, data);
+		EntityModel.setDataSource(t, this);
+		if (restricted && !DataSourceSupport.isComplete(model, data)) {
+			Map<String, Object> partial = new PartialState();
+			partial.putAll(data);
+			EntityModel.setKey(t, DataSourceSupport.snapshot(partial));
 			return t;
-		} catch (InstantiationException e) {
-			throw new InternalError(e);
-		} catch (IllegalAccessException e) {
-			throw new InternalError(e);
-		} catch (NoSuchFieldException e) {
-			throw new InternalError(e);
-		} catch (SecurityException e) {
-			throw new InternalError(e);
 		}
+		EntityModel.setKey(t, DataSourceSupport.snapshot(data));
+		if (id != null)
+			return model.getType().cast(im.putIfAbsent(id, t));
+		return t;
 	}
 
-	private static Map<String, ?> getEntityKey(Entity entity) {
-		try {
-			Field dsf = Entity.class.getDeclaredField("key");
-			dsf.setAccessible(true);
-			@SuppressWarnings("unchecked")
-			Map<String, ?> m = (Map<String, ?>) dsf.get(entity);
-			dsf.setAccessible(false);
-			return m;
-		} catch (NoSuchFieldException e) {
-			throw new InternalError(e);
-		} catch (SecurityException e) {
-			throw new InternalError(e);
-		} catch (IllegalArgumentException e) {
-			throw new InternalError(e);
-		} catch (IllegalAccessException e) {
-			throw new InternalError(e);
-		}
-	}
-
-	private static void setEntityKey(Entity entity, Map<String, ?> key) {
-		try {
-			Field dsf = Entity.class.getDeclaredField("key");
-			dsf.setAccessible(true);
-			dsf.set(entity, key);
-			dsf.setAccessible(false);
-		} catch (NoSuchFieldException e) {
-			throw new InternalError(e);
-		} catch (SecurityException e) {
-			throw new InternalError(e);
-		} catch (IllegalArgumentException e) {
-			throw new InternalError(e);
-		} catch (IllegalAccessException e) {
-			throw new InternalError(e);
-		}
-	}
-
-	private static Map<String, ?> getEntityData(Entity entity) {
-		Map<String, Object> m = new HashMap<String, Object>();
-		for (Field f : entity.getClass().getFields()) {
+	/**
+	 * Refuses to save an entity with a partial record state.
+	 */
+	private static void checkComplete(Entity entity, Map<String, ?> snapshot) {
+		if (snapshot instanceof PartialState)
+			throw new IllegalStateException("Not all the attributes of "
+					+ entity + " have been fetched, load them before saving");
+	}
+
+	/**
+	 * The record state to keep: values that can be changed in place (see
+	 * {@link Values#isMutable(Object)}) are copied, so that changing them in
+	 * the entity doesn't change the state as well.
+	 */
+	static Map<String, ?> snapshot(Map<String, ?> data) {
+		if (data instanceof Row)
+			return ((Row) data).copy();
+		boolean mutable = false;
+		for (Object v : data.values())
+			mutable |= Values.isMutable(v);
+		if (!mutable)
+			return data;
+		Map<String, Object> m = data instanceof PartialState ? new PartialState()
+				: new TreeMap<String, Object>(String.CASE_INSENSITIVE_ORDER);
+		for (Map.Entry<String, ?> e : data.entrySet())
+			m.put(e.getKey(), Values.copy(e.getValue()));
+		return m;
+	}
+
+	/**
+	 * Updates the record state kept by an entity (null once deleted), and
+	 * its identity map entry.
+	 */
+	private <T extends Entity> void setState(EntityModel<T> model, T entity,
+			Map<String, ?> snapshot) {
+		IdentityMap im = this.identities;
+		if (im != null) {
+			IdentityMap.Id old = this.identify(model,
+					EntityModel.getKey(entity));
+			if (old != null)
+				im.remove(old, entity);
+			IdentityMap.Id id = this.identify(model, snapshot);
+			if (id != null && DataSourceSupport.isComplete(model, snapshot))
+				im.put(id, entity);
+		}
+		EntityModel.setKey(entity, snapshot == null ? null : DataSourceSupport
+				.snapshot(snapshot));
+	}
+
+	// ///////////////////////////////// WRITE-BEHIND
+
+	/**
+	 * Whether saves and deletes are queued (see
+	 * {@link #setWriteBehind(int, long, int)}).
+	 */
+	public boolean isWriteBehindEnabled() {
+		return this.writeBehind != null;
+	}
+
+	/**
+	 * Enables write-behind mode (or changes its settings, after flushing the
+	 * pending writes): saves and deletes return immediately, and a background
+	 * thread writes them in batches (see {@link #saveAll(Iterable)}), once
+	 * enough of them are pending or the oldest one has waited long enough.
+	 * Writes of the same entity coalesce: only its last state is written.
+	 * Writes coalesce by entity instance rather than by record key: two
+	 * instances of the same record are written separately, in the order each
+	 * one was first queued.<br>
+	 * Queries don't see pending writes, see {@link #flush()}. A failed batch is
+	 * dropped, and its failure thrown by the next save, delete or flush.
+	 * 
+	 * @param batchSize
+	 *            number of pending writes that starts a batch
+	 * @param maxDelay
+	 *            maximum time (in milliseconds) a write is pending before a
+	 *            batch starts
+	 * @param capacity
+	 *            maximum number of pending writes, saving or deleting other
+	 *            entities then waits for the queue to drain
+	 */
+	public void setWriteBehind(int batchSize, long maxDelay, int capacity) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Invalid batch size: "
+					+ batchSize);
+		if (maxDelay < 0)
+			throw new IllegalArgumentException("Invalid delay: " + maxDelay);
+		if (capacity < batchSize)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		synchronized (this) {
+			this.disableWriteBehind();
+			this.writeBehind = new WriteBehind(this, batchSize, maxDelay,
+					capacity);
+		}
+	}
+
+	/**
+	 * Writes the pending writes, and goes back to writing directly.
+	 */
+	public synchronized void disableWriteBehind() {
+		WriteBehind wb = this.writeBehind;
+		if (wb != null) {
+			// writes are queued until the last flush, then done directly
 			try {
-				m.put(f.getName(), f.get(entity));
-			} catch (IllegalArgumentException e) {
-				throw new InternalError(e);
-			} catch (IllegalAccessException e) {
-				throw new InternalError(e);
+				wb.close();
+			} finally {
+				this.writeBehind = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns once all the saves and deletes made so far are written, in
+	 * write-behind mode (does nothing otherwise).
+	 */
+	public void flush() {
+		WriteBehind wb = this.writeBehind;
+		if (wb != null)
+			wb.flush();
+	}
+
+	// ///////////////////////////////// INSTRUMENTATION
+
+	/**
+	 * The instrumentation receiving the timings of the operations, or null
+	 * if they aren't timed.
+	 */
+	public Instrumentation getInstrumentation() {
+		return this.instrumentation;
+	}
+
+	/**
+	 * Times the operations of this data source (null to stop): selects,
+	 * fetches, building entities and evaluating conditions in queries,
+	 * writes, and the operations specific to the implementation (eg.
+	 * executing statements).
+	 */
+	public void setInstrumentation(Instrumentation instrumentation) {
+		this.instrumentation = instrumentation;
+	}
+
+	// ///////////////////////////////// OPERATIONS
+
+	/**
+	 * The lookup key of a record, from its last known state.
+	 */
+	private Map<String, ?> lookup(EntityModel<?> model,
+			Map<String, ?> snapshot) {
+		List<String> columns = this.keyColumns(model);
+		if (columns == null)
+			return snapshot;
+		Map<String, Object> key = new LinkedHashMap<String, Object>();
+		for (String c : columns) {
+			if (!snapshot.containsKey(c))
+				return snapshot;
+			key.put(c, snapshot.get(c));
+		}
+		return key;
+	}
+
+	/**
+	 * The attributes changed since the last known state of the record.
+	 */
+	private static Map<String, Object> changes(Row data,
+			Map<String, ?> snapshot) {
+		Map<String, Object> m = new LinkedHashMap<String, Object>();
+		for (int i = 0; i < data.size(); ++i) {
+			String name = data.getLayout().getName(i);
+			if (!snapshot.containsKey(name)
+					|| !Values.equal(data.get(i), snapshot.get(name)))
+				m.put(name, data.get(i));
+		}
+		return m;
+	}
+
+	/**
+	 * The state of a record once updated.
+	 */
+	private static Map<String, ?> merge(Map<String, ?> snapshot,
+			Map<String, ?> changes) {
+		if (snapshot instanceof Row) {
+			Row row = (Row) snapshot;
+			RowLayout layout = row.getLayout();
+			Object[] values = new Object[layout.size()];
+			for (int i = 0; i < values.length; ++i)
+				values[i] = row.get(i);
+			boolean complete = true;
+			for (Map.Entry<String, ?> e : changes.entrySet()) {
+				int i = layout.indexOf(e.getKey());
+				if (i >= 0)
+					values[i] = e.getValue();
+				else
+					complete = false;
 			}
+			if (complete)
+				return new Row(layout, values);
 		}
+		Map<String, Object> m = new TreeMap<String, Object>(
+				String.CASE_INSENSITIVE_ORDER);
+		m.putAll(snapshot);
+		m.putAll(changes);
 		return m;
 	}
 
+	/**
+	 * Inserts new entities, and updates the changed attributes of the others
+	 * (entities that haven't changed since they were fetched or saved aren't
+	 * sent to the data source). Only queued in write-behind mode. Entities
+	 * fetched without some of their attributes can't be saved until they are
+	 * loaded (see {@link #load(Entity, String...)}).
+	 */
 	@Override
 	public <T extends Entity> void save(T entity) {
-		String tablename = Utils.getSimpleClassName(entity);
-		Map<String, ?> data = DataSourceSupport.getEntityData(entity);
-		Map<String, ?> key = DataSourceSupport.getEntityKey(entity);
-		if (key == null) {
-			DataSourceSupport.setEntityKey(entity, data);
+		EntityModel<T> model = EntityModel.of(entity);
+		DataSourceSupport.checkComplete(entity, EntityModel.getKey(entity));
+		Row data = model.getRow(entity);
+		WriteBehind wb = this.writeBehind;
+		if (wb != null && wb.queue(entity, false, data))
+			return;
+		String tablename = model.getTable();
+		Map<String, ?> snapshot = EntityModel.getKey(entity);
+		Instrumentation in = this.instrumentation;
+		if (snapshot == null) {
+			long start = in == null ? 0 : System.nanoTime();
 			this.insert(tablename, data);
-		} else
-			this.update(tablename, key, data);
+			if (in != null)
+				in.written(tablename, Instrumentation.Write.INSERT, 1,
+						System.nanoTime() - start);
+			this.setState(model, entity, data);
+			return;
+		}
+		Map<String, Object> changes = DataSourceSupport.changes(data, snapshot);
+		if (changes.isEmpty())
+			return;
+		long start = in == null ? 0 : System.nanoTime();
+		this.update(tablename, this.lookup(model, snapshot), changes);
+		if (in != null)
+			in.written(tablename, Instrumentation.Write.UPDATE, 1,
+					System.nanoTime() - start);
+		this.setState(model, entity, DataSourceSupport.merge(snapshot, changes));
 	}
 
+	/**
+	 * Deletes the record of the entity, if it has one. Only queued in
+	 * write-behind mode.
+	 */
 	@Override
 	public <T extends Entity> void delete(T entity) {
-		String tablename = Utils.getSimpleClassName(entity);
-		Map<String, ?> key = DataSourceSupport.getEntityKey(entity);
-		if (key != null)
-			this.delete(tablename, key);
+		WriteBehind wb = this.writeBehind;
+		if (wb != null && wb.queue(entity, true, null))
+			return;
+		EntityModel<T> model = EntityModel.of(entity);
+		Map<String, ?> snapshot = EntityModel.getKey(entity);
+		if (snapshot != null) {
+			Instrumentation in = this.instrumentation;
+			long start = in == null ? 0 : System.nanoTime();
+			this.delete(model.getTable(), this.lookup(model, snapshot));
+			if (in != null)
+				in.written(model.getTable(), Instrumentation.Write.DELETE, 1,
+						System.nanoTime() - start);
+			this.setState(model, entity, null);
+		}
 		// TODO DECIDE: deleting a non existing record
 	}
 
+	/**
+	 * Selects the record of the entity by its key, and sets the given
+	 * attributes from it (attributes without column are left as they are).
+	 * Once all the attributes missing from a restricted fetch are loaded,
+	 * the entity can be saved again.
+	 */
+	@Override
+	public <T extends Entity> void load(T entity, String... fields) {
+		EntityModel<T> model = EntityModel.of(entity);
+		Map<String, ?> snapshot = EntityModel.getKey(entity);
+		if (snapshot == null)
+			throw new IllegalArgumentException("No record for " + entity);
+		List<String> columns = new ArrayList<String>();
+		if (fields.length == 0) {
+			for (EntityModel.Attribute a : model.getAttributes())
+				if (!snapshot.containsKey(a.getName()))
+					columns.add(a.getName());
+		} else
+			for (String f : fields) {
+				EntityModel.Attribute a = model.getAttribute(f);
+				if (a == null)
+					throw new IllegalArgumentException("No attribute " + f
+							+ " in " + model.getTable());
+				columns.add(a.getName());
+			}
+		if (columns.isEmpty())
+			return;
+		String table = model.getTable();
+		Map<String, ?> key = this.lookup(model, snapshot);
+		Selection selection = new Selection();
+		for (Map.Entry<String, ?> e : key.entrySet()) {
+			Condition<T> c = new Equals<T>(e.getKey(), e.getValue());
+			if (this.canFilter(table, c))
+				selection.addCondition(c);
+		}
+		List<String> selected = new ArrayList<String>(key.keySet());
+		selected.addAll(columns);
+		selection.setColumns(selected);
+		Map<String, ?> record = null;
+		Object state = this.select(table, selection);
+		try {
+			while (record == null) {
+				Map<String, ?> m = this.fetch(state);
+				if (m == null)
+					break;
+				if (DataSourceSupport.matches(key, m))
+					record = m;
+			}
+		} finally {
+			this.close(state);
+		}
+		if (record == null)
+			throw new InternalError("No record for " + entity);
+		Map<String, Object> loaded = new LinkedHashMap<String, Object>();
+		for (String c : columns)
+			if (record.containsKey(c))
+				loaded.put(c, record.get(c));
+		model.setData(entity, loaded);
+		Map<String, ?> merged = DataSourceSupport.merge(snapshot, loaded);
+		if (snapshot instanceof PartialState && fields.length > 0
+				&& !DataSourceSupport.isComplete(model, merged)) {
+			// still missing attributes (those without column are only
+			// skipped when loading all the missing ones)
+			Map<String, Object> partial = new PartialState();
+			partial.putAll(merged);
+			merged = partial;
+		}
+		this.setState(model, entity, merged);
+	}
+
+	private static boolean matches(Map<String, ?> key, Map<String, ?> record) {
+		for (Map.Entry<String, ?> e : key.entrySet())
+			if (!Values.equal(e.getValue(), record.get(e.getKey())))
+				return false;
+		return true;
+	}
+
+	private static <V> List<V> group(Map<String, List<V>> groups, String table) {
+		List<V> l = groups.get(table);
+		if (l == null) {
+			l = new ArrayList<V>();
+			groups.put(table, l);
+		}
+		return l;
+	}
+
+	/**
+	 * The pending write of an entity, one per instance: an entity passed
+	 * several times is written once.
+	 */
+	private static WriteBehind.Pending pending(List<WriteBehind.Pending> writes,
+			Map<Entity, WriteBehind.Pending> byEntity, Entity entity) {
+		WriteBehind.Pending p = byEntity.get(entity);
+		if (p == null) {
+			p = new WriteBehind.Pending(entity, 0);
+			byEntity.put(entity, p);
+			writes.add(p);
+		}
+		return p;
+	}
+
+	@Override
+	public <T extends Entity> void saveAll(Iterable<T> entities) {
+		WriteBehind wb = this.writeBehind;
+		List<WriteBehind.Pending> writes = new ArrayList<WriteBehind.Pending>();
+		Map<Entity, WriteBehind.Pending> byEntity = new IdentityHashMap<Entity, WriteBehind.Pending>();
+		for (T entity : entities) {
+			DataSourceSupport.checkComplete(entity, EntityModel.getKey(entity));
+			Row data = EntityModel.of(entity).getRow(entity);
+			if (wb != null && wb.queue(entity, false, data))
+				continue;
+			DataSourceSupport.pending(writes, byEntity, entity).data = data;
+		}
+		this.write(writes);
+	}
+
+	@Override
+	public <T extends Entity> void deleteAll(Iterable<T> entities) {
+		WriteBehind wb = this.writeBehind;
+		List<WriteBehind.Pending> writes = new ArrayList<WriteBehind.Pending>();
+		Map<Entity, WriteBehind.Pending> byEntity = new IdentityHashMap<Entity, WriteBehind.Pending>();
+		for (T entity : entities) {
+			if (wb != null && wb.queue(entity, true, null))
+				continue;
+			DataSourceSupport.pending(writes, byEntity, entity).delete = true;
+		}
+		this.write(writes);
+	}
+
+	/**
+	 * Performs writes grouped by table, as batches (see
+	 * {@link #insertAll(String, List)}): deletes first, then inserts and
+	 * updates. In a transaction (see {@link #beginWrite()}), the state of the
+	 * entities is updated once all the batches are committed, otherwise table
+	 * by table, as soon as their batch succeeds.
+	 */
+	void write(List<WriteBehind.Pending> writes) {
+		Map<String, List<Map<String, ?>>> deletes = new LinkedHashMap<String, List<Map<String, ?>>>();
+		Map<String, List<Entity>> deleted = new LinkedHashMap<String, List<Entity>>();
+		Map<String, List<Map<String, ?>>> inserts = new LinkedHashMap<String, List<Map<String, ?>>>();
+		Map<String, List<Entity>> inserted = new LinkedHashMap<String, List<Entity>>();
+		Map<String, List<Map<String, ?>>> updateKeys = new LinkedHashMap<String, List<Map<String, ?>>>();
+		Map<String, List<Map<String, ?>>> updates = new LinkedHashMap<String, List<Map<String, ?>>>();
+		Map<String, List<Map<String, ?>>> merged = new LinkedHashMap<String, List<Map<String, ?>>>();
+		Map<String, List<Entity>> updated = new LinkedHashMap<String, List<Entity>>();
+		for (WriteBehind.Pending p : writes) {
+			EntityModel<Entity> model = EntityModel.of(p.entity);
+			String table = model.getTable();
+			Map<String, ?> snapshot = EntityModel.getKey(p.entity);
+			if (p.delete && snapshot != null) {
+				DataSourceSupport.group(deletes, table).add(
+						this.lookup(model, snapshot));
+				DataSourceSupport.group(deleted, table).add(p.entity);
+				// saved again after being deleted, inserted again
+				snapshot = null;
+			}
+			if (p.data == null)
+				continue;
+			if (snapshot == null) {
+				DataSourceSupport.group(inserts, table).add(p.data);
+				DataSourceSupport.group(inserted, table).add(p.entity);
+				continue;
+			}
+			Map<String, Object> changes = DataSourceSupport.changes(p.data,
+					snapshot);
+			if (changes.isEmpty())
+				continue;
+			DataSourceSupport.group(updateKeys, table).add(
+					this.lookup(model, snapshot));
+			DataSourceSupport.group(updates, table).add(changes);
+			DataSourceSupport.group(merged, table).add(
+					DataSourceSupport.merge(snapshot, changes));
+			DataSourceSupport.group(updated, table).add(p.entity);
+		}
+		if (deletes.isEmpty() && inserts.isEmpty() && updates.isEmpty())
+			return;
+
+		Instrumentation in = this.instrumentation;
+		Object transaction = this.beginWrite();
+		List<Entity> entities = new ArrayList<Entity>();
+		List<Map<String, ?>> states = new ArrayList<Map<String, ?>>();
+		try {
+			for (Map.Entry<String, List<Map<String, ?>>> e : deletes
+					.entrySet()) {
+				long start = in == null ? 0 : System.nanoTime();
+				this.deleteAll(e.getKey(), e.getValue());
+				if (in != null)
+					in.written(e.getKey(), Instrumentation.Write.DELETE, e
+							.getValue().size(), System.nanoTime() - start);
+				List<Entity> l = deleted.get(e.getKey());
+				entities.addAll(l);
+				states.addAll(Collections.<Map<String, ?>> nCopies(l.size(),
+						null));
+				if (transaction == null)
+					this.setStates(entities, states);
+			}
+			for (Map.Entry<String, List<Map<String, ?>>> e : inserts
+					.entrySet()) {
+				long start = in == null ? 0 : System.nanoTime();
+				this.insertAll(e.getKey(), e.getValue());
+				if (in != null)
+					in.written(e.getKey(), Instrumentation.Write.INSERT, e
+							.getValue().size(), System.nanoTime() - start);
+				entities.addAll(inserted.get(e.getKey()));
+				states.addAll(e.getValue());
+				if (transaction == null)
+					this.setStates(entities, states);
+			}
+			for (Map.Entry<String, List<Map<String, ?>>> e : updates
+					.entrySet()) {
+				long start = in == null ? 0 : System.nanoTime();
+				this.updateAll(e.getKey(), updateKeys.get(e.getKey()),
+						e.getValue());
+				if (in != null)
+					in.written(e.getKey(), Instrumentation.Write.UPDATE, e
+							.getValue().size(), System.nanoTime() - start);
+				entities.addAll(updated.get(e.getKey()));
+				states.addAll(merged.get(e.getKey()));
+				if (transaction == null)
+					this.setStates(entities, states);
+			}
+		} catch (RuntimeException | Error e) {
+			if (transaction != null)
+				this.rollbackWrite(transaction);
+			throw e;
+		}
+		if (transaction != null) {
+			this.commitWrite(transaction);
+			this.setStates(entities, states);
+		}
+	}
+
+	/**
+	 * Sets the state of written entities, and forgets them.
+	 */
+	private void setStates(List<Entity> entities, List<Map<String, ?>> states) {
+		for (int i = 0; i < entities.size(); ++i)
+			this.setState(EntityModel.of(entities.get(i)), entities.get(i),
+					states.get(i));
+		entities.clear();
+		states.clear();
+	}
+
 	// ///////////////////////////////// CUSTOMIZATIONS
 
 	/**
@@ -127,19 +726,136 @@ public abstract class DataSourceSupport implements DataSource {
 	 */
 	protected abstract Object select(String table);
 
+	/**
+	 * Whether this data source can evaluate the given condition itself (eg.
+	 * by translating it to SQL), instead of it being evaluated on the client
+	 * side on each fetched entity. Accepted conditions are then passed to
+	 * {@link #select(String, Selection)}.<br>
+	 * The default implementation accepts no condition.
+	 */
+	protected boolean canFilter(String table, Condition<?> condition) {
+		return false;
+	}
+
+	/**
+	 * Whether this data source can return records in the order of the given
+	 * comparator, instead of them being sorted on the client side. Accepted
+	 * comparators are then passed to {@link #select(String, Selection)}.<br>
+	 * The default implementation accepts no comparator.
+	 */
+	protected boolean canOrder(String table, Comparator<?> comparator) {
+		return false;
+	}
+
+	/**
+	 * Whether this data source can restrict the returned records to a range
+	 * (see {@link Selection#getOffset()} and {@link Selection#getLimit()}).
+	 * A range is only requested when all the query conditions and ordering
+	 * have been accepted.<br>
+	 * The default implementation returns false.
+	 */
+	protected boolean canLimit(String table) {
+		return false;
+	}
+
+	/**
+	 * Performs a select on the table, restricted to the records satisfying
+	 * the selection, without fetching any data.<br>
+	 * The default implementation calls {@link #select(String)}, which is
+	 * enough for data sources that don't override
+	 * {@link #canFilter(String, Condition)}.
+	 * 
+	 * @return
+	 *         An object holding the status of the query.
+	 */
+	protected Object select(String table, Selection selection) {
+		return this.select(table);
+	}
+
 	/**
 	 * gets the next record using (and updating) the provided status.
 	 * 
 	 * @param status
-	 *            The object returned by the {@link #select(String)} call, this
-	 *            method can, and should, modify this object to reflect the new
-	 *            query status.
+	 *            The object returned by the {@link #select(String, Selection)}
+	 *            call, this method can, and should, modify this object to
+	 *            reflect the new query status.
 	 * 
 	 * @return
-	 *         the next record data, or null if the query is over.
+	 *         the next record data, or null if the query is over. Returning
+	 *         a {@link Row} (all the rows of a query sharing the same
+	 *         {@link RowLayout}) is recommended: records are kept as the key
+	 *         of the fetched entities.
 	 */
 	protected abstract Map<String, ?> fetch(Object status);
 
+	/**
+	 * Counts the records satisfying the selection (conditions only, it has
+	 * neither order nor range), or returns -1 if this data source can't
+	 * count records without fetching them. Only called when all the query
+	 * conditions have been accepted (see
+	 * {@link #canFilter(String, Condition)}).<br>
+	 * The default implementation returns -1.
+	 */
+	protected long count(String table, Selection selection) {
+		return -1;
+	}
+
+	/**
+	 * Whether this data source can compute aggregates of the given column
+	 * itself (see {@link #aggregate(String, Selection, Aggregate, String)}
+	 * and {@link #countBy(String, Selection, String)}). Aggregates are only
+	 * requested when all the query conditions have been accepted.<br>
+	 * The default implementation returns false.
+	 */
+	protected boolean canAggregate(String table, String column) {
+		return false;
+	}
+
+	/**
+	 * Computes an aggregate of the column over the records satisfying the
+	 * selection (conditions only), ignoring null values (see
+	 * {@link Aggregate}). Only called if
+	 * {@link #canAggregate(String, String)} returned true. The result is
+	 * then converted to the type the client side evaluation gives.<br>
+	 * The default implementation returns null: the aggregate is then
+	 * computed on the client side (as it is when there is no value).
+	 */
+	protected Object aggregate(String table, Selection selection,
+			Aggregate function, String column) {
+		return null;
+	}
+
+	/**
+	 * Counts the records satisfying the selection (conditions only), for
+	 * each value of the column. Only called if
+	 * {@link #canAggregate(String, String)} returned true. The values are
+	 * then converted to the attribute type.<br>
+	 * The default implementation returns null: the records are then counted
+	 * on the client side.
+	 */
+	protected Map<Object, Long> countBy(String table, Selection selection,
+			String column) {
+		return null;
+	}
+
+	/**
+	 * Releases the resources held by a select status, called when a query
+	 * iteration is over, whether all records have been fetched or not.<br>
+	 * The default implementation does nothing.
+	 */
+	protected void close(Object status) {
+	}
+
+	/**
+	 * The primary key columns of the table, used to look records up when
+	 * updating or deleting entities without {@link Key} attributes.<br>
+	 * The default implementation returns an empty list, records are then
+	 * looked up by all their columns.
+	 */
+	protected List<String> primaryKey(String table) {
+		return Collections.emptyList();
+	}
+
 	protected abstract void insert(String table, Map<String, ?> get_data);
 
 	protected abstract void update(String table, Map<String, ?> key,
@@ -147,4 +863,60 @@ public abstract class DataSourceSupport implements DataSource {
 
 	protected abstract void delete(String table, Map<String, ?> key);
 
+	/**
+	 * Starts a transaction around the batches of a
+	 * {@link #saveAll(Iterable)} or {@link #deleteAll(Iterable)} (or of a
+	 * write behind flush), performed by the calling thread, and returns it.
+	 * The batches are then either all committed (see
+	 * {@link #commitWrite(Object)}) or all rolled back (see
+	 * {@link #rollbackWrite(Object)}).<br>
+	 * The default implementation returns null: the batches aren't
+	 * transactional, each one being applied on its own.
+	 */
+	protected Object beginWrite() {
+		return null;
+	}
+
+	/**
+	 * Commits a transaction started by {@link #beginWrite()}.
+	 */
+	protected void commitWrite(Object transaction) {
+	}
+
+	/**
+	 * Rolls back a transaction started by {@link #beginWrite()}.
+	 */
+	protected void rollbackWrite(Object transaction) {
+	}
+
+	/**
+	 * Inserts several records in the same table. The default implementation
+	 * calls {@link #insert(String, Map)} for each record, implementations
+	 * should override it if they support batch operations.
+	 */
+	protected void insertAll(String table, List<Map<String, ?>> data) {
+		for (Map<String, ?> d : data)
+			this.insert(table, d);
+	}
+
+	/**
+	 * Updates several records in the same table, <code>keys</code> and
+	 * <code>data</code> have the same size. The default implementation calls
+	 * {@link #update(String, Map, Map)} for each record.
+	 */
+	protected void updateAll(String table, List<Map<String, ?>> keys,
+			List<Map<String, ?>> data) {
+		for (int i = 0; i < keys.size(); ++i)
+			this.update(table, keys.get(i), data.get(i));
+	}
+
+	/**
+	 * Deletes several records from the same table. The default implementation
+	 * calls {@link #delete(String, Map)} for each record.
+	 */
+	protected void deleteAll(String table, List<Map<String, ?>> keys) {
+		for (Map<String, ?> k : keys)
+			this.delete(table, k);
+	}
+
 }
@@ -0,0 +1,352 @@
+package jeople.support;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jeople.DataSource;
+import jeople.Entity;
+import jeople.Key;
+import jeople.errors.InternalError;
+
+/**
+ * Cached reflection data for an {@link Entity} class.<br>
+ * A model is built once per class (see {@link #of(Class)}), it resolves the
+ * entity attributes (public fields) to precompiled {@link MethodHandle}s and
+ * maps column names to attributes (case insensitively), so that reading or
+ * writing an entity doesn't go through reflection anymore.
+ *
+ * @author Reda El Khattabi
+ *
+ * @param <T>
+ *            the entity type
+ */
+public class EntityModel<T extends Entity> {
+
+	private static final MethodType GETTER_TYPE = MethodType.methodType(
+			Object.class, Object.class);
+	private static final MethodType SETTER_TYPE = MethodType.methodType(
+			void.class, Object.class, Object.class);
+
+	private static final MethodHandle DATASOURCE_GETTER;
+	private static final MethodHandle DATASOURCE_SETTER;
+	private static final MethodHandle KEY_GETTER;
+	private static final MethodHandle KEY_SETTER;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			Field ds = Entity.class.getDeclaredField("datasource");
+			ds.setAccessible(true);
+			DATASOURCE_GETTER = lookup.unreflectGetter(ds).asType(GETTER_TYPE);
+			DATASOURCE_SETTER = lookup.unreflectSetter(ds).asType(SETTER_TYPE);
+			Field key = Entity.class.getDeclaredField("key");
+			key.setAccessible(true);
+			KEY_GETTER = lookup.unreflectGetter(key).asType(GETTER_TYPE);
+			KEY_SETTER = lookup.unreflectSetter(key).asType(SETTER_TYPE);
+		} catch (NoSuchFieldException e) {
+			throw new InternalError(e);
+		} catch (IllegalAccessException e) {
+			throw new InternalError(e);
+		}
+	}
+
+	private static final ClassValue<EntityModel<?>> MODELS = new ClassValue<EntityModel<?>>() {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@Override
+		protected EntityModel<?> computeValue(Class<?> type) {
+			return new EntityModel(type.asSubclass(Entity.class));
+		}
+	};
+
+	/**
+	 * The (shared) model of the given entity class.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends Entity> EntityModel<T> of(Class<T> type) {
+		return (EntityModel<T>) MODELS.get(type);
+	}
+
+	/**
+	 * The (shared) model of the given entity's class.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends Entity> EntityModel<T> of(T entity) {
+		return (EntityModel<T>) MODELS.get(entity.getClass());
+	}
+
+	/**
+	 * An entity attribute, ie. a public field of the entity class.
+	 */
+	public static class Attribute {
+		private String name;
+		private Class<?> type;
+		private MethodHandle getter;
+		private MethodHandle setter;
+		private boolean key;
+
+		private Attribute(Field field) throws IllegalAccessException {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			this.name = field.getName();
+			this.type = field.getType();
+			this.key = field.isAnnotationPresent(Key.class);
+			this.getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+			this.setter = Modifier.isFinal(field.getModifiers()) ? null
+					: lookup.unreflectSetter(field).asType(SETTER_TYPE);
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public Class<?> getType() {
+			return this.type;
+		}
+
+		/**
+		 * Whether the attribute is marked as part of the entity {@link Key}.
+		 */
+		public boolean isKey() {
+			return this.key;
+		}
+
+		public Object get(Entity entity) {
+			try {
+				return (Object) this.getter.invokeExact((Object) entity);
+			} catch (Throwable e) {
+				throw new InternalError(e);
+			}
+		}
+
+		public void set(Entity entity, Object value) {
+			if (this.setter == null)
+				throw new InternalError("Attribute " + this.name
+						+ " is final");
+			try {
+				this.setter.invokeExact((Object) entity,
+						Attribute.coerce(this.type, value));
+			} catch (Throwable e) {
+				throw new InternalError("Can not set " + this.name + " to "
+						+ value, e);
+			}
+		}
+
+		/**
+		 * Converts numbers to the exact wrapper type of primitive fields (JDBC
+		 * drivers don't always return the narrowest type).
+		 */
+		private static Object coerce(Class<?> type, Object value) {
+			if (!type.isPrimitive() || !(value instanceof Number))
+				return value;
+			Number n = (Number) value;
+			if (type == int.class)
+				return n.intValue();
+			if (type == long.class)
+				return n.longValue();
+			if (type == double.class)
+				return n.doubleValue();
+			if (type == float.class)
+				return n.floatValue();
+			if (type == short.class)
+				return n.shortValue();
+			if (type == byte.class)
+				return n.byteValue();
+			return value;
+		}
+
+		@Override
+		public String toString() {
+			return this.name;
+		}
+	}
+
+	private Class<T> type;
+	private String table;
+	private MethodHandle constructor;
+	private List<Attribute> attributes;
+	private List<String> key;
+	private Map<String, Attribute> columns;
+	private RowLayout layout;
+
+	private EntityModel(Class<T> type) {
+		this.type = type;
+		String[] ss = type.getName().split("[\\.\\$]");
+		this.table = ss[ss.length - 1];
+		List<Attribute> attributes = new ArrayList<Attribute>();
+		List<String> key = new ArrayList<String>();
+		Map<String, Attribute> columns = new TreeMap<String, Attribute>(
+				String.CASE_INSENSITIVE_ORDER);
+		try {
+			this.constructor = MethodHandles.publicLookup()
+					.unreflectConstructor(type.getConstructor())
+					.asType(MethodType.methodType(Object.class));
+			for (Field f : type.getFields()) {
+				if (Modifier.isStatic(f.getModifiers()))
+					continue;
+				Attribute a = new Attribute(f);
+				attributes.add(a);
+				if (a.key)
+					key.add(a.name);
+				if (!columns.containsKey(a.name))
+					columns.put(a.name, a);
+			}
+		} catch (NoSuchMethodException e) {
+			throw new InternalError(e);
+		} catch (IllegalAccessException e) {
+			throw new InternalError(e);
+		}
+		this.attributes = Collections.unmodifiableList(attributes);
+		this.key = Collections.unmodifiableList(key);
+		String[] names = new String[attributes.size()];
+		for (int i = 0; i < names.length; ++i)
+			names[i] = attributes.get(i).name;
+		this.layout = new RowLayout(names, null);
+		this.columns = columns;
+	}
+
+	public Class<T> getType() {
+		return this.type;
+	}
+
+	/**
+	 * The table name, ie. the simple name of the entity class.
+	 */
+	public String getTable() {
+		return this.table;
+	}
+
+	/**
+	 * The entity attributes, in field declaration order.
+	 */
+	public List<Attribute> getAttributes() {
+		return this.attributes;
+	}
+
+	/**
+	 * The names of the attributes marked as {@link Key}, in field declaration
+	 * order (empty if there is none).
+	 */
+	public List<String> getKeyColumns() {
+		return this.key;
+	}
+
+	/**
+	 * The attribute matching the given column name (case insensitive), or
+	 * null if there is none.
+	 */
+	public Attribute getAttribute(String column) {
+		return this.columns.get(column);
+	}
+
+	/**
+	 * Creates a new, detached, instance of the entity.
+	 */
+	public T newInstance() {
+		try {
+			return this.type.cast((Object) this.constructor.invokeExact());
+		} catch (Throwable e) {
+			throw new InternalError(e);
+		}
+	}
+
+	/**
+	 * The attribute values of the given entity, by attribute name.
+	 */
+	public Map<String, Object> getData(T entity) {
+		Map<String, Object> m = new HashMap<String, Object>();
+		for (Attribute a : this.attributes)
+			m.put(a.name, a.get(entity));
+		return m;
+	}
+
+	/**
+	 * The attributes matching the columns of the given layout (null for
+	 * columns without attribute), resolved once per layout.
+	 */
+	private Attribute[] bind(RowLayout layout) {
+		RowLayout.Binding b = layout.binding;
+		if (b != null && b.model == this)
+			return b.attributes;
+		Attribute[] attributes = new Attribute[layout.size()];
+		for (int i = 0; i < attributes.length; ++i)
+			attributes[i] = this.columns.get(layout.getName(i));
+		layout.binding = new RowLayout.Binding(this, attributes);
+		return attributes;
+	}
+
+	/**
+	 * The attribute values of the given entity, as a {@link Row} (in
+	 * attribute order).
+	 */
+	public Row getRow(T entity) {
+		Object[] values = new Object[this.attributes.size()];
+		for (int i = 0; i < values.length; ++i)
+			values[i] = this.attributes.get(i).get(entity);
+		return new Row(this.layout, values);
+	}
+
+	/**
+	 * Sets the attributes matching the given columns ({@link Row}s are read
+	 * by column index).
+	 */
+	public void setData(T entity, Map<String, ?> data) {
+		if (data instanceof Row) {
+			Row row = (Row) data;
+			Attribute[] attributes = this.bind(row.getLayout());
+			for (int i = 0; i < attributes.length; ++i)
+				if (attributes[i] != null)
+					attributes[i].set(entity, row.get(i));
+			return;
+		}
+		for (Map.Entry<String, ?> e : data.entrySet()) {
+			Attribute a = this.columns.get(e.getKey());
+			if (a != null)
+				a.set(entity, e.getValue());
+		}
+	}
+
+	// ///////////////////////////////// ENTITY INTERNALS
+
+	static DataSource getDataSource(Entity entity) {
+		try {
+			return (DataSource) (Object) DATASOURCE_GETTER
+					.invokeExact((Object) entity);
+		} catch (Throwable e) {
+			throw new InternalError(e);
+		}
+	}
+
+	static void setDataSource(Entity entity, DataSource datasource) {
+		try {
+			DATASOURCE_SETTER.invokeExact((Object) entity, (Object) datasource);
+		} catch (Throwable e) {
+			throw new InternalError(e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static Map<String, ?> getKey(Entity entity) {
+		try {
+			return (Map<String, ?>) (Object) KEY_GETTER
+					.invokeExact((Object) entity);
+		} catch (Throwable e) {
+			throw new InternalError(e);
+		}
+	}
+
+	static void setKey(Entity entity, Map<String, ?> key) {
+		try {
+			KEY_SETTER.invokeExact((Object) entity, (Object) key);
+		} catch (Throwable e) {
+			throw new InternalError(e);
+		}
+	}
+}
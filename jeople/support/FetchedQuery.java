@@ -1,12 +1,23 @@
 package jeople.support;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Function;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import jeople.Condition;
+import jeople.Cursor;
 import jeople.Entity;
 import jeople.OrderedQuery;
 import jeople.Query;
@@ -14,8 +25,13 @@ import jeople.Query;
 /**
  * Internal {@link OrderedQuery} implementation. Doesn't depend on any specific
  * implementation details.<br>
- * This is actually just a simple wrapper around a {@link List}, and thus can safely
- * reused elsewhere.
+ * This is actually just a simple wrapper around an array of entities, and thus
+ * can safely reused elsewhere.<br>
+ * Derived queries are lazy views over the same elements: chained conditions
+ * are evaluated in a single pass, in declaration order, orderings
+ * are sorted on first iteration, and {@link #desc()}, {@link #limit(int)} and
+ * {@link #offset(int)} don't copy anything. Each view keeps its elements once
+ * computed.
  * 
  * @author Reda El Khattabi
  * 
@@ -23,49 +39,365 @@ import jeople.Query;
  */
 public class FetchedQuery<T extends Entity> implements OrderedQuery<T> {
 
-	private List<T> data;
+	/**
+	 * A range of an array, read backwards if reversed.
+	 */
+	private static class Slice {
+		public Object[] array;
+		public int from;
+		public int to;
+		public boolean reversed;
+
+		public Slice(Object[] array, int from, int to, boolean reversed) {
+			this.array = array;
+			this.from = from;
+			this.to = to;
+			this.reversed = reversed;
+		}
+
+		public int size() {
+			return this.to - this.from;
+		}
+
+		public Object get(int index) {
+			return this.array[this.reversed ? this.to - 1 - index : this.from
+					+ index];
+		}
+	}
+
+	/**
+	 * The elements of a query: those of its parent view (or of an array),
+	 * filtered, then sorted, then reversed, then restricted to a window.
+	 * Views are immutable, deriving a query either extends its view (when
+	 * the operation comes after all those of the view) or starts a new one on
+	 * top of it.
+	 */
+	private static class View<T extends Entity> {
+		public View<T> parent;
+		public Object[] array;
+		public List<Condition<T>> filters;
+		public Comparator<T> comparator;
+		public boolean reversed;
+		public int offset;
+		public int limit;
+		private volatile Slice slice;
+
+		private View(View<T> parent, Object[] array) {
+			this.parent = parent;
+			this.array = array;
+			this.filters = Collections.emptyList();
+			this.comparator = null;
+			this.reversed = false;
+			this.offset = 0;
+			this.limit = -1;
+			this.slice = null;
+		}
+
+		public View(Object[] array) {
+			this(null, array);
+		}
+
+		private View<T> copy() {
+			View<T> v = new View<T>(this.parent, this.array);
+			v.filters = this.filters;
+			v.comparator = this.comparator;
+			v.reversed = this.reversed;
+			v.offset = this.offset;
+			v.limit = this.limit;
+			return v;
+		}
+
+		private boolean isWindowed() {
+			return this.offset > 0 || this.limit >= 0;
+		}
+
+		/**
+		 * Filtering commutes with sorting and reversing.
+		 */
+		public View<T> where(Condition<T> condition) {
+			View<T> v = this.isWindowed() ? new View<T>(this, null) : this
+					.copy();
+			List<Condition<T>> l = new ArrayList<Condition<T>>(v.filters);
+			l.add(condition);
+			v.filters = Collections.unmodifiableList(l);
+			return v;
+		}
+
+		public View<T> orderBy(Comparator<T> comparator) {
+			View<T> v = this.comparator != null || this.reversed
+					|| this.isWindowed() ? new View<T>(this, null) : this
+					.copy();
+			v.comparator = comparator;
+			return v;
+		}
+
+		public View<T> desc() {
+			View<T> v = this.isWindowed() ? new View<T>(this, null) : this
+					.copy();
+			v.reversed = !v.reversed;
+			return v;
+		}
+
+		public View<T> window(int offset, int limit) {
+			View<T> v = this.copy();
+			v.offset += offset;
+			if (v.limit >= 0)
+				v.limit = Math.max(v.limit - offset, 0);
+			if (limit >= 0)
+				v.limit = v.limit >= 0 ? Math.min(v.limit, limit) : limit;
+			return v;
+		}
+
+		/**
+		 * The elements of the view, computed on first use.
+		 */
+		@SuppressWarnings("unchecked")
+		public Slice resolve() {
+			Slice s = this.slice;
+			if (s != null)
+				return s;
+			s = this.parent == null ? new Slice(this.array, 0,
+					this.array.length, false) : this.parent.resolve();
+			if (!this.filters.isEmpty() || this.comparator != null) {
+				// only the selected elements are copied
+				List<Object> l = new ArrayList<Object>();
+				for (int i = 0; i < s.size(); ++i) {
+					Object o = s.get(i);
+					if (this.accept((T) o))
+						l.add(o);
+				}
+				Object[] a = l.toArray();
+				if (this.comparator != null) {
+					Comparator<?> c = this.comparator;
+					Arrays.sort(a, (Comparator<Object>) c);
+				}
+				s = new Slice(a, 0, a.length, false);
+			}
+			boolean reversed = s.reversed != this.reversed;
+			int size = s.size();
+			int offset = Math.min(this.offset, size);
+			int count = this.limit >= 0 ? Math.min(this.limit, size - offset)
+					: size - offset;
+			if (reversed)
+				s = new Slice(s.array, s.to - offset - count, s.to - offset,
+						true);
+			else
+				s = new Slice(s.array, s.from + offset, s.from + offset
+						+ count, false);
+			this.slice = s;
+			return s;
+		}
+
+		/**
+		 * Whether an element passes all the filters, each condition being
+		 * evaluated only if the previous ones passed.
+		 */
+		private boolean accept(T element) {
+			for (Condition<T> c : this.filters)
+				if (!c.evaluate(element))
+					return false;
+			return true;
+		}
+	}
+
+	private View<T> view;
 
 	public FetchedQuery(Iterable<T> data) {
-		this.data = new ArrayList<T>();
-		if (data != null)
+		Object[] array;
+		if (data == null)
+			array = new Object[0];
+		else if (data instanceof Collection)
+			array = ((Collection<?>) data).toArray();
+		else {
+			List<T> l = new ArrayList<T>();
 			for (T t : data)
-				this.data.add(t);
+				l.add(t);
+			array = l.toArray();
+		}
+		this.view = new View<T>(array);
 	}
 
+	private FetchedQuery(View<T> view) {
+		this.view = view;
+	}
+
+	/**
+	 * Sorts this query (queries already derived from it aren't affected).
+	 */
 	public void sort(Comparator<T> comparator) {
-		Collections.sort(this.data, comparator);
+		this.view = this.view.orderBy(comparator);
 	}
 
+	/**
+	 * Reverses this query (queries already derived from it aren't affected).
+	 */
 	public void reverse() {
-		Collections.reverse(this.data);
+		this.view = this.view.desc();
 	}
 
 	@Override
 	public Query<T> where(Condition<T> condition) {
-		FetchedQuery<T> q = new FetchedQuery<T>(null);
-		for (T t : this)
-			if (condition.evaluate(t))
-				q.data.add(t);
-		return q;
+		return new FetchedQuery<T>(this.view.where(condition));
 	}
 
 	@Override
 	public OrderedQuery<T> orderBy(Comparator<T> comparator) {
-		FetchedQuery<T> q = new FetchedQuery<T>(this);
-		q.sort(comparator);
-		return q;
+		return new FetchedQuery<T>(this.view.orderBy(comparator));
+	}
+
+	/**
+	 * Removes an element from this query (queries already derived from it
+	 * aren't affected).
+	 */
+	private void remove(Object element) {
+		Slice s = this.view.resolve();
+		List<Object> l = new ArrayList<Object>(s.size());
+		boolean removed = false;
+		for (int i = 0; i < s.size(); ++i) {
+			Object o = s.get(i);
+			if (o == element && !removed)
+				removed = true;
+			else
+				l.add(o);
+		}
+		this.view = new View<T>(l.toArray());
 	}
 
 	@Override
-	public Iterator<T> iterator() {
-		return this.data.iterator();
+	public Cursor<T> iterator() {
+		final Slice s = this.view.resolve();
+		return new Cursor<T>() {
+			private int next = 0;
+			private Object last = null;
+
+			@Override
+			public boolean hasNext() {
+				return this.next < s.size();
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public T next() {
+				if (this.next >= s.size())
+					throw new NoSuchElementException();
+				this.last = s.get(this.next++);
+				return (T) this.last;
+			}
+
+			@Override
+			public void remove() {
+				if (this.last == null)
+					throw new IllegalStateException();
+				FetchedQuery.this.remove(this.last);
+				this.last = null;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	public Stream<T> stream() {
+		Slice s = this.view.resolve();
+		int characteristics = Spliterator.ORDERED | Spliterator.NONNULL;
+		Spliterator<T> spliterator;
+		if (s.reversed)
+			spliterator = Spliterators.spliterator(this.iterator(), s.size(),
+					characteristics);
+		else
+			spliterator = Spliterators.spliterator(s.array, s.from, s.to,
+					characteristics);
+		return StreamSupport.stream(spliterator, false);
 	}
 
 	@Override
 	public OrderedQuery<T> desc() {
-		FetchedQuery<T> q = new FetchedQuery<T>(this);
-		q.reverse();
-		return q;
+		return new FetchedQuery<T>(this.view.desc());
+	}
+
+	@Override
+	public OrderedQuery<T> limit(int count) {
+		if (count < 0)
+			throw new IllegalArgumentException("Invalid limit: " + count);
+		return new FetchedQuery<T>(this.view.window(0, count));
+	}
+
+	@Override
+	public OrderedQuery<T> offset(int count) {
+		if (count < 0)
+			throw new IllegalArgumentException("Invalid offset: " + count);
+		return new FetchedQuery<T>(this.view.window(count, -1));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T first() {
+		Slice s = this.view.resolve();
+		return s.size() == 0 ? null : (T) s.get(0);
+	}
+
+	@Override
+	public boolean exists() {
+		return this.view.resolve().size() > 0;
+	}
+
+	@Override
+	public long count() {
+		return this.view.resolve().size();
+	}
+
+	@Override
+	public Number sum(String field) {
+		return (Number) Aggregation.aggregate(this.iterator(),
+				Aggregate.SUM, field);
+	}
+
+	@Override
+	public Double avg(String field) {
+		return (Double) Aggregation.aggregate(this.iterator(),
+				Aggregate.AVG, field);
+	}
+
+	@Override
+	public Object min(String field) {
+		return Aggregation.aggregate(this.iterator(), Aggregate.MIN,
+				field);
+	}
+
+	@Override
+	public Object max(String field) {
+		return Aggregation.aggregate(this.iterator(), Aggregate.MAX,
+				field);
+	}
+
+	@Override
+	public Map<Object, Long> countBy(String field) {
+		return Aggregation.groupBy(this.iterator(),
+				Aggregation.<T> getter(field), Collectors.counting());
+	}
+
+	@Override
+	public <K, R> Map<K, R> groupBy(Function<? super T, ? extends K> key,
+			Collector<? super T, ?, R> downstream) {
+		return Aggregation.groupBy(this.iterator(), key, downstream);
+	}
+
+	/**
+	 * Already fetched, nothing to parallelize.
+	 */
+	@Override
+	public OrderedQuery<T> parallel(boolean ordered) {
+		return this;
+	}
+
+	/**
+	 * Already fetched, all the attributes are there.
+	 */
+	@Override
+	public OrderedQuery<T> fields(String... fields) {
+		return this;
 	}
 
 	@Override
@@ -0,0 +1,140 @@
+package jeople.support;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jeople.Entity;
+
+/**
+ * Entities by class and key values, so that a data source returns the same
+ * instance for the same record (see
+ * {@link DataSourceSupport#setIdentityMapEnabled(boolean)}).<br>
+ * Entities are weakly referenced: they are forgotten once the application
+ * doesn't use them anymore. Safe for concurrent use.
+ *
+ * @author Reda El Khattabi
+ */
+class IdentityMap {
+
+	/**
+	 * An entity class and key values (numbers compared by value).
+	 */
+	static class Id {
+		private Class<?> type;
+		private Object[] values;
+		private int hash;
+
+		public Id(Class<?> type, Object[] values) {
+			this.type = type;
+			this.values = values;
+			int h = type.hashCode();
+			for (Object v : values)
+				h = 31 * h + Values.hashCode(v);
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Id))
+				return false;
+			Id id = (Id) obj;
+			if (this.type != id.type || this.values.length != id.values.length)
+				return false;
+			for (int i = 0; i < this.values.length; ++i)
+				if (!Values.equal(this.values[i], id.values[i]))
+					return false;
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return this.type.getSimpleName() + Arrays.toString(this.values);
+		}
+	}
+
+	private static class Ref extends WeakReference<Entity> {
+		private Id id;
+
+		public Ref(Id id, Entity entity, ReferenceQueue<Entity> queue) {
+			super(entity, queue);
+			this.id = id;
+		}
+	}
+
+	private ConcurrentMap<Id, Ref> entities;
+	private ReferenceQueue<Entity> queue;
+
+	public IdentityMap() {
+		this.entities = new ConcurrentHashMap<Id, Ref>();
+		this.queue = new ReferenceQueue<Entity>();
+	}
+
+	/**
+	 * Forgets garbage collected entities.
+	 */
+	private void purge() {
+		Ref r;
+		while ((r = (Ref) this.queue.poll()) != null)
+			this.entities.remove(r.id, r);
+	}
+
+	/**
+	 * The entity with the given id, or null if it isn't known.
+	 */
+	public Entity get(Id id) {
+		this.purge();
+		Ref r = this.entities.get(id);
+		return r != null ? r.get() : null;
+	}
+
+	/**
+	 * Registers the entity, unless another one already has the same id.
+	 *
+	 * @return the registered entity
+	 */
+	public Entity putIfAbsent(Id id, Entity entity) {
+		this.purge();
+		Ref r = new Ref(id, entity, this.queue);
+		while (true) {
+			Ref old = this.entities.putIfAbsent(id, r);
+			if (old == null)
+				return entity;
+			Entity e = old.get();
+			if (e != null)
+				return e;
+			if (this.entities.replace(id, old, r))
+				return entity;
+		}
+	}
+
+	/**
+	 * Registers the entity, replacing any other with the same id.
+	 */
+	public void put(Id id, Entity entity) {
+		this.purge();
+		this.entities.put(id, new Ref(id, entity, this.queue));
+	}
+
+	/**
+	 * Forgets the entity, if registered with the given id.
+	 */
+	public void remove(Id id, Entity entity) {
+		Ref r = this.entities.get(id);
+		if (r != null && r.get() == entity)
+			this.entities.remove(id, r);
+	}
+
+	public void clear() {
+		this.entities.clear();
+	}
+}
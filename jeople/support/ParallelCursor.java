@@ -0,0 +1,351 @@
+package jeople.support;
+
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jeople.Cursor;
+import jeople.Entity;
+import jeople.errors.InternalError;
+
+/**
+ * Parallel query iteration.<br>
+ * A fetcher thread reads records from the data source in batches, and hands
+ * each batch to a worker pool that turns it into entities (hydration and
+ * client side conditions). At most a fixed number of batches are in flight,
+ * so the fetcher waits when the consumer falls behind.<br>
+ * Entities are returned in fetch order, or as soon as their batch is ready
+ * when order doesn't matter.<br>
+ * The consumer may itself run in the worker pool (e.g. a parallel stream in
+ * the common pool): it processes the batches no worker has started yet, and
+ * waits for the others through {@link ForkJoinPool#managedBlock}, so that the
+ * pool can compensate for the blocked thread.
+ *
+ * @author Reda El Khattabi
+ */
+class ParallelCursor<T extends Entity> implements Cursor<T> {
+
+	/**
+	 * Records of a query iteration, read by the fetcher thread.
+	 */
+	interface Source {
+		/**
+		 * The next record, or null when there are no more records.
+		 */
+		Map<String, ?> fetch();
+
+		/**
+		 * Releases the data source resources.
+		 */
+		void close();
+	}
+
+	/**
+	 * Turns a record into an entity, called by worker threads.
+	 */
+	interface Stage<T> {
+		/**
+		 * The entity built from the record, or null if it doesn't match the
+		 * query conditions.
+		 */
+		T process(Map<String, ?> record);
+	}
+
+	private static final Cleaner CLEANER = Cleaner.create();
+	private static final Object END = new Object();
+
+	/**
+	 * The consumer waiting for the next result, or for a batch being
+	 * processed.
+	 */
+	private static class Wait implements ForkJoinPool.ManagedBlocker {
+		private BlockingQueue<Object> queue;
+		private Future<?> future;
+		public Object item;
+
+		public Wait(BlockingQueue<Object> queue, Future<?> future) {
+			this.queue = queue;
+			this.future = future;
+			this.item = null;
+		}
+
+		@Override
+		public boolean isReleasable() {
+			if (this.future != null)
+				return this.future.isDone();
+			if (this.item == null)
+				this.item = this.queue.poll();
+			return this.item != null;
+		}
+
+		@Override
+		public boolean block() throws InterruptedException {
+			if (this.future != null)
+				try {
+					this.future.get();
+				} catch (ExecutionException e) {
+					// reported by the consumer
+				}
+			else if (this.item == null)
+				this.item = this.queue.take();
+			return true;
+		}
+	}
+
+	/**
+	 * State shared by the fetcher thread, the worker tasks and the consumer
+	 * (but not referencing the cursor, so that an abandoned cursor can be
+	 * garbage collected and its pipeline cancelled).
+	 */
+	private static class Pipeline<T> implements Runnable {
+		private Source source;
+		private Stage<T> stage;
+		private boolean ordered;
+		private Executor executor;
+		private int batchSize;
+
+		// ordered mode: futures in fetch order, bounded
+		// unordered mode: batch results in completion order, bounded by
+		// the in flight permits
+		public BlockingQueue<Object> results;
+		private Semaphore inflight;
+		private AtomicInteger pending;
+		private Thread fetcher;
+		private volatile boolean cancelled;
+
+		public Pipeline(Source source, Stage<T> stage, boolean ordered,
+				Executor executor, int batchSize, int maxBatches) {
+			this.source = source;
+			this.stage = stage;
+			this.ordered = ordered;
+			this.executor = executor;
+			this.batchSize = batchSize;
+			if (ordered)
+				this.results = new ArrayBlockingQueue<Object>(maxBatches + 1);
+			else {
+				this.results = new LinkedBlockingQueue<Object>();
+				this.inflight = new Semaphore(maxBatches);
+			}
+			this.pending = new AtomicInteger(1);
+			this.cancelled = false;
+		}
+
+		public void start() {
+			this.fetcher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Pipeline.this.fetch();
+				}
+			}, "jeople-fetcher");
+			this.fetcher.setDaemon(true);
+			this.fetcher.start();
+		}
+
+		private List<T> process(List<Map<String, ?>> batch) {
+			List<T> l = new ArrayList<T>(batch.size());
+			for (Map<String, ?> m : batch) {
+				if (this.cancelled)
+					break;
+				T t = this.stage.process(m);
+				if (t != null)
+					l.add(t);
+			}
+			return l;
+		}
+
+		private void done() {
+			if (this.pending.decrementAndGet() == 0)
+				this.results.add(END);
+		}
+
+		/**
+		 * Publishes an error or the end of the iteration from the fetcher
+		 * thread (waiting for room in ordered mode, unless cancelled).
+		 */
+		private void publish(Object o) {
+			try {
+				this.results.put(o);
+			} catch (InterruptedException e) {
+				// cancelled, nobody is waiting for it anymore
+			}
+		}
+
+		private void submit(final List<Map<String, ?>> batch)
+				throws InterruptedException {
+			if (this.ordered) {
+				FutureTask<List<T>> task = new FutureTask<List<T>>(
+						new Callable<List<T>>() {
+							@Override
+							public List<T> call() {
+								return Pipeline.this.process(batch);
+							}
+						});
+				this.results.put(task);
+				this.executor.execute(task);
+				return;
+			}
+			this.inflight.acquire();
+			this.pending.incrementAndGet();
+			this.executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Pipeline.this.results.add(Pipeline.this.process(batch));
+					} catch (Throwable e) {
+						Pipeline.this.results.add(e);
+					} finally {
+						Pipeline.this.done();
+					}
+				}
+			});
+		}
+
+		private void fetch() {
+			try {
+				while (!this.cancelled) {
+					List<Map<String, ?>> batch = new ArrayList<Map<String, ?>>(
+							this.batchSize);
+					Map<String, ?> m = null;
+					while (batch.size() < this.batchSize
+							&& (m = this.source.fetch()) != null)
+						batch.add(m);
+					if (!batch.isEmpty())
+						this.submit(batch);
+					if (m == null)
+						break;
+				}
+			} catch (InterruptedException e) {
+				// cancelled
+			} catch (Throwable e) {
+				this.publish(e);
+			} finally {
+				try {
+					this.source.close();
+				} finally {
+					if (this.ordered)
+						this.publish(END);
+					else
+						this.done();
+				}
+			}
+		}
+
+		/**
+		 * The next batch of entities, or null at the end of the iteration.
+		 */
+		@SuppressWarnings("unchecked")
+		public List<T> take() {
+			Object o;
+			try {
+				Wait w = new Wait(this.results, null);
+				ForkJoinPool.managedBlock(w);
+				o = w.item;
+				if (this.inflight != null && o != END)
+					this.inflight.release();
+				if (o instanceof FutureTask) {
+					FutureTask<List<T>> task = (FutureTask<List<T>>) o;
+					// does nothing if a worker already started it
+					task.run();
+					ForkJoinPool.managedBlock(new Wait(null, task));
+					o = task.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalError(e);
+			} catch (ExecutionException e) {
+				o = e.getCause();
+			}
+			if (o == END)
+				return null;
+			if (o instanceof RuntimeException)
+				throw (RuntimeException) o;
+			if (o instanceof Error)
+				throw (Error) o;
+			if (o instanceof Throwable)
+				throw new InternalError((Throwable) o);
+			return (List<T>) o;
+		}
+
+		/**
+		 * Cancels the pipeline, the fetcher thread releases the data source
+		 * resources.
+		 */
+		@Override
+		public void run() {
+			this.cancelled = true;
+			if (this.fetcher != null)
+				this.fetcher.interrupt();
+			this.results.clear();
+		}
+	}
+
+	private Pipeline<T> pipeline;
+	private Cleaner.Cleanable cleanable;
+	private Iterator<T> batch;
+	private T last;
+	private boolean over;
+
+	public ParallelCursor(Source source, Stage<T> stage, boolean ordered,
+			Executor executor, int batchSize, int maxBatches) {
+		this.pipeline = new Pipeline<T>(source, stage, ordered, executor,
+				batchSize, maxBatches);
+		this.cleanable = CLEANER.register(this, this.pipeline);
+		this.batch = Collections.<T> emptyList().iterator();
+		this.last = null;
+		this.over = false;
+		this.pipeline.start();
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!this.batch.hasNext()) {
+			if (this.over)
+				return false;
+			List<T> l = this.pipeline.take();
+			if (l == null) {
+				this.over = true;
+				this.cleanable.clean();
+				return false;
+			}
+			this.batch = l.iterator();
+		}
+		return true;
+	}
+
+	@Override
+	public T next() {
+		if (!this.hasNext())
+			throw new NoSuchElementException();
+		this.last = this.batch.next();
+		return this.last;
+	}
+
+	@Override
+	public void remove() {
+		if (this.last == null)
+			throw new IllegalStateException();
+		this.last.delete();
+	}
+
+	@Override
+	public void close() {
+		this.over = true;
+		this.batch = Collections.<T> emptyList().iterator();
+		this.cleanable.clean();
+	}
+}
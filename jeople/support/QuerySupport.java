@@ -1,137 +1,356 @@
 package jeople.support;
 
-import java.lang.reflect.Field;
+import java.lang.ref.Cleaner;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import jeople.Condition;
+import jeople.Cursor;
 import jeople.DataSource;
 import jeople.Entity;
 import jeople.OrderedQuery;
 import jeople.Query;
-
-
-import jeople.errors.InternalError;
+import jeople.comparators.FieldComparator;
+import jeople.conditions.AdaptiveEvaluator;
+import jeople.conditions.AllOf;
+import jeople.conditions.FieldCondition;
+import jeople.conditions.Not;
+import jeople.conditions.OneOf;
+import jeople.metrics.Instrumentation;
 
 /**
  * Internal {@link Query} implementation. Depends on the
- * {@link DataSourceSupport} implementation of {@link DataSource}.
- * 
+ * {@link DataSourceSupport} implementation of {@link DataSource}.<br>
+ * Queries are evaluated lazily, on each iteration: conditions, ordering and
+ * limits are handed over to the data source when it supports them, and
+ * applied on the client side otherwise (sorting only the top elements when
+ * the query is limited, and evaluating conditions in the cheapest order, see
+ * {@link AdaptiveEvaluator}).<br>
+ * Iterations are {@link Cursor}s, an unfinished iteration releases its data
+ * source resources when closed, or at the latest when it is garbage
+ * collected.<br>
+ * {@link #parallel(boolean) Parallel} queries are fetched by a dedicated
+ * thread, while entities are built and filtered by the common
+ * {@link ForkJoinPool} (see {@link ParallelCursor}).
+ *
  * @author Reda El Khattabi
- * 
+ *
  * @param <T>
  *            the {@link Entity} type handled by this {@link Query}
  */
-public class QuerySupport<T extends Entity> implements Query<T> {
+public class QuerySupport<T extends Entity> implements OrderedQuery<T> {
 
-	private Collection<Condition<T>> conditions;
+	private List<Condition<T>> conditions;
 	private DataSourceSupport datasource;
 	private Class<T> type;
+	private EntityModel<T> model;
+	private Comparator<T> comparator;
+	private boolean descending;
+	private int offset;
+	private int limit;
+	private boolean parallel;
+	private boolean ordered;
+	private List<String> fields;
+	// the client side conditions of the last iteration, shared by the next
+	// ones so that their evaluation order keeps improving
+	private volatile AdaptiveEvaluator<T> evaluator;
+
+	/**
+	 * The number of records handed to a worker at once in parallel queries.
+	 */
+	private static final int PARALLEL_BATCH = 256;
 
 	public QuerySupport(DataSourceSupport datasource, Class<T> type) {
 		this.type = type;
+		this.model = EntityModel.of(type);
 		this.datasource = datasource;
 		this.conditions = new ArrayList<Condition<T>>();
+		this.comparator = null;
+		this.descending = false;
+		this.offset = 0;
+		this.limit = -1;
+		this.parallel = false;
+		this.ordered = true;
+		this.fields = null;
+		this.evaluator = null;
 	}
 
-	private String tablename() {
-		String[] ss = this.type.getName().split("[\\.\\$]");
-		return ss[ss.length - 1];
+	private QuerySupport<T> copy() {
+		QuerySupport<T> q = new QuerySupport<T>(this.datasource, this.type);
+		q.conditions.addAll(this.conditions);
+		q.comparator = this.comparator;
+		q.descending = this.descending;
+		q.offset = this.offset;
+		q.limit = this.limit;
+		q.parallel = this.parallel;
+		q.ordered = this.ordered;
+		q.fields = this.fields;
+		return q;
 	}
 
-	private void set(T entity, String attribute, Object value) {
-		for (Field f : this.type.getFields())
-			if (f.getName().equalsIgnoreCase(attribute))
-				try {
-					f.set(entity, value);
-				} catch (IllegalArgumentException e) {
-					throw new InternalError(e);
-				} catch (IllegalAccessException e) {
-					throw new InternalError(e);
-				}
+	private T create(Map<String, ?> data) {
+		return this.datasource.hydrate(this.model, data, this.fields != null);
 	}
 
-	private static void set_entity_fields(Entity entity, String field,
-			Object data) {
-		try {
-			Field dsf = Entity.class.getDeclaredField(field);
-			dsf.setAccessible(true);
-			dsf.set(entity, data);
-			dsf.setAccessible(false);
-		} catch (NoSuchFieldException e) {
-			throw new InternalError(e);
-		} catch (SecurityException e) {
-			throw new InternalError(e);
-		} catch (IllegalArgumentException e) {
-			throw new InternalError(e);
-		} catch (IllegalAccessException e) {
-			throw new InternalError(e);
+	/**
+	 * Builds the entity of a fetched record, timed by the given
+	 * instrumentation (if not null).
+	 * 
+	 * @return the entity, or null if it doesn't match the client side
+	 *         conditions
+	 */
+	private T process(Plan plan, Map<String, ?> record, Instrumentation in) {
+		if (in == null) {
+			T t = this.create(record);
+			return plan.accept(t) ? t : null;
 		}
+		String table = this.model.getTable();
+		long start = System.nanoTime();
+		T t = this.create(record);
+		long built = System.nanoTime();
+		in.hydrated(table, built - start);
+		boolean accepted = plan.accept(t);
+		in.filtered(table, System.nanoTime() - built, accepted);
+		return accepted ? t : null;
 	}
 
-	private T create(Map<String, ?> data) {
-		try {
-			T t = this.type.newInstance();
-			for (Map.Entry<String, ?> e : data.entrySet())
-				this.set(t, e.getKey(), e.getValue());
-			QuerySupport.set_entity_fields(t, "datasource", this.datasource);
-			QuerySupport.set_entity_fields(t, "key", data);
-			return t;
-		} catch (InstantiationException e) {
-			throw new InternalError(e);
-		} catch (IllegalAccessException e) {
-			throw new InternalError(e);
+	/**
+	 * Starts the select of an iteration, timed by the given instrumentation
+	 * (if not null).
+	 */
+	private Object select(Plan plan, Instrumentation in) {
+		String table = this.model.getTable();
+		if (in == null)
+			return this.datasource.select(table, plan.selection);
+		long start = System.nanoTime();
+		Object state = this.datasource.select(table, plan.selection);
+		in.selected(table, System.nanoTime() - start);
+		return state;
+	}
+
+	/**
+	 * Fetches the next record of an iteration, timed by the given
+	 * instrumentation (if not null).
+	 */
+	private Map<String, ?> fetch(Object state, Instrumentation in) {
+		if (in == null)
+			return this.datasource.fetch(state);
+		long start = System.nanoTime();
+		Map<String, ?> m = this.datasource.fetch(state);
+		if (m != null)
+			in.fetched(this.model.getTable(), System.nanoTime() - start);
+		return m;
+	}
+
+	private static <T extends Entity> void flatten(Condition<T> condition,
+			List<Condition<T>> conjuncts) {
+		if (condition instanceof AllOf)
+			for (Condition<T> c : ((AllOf<T>) condition).getConditions())
+				QuerySupport.flatten(c, conjuncts);
+		else
+			conjuncts.add(condition);
+	}
+
+	/**
+	 * Adds the attributes the condition refers to, when it is made of
+	 * conditions on attributes.
+	 */
+	private static void fields(Condition<?> condition, Set<String> fields) {
+		if (condition instanceof FieldCondition)
+			fields.add(((FieldCondition<?>) condition).getField());
+		else if (condition instanceof AllOf)
+			for (Condition<?> c : ((AllOf<?>) condition).getConditions())
+				QuerySupport.fields(c, fields);
+		else if (condition instanceof OneOf)
+			for (Condition<?> c : ((OneOf<?>) condition).getConditions())
+				QuerySupport.fields(c, fields);
+		else if (condition instanceof Not)
+			QuerySupport.fields(((Not<?>) condition).getCondition(), fields);
+	}
+
+	/**
+	 * The query conditions, with nested {@link AllOf}s flattened, so that
+	 * each of them can be evaluated by the data source or on the client side
+	 * independently.
+	 */
+	private List<Condition<T>> conjuncts() {
+		List<Condition<T>> l = new ArrayList<Condition<T>>();
+		for (Condition<T> c : this.conditions)
+			QuerySupport.flatten(c, l);
+		return l;
+	}
+
+	/**
+	 * The effective ordering (taking {@link #desc()} into account), or null
+	 * if the query is not ordered.
+	 */
+	private Comparator<T> ordering() {
+		if (this.comparator == null || !this.descending)
+			return this.comparator;
+		if (this.comparator instanceof FieldComparator)
+			return ((FieldComparator<T>) this.comparator).reversed();
+		return Collections.reverseOrder(this.comparator);
+	}
+
+	/**
+	 * How an iteration is split between the data source and the client side.
+	 */
+	private class Plan {
+		public Selection selection;
+		public List<Condition<T>> filters;
+		public AdaptiveEvaluator<T> evaluator;
+		public Comparator<T> sort;
+		public boolean window;
+
+		public Plan() {
+			DataSourceSupport ds = QuerySupport.this.datasource;
+			String table = QuerySupport.this.model.getTable();
+			this.selection = new Selection();
+			this.filters = new ArrayList<Condition<T>>();
+			for (Condition<T> c : QuerySupport.this.conjuncts())
+				if (ds.canFilter(table, c))
+					this.selection.addCondition(c);
+				else
+					this.filters.add(c);
+			this.evaluator = QuerySupport.this.evaluator;
+			if (this.evaluator == null
+					|| !this.evaluator.getConditions().equals(this.filters)) {
+				this.evaluator = new AdaptiveEvaluator<T>(this.filters, false);
+				QuerySupport.this.evaluator = this.evaluator;
+			}
+			this.sort = QuerySupport.this.ordering();
+			if (this.sort != null && ds.canOrder(table, this.sort)) {
+				this.selection.setOrder(this.sort);
+				this.sort = null;
+			}
+			this.window = QuerySupport.this.offset > 0
+					|| QuerySupport.this.limit >= 0;
+			if (this.window && QuerySupport.this.limit >= 0
+					&& this.filters.isEmpty() && this.sort == null
+					&& ds.canLimit(table)) {
+				this.selection.setRange(QuerySupport.this.offset,
+						QuerySupport.this.limit);
+				this.window = false;
+			}
+			List<String> keys = QuerySupport.this.fields == null ? null : ds
+					.keyColumns(QuerySupport.this.model);
+			if (keys != null) {
+				// what the client side needs as well
+				Set<String> columns = new TreeSet<String>(
+						String.CASE_INSENSITIVE_ORDER);
+				columns.addAll(keys);
+				columns.addAll(QuerySupport.this.fields);
+				for (Condition<T> c : this.filters)
+					QuerySupport.fields(c, columns);
+				if (this.sort instanceof FieldComparator)
+					columns.addAll(((FieldComparator<T>) this.sort).getFields());
+				this.selection.setColumns(new ArrayList<String>(columns));
+			}
+		}
+
+		public boolean accept(T t) {
+			return this.evaluator.evaluate(t);
 		}
 	}
 
-	private class QueryIterator implements Iterator<T> {
+	/**
+	 * The data source status of an iteration. Kept apart from the iterator so
+	 * that it can be released (by {@link #CLEANER}) when an unfinished
+	 * iteration is garbage collected.
+	 */
+	private static class Resource implements Runnable {
+		private DataSourceSupport datasource;
+		public volatile Object state;
+		public volatile boolean closed;
+
+		public Resource(DataSourceSupport datasource) {
+			this.datasource = datasource;
+			this.state = null;
+			this.closed = false;
+		}
+
+		@Override
+		public void run() {
+			if (this.closed)
+				return;
+			this.closed = true;
+			if (this.state != null)
+				this.datasource.close(this.state);
+		}
+	}
 
+	private static final Cleaner CLEANER = Cleaner.create();
+
+	/**
+	 * Iterates over the records of the data source matching the client side
+	 * conditions.
+	 */
+	private class QueryIterator implements Cursor<T> {
+
+		private Plan plan;
+		private Instrumentation instrumentation;
 		private T last;
 		private T next;
-		private Object state;
-		private boolean closed;
+		private Resource resource;
+		private Cleaner.Cleanable cleanable;
 
-		public QueryIterator() {
+		public QueryIterator(Plan plan) {
+			this.plan = plan;
+			this.instrumentation = QuerySupport.this.datasource
+					.getInstrumentation();
 			this.last = null;
 			this.next = null;
-			this.state = null;
-			this.closed = false;
+			this.resource = new Resource(QuerySupport.this.datasource);
+			this.cleanable = CLEANER.register(this, this.resource);
 		}
 
 		private T fetch() {
-			if (this.closed)
-				return null;
-			if (this.state == null)
-				this.state = QuerySupport.this.datasource
-						.select(QuerySupport.this.tablename());
-			Map<String, ?> m = QuerySupport.this.datasource.fetch(this.state);
-			if (m == null) {
-				this.closed = true;
+			if (this.resource.closed)
 				return null;
+			if (this.resource.state == null)
+				this.resource.state = QuerySupport.this.select(this.plan,
+						this.instrumentation);
+			while (true) {
+				Map<String, ?> m = QuerySupport.this.fetch(
+						this.resource.state, this.instrumentation);
+				if (m == null) {
+					this.close();
+					return null;
+				}
+				T t = QuerySupport.this.process(this.plan, m,
+						this.instrumentation);
+				if (t != null)
+					return t;
 			}
-			T t = QuerySupport.this.create(m);
-			for (Condition<T> c : QuerySupport.this.conditions)
-				if (!c.evaluate(t))
-					return this.fetch();
-			return t;
+		}
+
+		@Override
+		public void close() {
+			this.next = null;
+			this.cleanable.clean();
 		}
 
 		@Override
 		public boolean hasNext() {
-			if (this.closed)
-				return false;
 			if (this.next != null)
 				return true;
 			this.next = this.fetch();
-			if (this.next == null) {
-				this.closed = true;
-				return false;
-			} else
-				return true;
+			return this.next != null;
 		}
 
 		@Override
@@ -154,23 +373,477 @@ public class QuerySupport<T extends Entity> implements Query<T> {
 		}
 	}
 
+	/**
+	 * Skips the first elements of a query iteration, and ends it (releasing
+	 * the data source resources) once enough elements have been returned.
+	 */
+	private class WindowIterator implements Cursor<T> {
+
+		private Cursor<T> source;
+		private int skip;
+		private int remaining;
+
+		public WindowIterator(Cursor<T> source, int offset, int limit) {
+			this.source = source;
+			this.skip = offset;
+			this.remaining = limit;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (this.remaining == 0) {
+				this.source.close();
+				return false;
+			}
+			for (; this.skip > 0; --this.skip)
+				if (this.source.hasNext())
+					this.source.next();
+			return this.source.hasNext();
+		}
+
+		@Override
+		public T next() {
+			if (!this.hasNext())
+				throw new NoSuchElementException();
+			if (this.remaining > 0)
+				--this.remaining;
+			return this.source.next();
+		}
+
+		@Override
+		public void remove() {
+			this.source.remove();
+		}
+
+		@Override
+		public void close() {
+			this.source.close();
+		}
+	}
+
+	/**
+	 * Iterates over already sorted entities.
+	 */
+	private static class SortedIterator<T extends Entity> implements
+			Cursor<T> {
+
+		private Iterator<T> source;
+		private T last;
+
+		public SortedIterator(List<T> sorted) {
+			this.source = sorted.iterator();
+			this.last = null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return this.source.hasNext();
+		}
+
+		@Override
+		public T next() {
+			this.last = this.source.next();
+			return this.last;
+		}
+
+		@Override
+		public void remove() {
+			if (this.last == null)
+				throw new IllegalStateException();
+			this.last.delete();
+		}
+
+		@Override
+		public void close() {
+			this.source = Collections.<T> emptyList().iterator();
+		}
+	}
+
+	/**
+	 * An element and its arrival rank, so that sorting is stable.
+	 */
+	private static class Ranked<T> {
+		public T element;
+		public long rank;
+
+		public Ranked(T element, long rank) {
+			this.element = element;
+			this.rank = rank;
+		}
+	}
+
+	private static <T> Comparator<Ranked<T>> ranked(
+			final Comparator<? super T> comparator) {
+		return new Comparator<Ranked<T>>() {
+			@Override
+			public int compare(Ranked<T> o1, Ranked<T> o2) {
+				int c = comparator.compare(o1.element, o2.element);
+				if (c != 0)
+					return c;
+				return o1.rank < o2.rank ? -1 : (o1.rank == o2.rank ? 0 : 1);
+			}
+		};
+	}
+
+	/**
+	 * The <code>count</code> first elements in the given order (in that order),
+	 * keeping at most <code>count</code> elements in memory at any time.
+	 */
+	static <T> List<T> top(Iterator<T> source, Comparator<? super T> comparator,
+			int count) {
+		List<T> l = new ArrayList<T>();
+		if (count <= 0)
+			return l;
+		Comparator<Ranked<T>> rc = QuerySupport.ranked(comparator);
+		PriorityQueue<Ranked<T>> heap = new PriorityQueue<Ranked<T>>(
+				Math.min(count, 1024), Collections.reverseOrder(rc));
+		long rank = 0;
+		while (source.hasNext()) {
+			Ranked<T> r = new Ranked<T>(source.next(), rank++);
+			if (heap.size() < count)
+				heap.add(r);
+			else if (rc.compare(r, heap.peek()) < 0) {
+				heap.poll();
+				heap.add(r);
+			}
+		}
+		List<Ranked<T>> sorted = new ArrayList<Ranked<T>>(heap);
+		Collections.sort(sorted, rc);
+		for (Ranked<T> r : sorted)
+			l.add(r.element);
+		return l;
+	}
+
+	/**
+	 * A parallel iteration, records are fetched by a dedicated thread and
+	 * turned into entities by the common {@link ForkJoinPool}.
+	 */
+	private Cursor<T> parallelIterator(final Plan plan) {
+		final DataSourceSupport ds = this.datasource;
+		final Instrumentation in = ds.getInstrumentation();
+		ParallelCursor.Source source = new ParallelCursor.Source() {
+			private Object state = null;
+
+			@Override
+			public Map<String, ?> fetch() {
+				if (this.state == null)
+					this.state = QuerySupport.this.select(plan, in);
+				return QuerySupport.this.fetch(this.state, in);
+			}
+
+			@Override
+			public void close() {
+				if (this.state != null)
+					ds.close(this.state);
+			}
+		};
+		ParallelCursor.Stage<T> stage = new ParallelCursor.Stage<T>() {
+			@Override
+			public T process(Map<String, ?> record) {
+				return QuerySupport.this.process(plan, record, in);
+			}
+		};
+		int workers = ForkJoinPool.getCommonPoolParallelism();
+		// an ordered query keeps its order, whatever was asked
+		boolean ordered = this.ordered || this.comparator != null;
+		return new ParallelCursor<T>(source, stage, ordered,
+				ForkJoinPool.commonPool(), PARALLEL_BATCH, 2 * workers + 2);
+	}
+
+	@Override
+	public Cursor<T> iterator() {
+		Plan plan = new Plan();
+		Cursor<T> it = this.parallel ? this.parallelIterator(plan)
+				: new QueryIterator(plan);
+		if (plan.sort != null) {
+			List<T> sorted;
+			try {
+				sorted = this.sort(it, plan.sort);
+			} finally {
+				it.close();
+			}
+			return new SortedIterator<T>(sorted);
+		}
+		if (plan.window)
+			return new WindowIterator(it, this.offset, this.limit);
+		return it;
+	}
+
+	/**
+	 * Sorts the query elements on the client side.
+	 */
+	private List<T> sort(Iterator<T> it, Comparator<T> comparator) {
+		List<T> sorted;
+		if (this.limit >= 0) {
+			sorted = QuerySupport.top(it, comparator, (int) Math.min(
+					(long) this.offset + this.limit, Integer.MAX_VALUE));
+		} else {
+			sorted = new ArrayList<T>();
+			while (it.hasNext())
+				sorted.add(it.next());
+			Collections.sort(sorted, comparator);
+		}
+		return sorted.subList(Math.min(this.offset, sorted.size()),
+				sorted.size());
+	}
+
+	@Override
+	public Stream<T> stream() {
+		final Cursor<T> cursor = this.iterator();
+		int characteristics = this.comparator != null ? Spliterator.ORDERED
+				: 0;
+		return StreamSupport.stream(
+				new CursorSpliterator<T>(cursor, characteristics), false)
+				.onClose(new Runnable() {
+					@Override
+					public void run() {
+						cursor.close();
+					}
+				});
+	}
+
+	@Override
+	public T first() {
+		QuerySupport<T> q = this.copy();
+		q.limit = this.limit >= 0 ? Math.min(this.limit, 1) : 1;
+		Cursor<T> it = q.iterator();
+		try {
+			return it.hasNext() ? it.next() : null;
+		} finally {
+			it.close();
+		}
+	}
+
+	@Override
+	public boolean exists() {
+		return this.first() != null;
+	}
+
+	/**
+	 * The query conditions, if the data source accepted all of them, or null
+	 * if some of them must be evaluated on the client side.
+	 */
+	private Selection pushed(Plan plan) {
+		if (!plan.filters.isEmpty())
+			return null;
+		Selection selection = new Selection();
+		for (Condition<?> c : plan.selection.getConditions())
+			selection.addCondition(c);
+		return selection;
+	}
+
+	/**
+	 * Counts the query elements, by the data source when it accepted all the
+	 * conditions (see {@link DataSourceSupport#count(String, Selection)}).
+	 */
+	@Override
+	public long count() {
+		Plan plan = new Plan();
+		long count = -1;
+		Selection selection = this.pushed(plan);
+		if (selection != null)
+			count = this.datasource.count(this.model.getTable(), selection);
+		if (count >= 0) {
+			count = Math.max(count - this.offset, 0);
+			return this.limit >= 0 ? Math.min(count, this.limit) : count;
+		}
+		Cursor<T> it = new QueryIterator(plan);
+		if (plan.window)
+			it = new WindowIterator(it, this.offset, this.limit);
+		try {
+			count = 0;
+			while (it.hasNext()) {
+				it.next();
+				++count;
+			}
+			return count;
+		} finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * The query without its ordering, when the ordering doesn't change the
+	 * elements (ie. without limits).
+	 */
+	private QuerySupport<T> unordered() {
+		if (this.comparator == null || this.offset > 0 || this.limit >= 0)
+			return this;
+		QuerySupport<T> q = this.copy();
+		q.comparator = null;
+		q.descending = false;
+		return q;
+	}
+
+	/**
+	 * The type of an attribute, to convert the values computed by the data
+	 * source.
+	 */
+	private Class<?> type(String field) {
+		EntityModel.Attribute a = this.model.getAttribute(field);
+		return a != null ? a.getType() : Object.class;
+	}
+
+	/**
+	 * Computes an aggregate, by the data source when it accepted all the
+	 * conditions and the query has no limit (see
+	 * {@link DataSourceSupport#canAggregate(String, String)}), otherwise (or
+	 * if it returned null) in a single pass over the query.
+	 */
+	private Object aggregate(Aggregate function, String field) {
+		String table = this.model.getTable();
+		if (this.offset == 0 && this.limit < 0
+				&& this.datasource.canAggregate(table, field)) {
+			Selection selection = this.pushed(new Plan());
+			Object result = selection == null ? null : this.datasource
+					.aggregate(table, selection, function, field);
+			if (result != null)
+				return Aggregation.normalize(this.type(field), function,
+						result);
+		}
+		Cursor<T> it = this.unordered().including(field).iterator();
+		try {
+			return Aggregation.aggregate(it, function, field);
+		} finally {
+			it.close();
+		}
+	}
+
+	@Override
+	public Number sum(String field) {
+		return (Number) this.aggregate(Aggregate.SUM, field);
+	}
+
+	@Override
+	public Double avg(String field) {
+		Number n = (Number) this.aggregate(Aggregate.AVG, field);
+		return n != null ? n.doubleValue() : null;
+	}
+
+	@Override
+	public Object min(String field) {
+		return this.aggregate(Aggregate.MIN, field);
+	}
+
+	@Override
+	public Object max(String field) {
+		return this.aggregate(Aggregate.MAX, field);
+	}
+
+	@Override
+	public Map<Object, Long> countBy(String field) {
+		String table = this.model.getTable();
+		if (this.offset == 0 && this.limit < 0
+				&& this.datasource.canAggregate(table, field)) {
+			Selection selection = this.pushed(new Plan());
+			Map<Object, Long> counts = selection == null ? null
+					: this.datasource.countBy(table, selection, field);
+			if (counts != null)
+				return Aggregation.normalize(this.type(field), counts);
+		}
+		return this.including(field).groupBy(Aggregation.<T> getter(field),
+				Collectors.counting());
+	}
+
 	@Override
-	public Iterator<T> iterator() {
-		return new QueryIterator();
+	public <K, R> Map<K, R> groupBy(Function<? super T, ? extends K> key,
+			Collector<? super T, ?, R> downstream) {
+		Cursor<T> it = this.unordered().iterator();
+		try {
+			return Aggregation.groupBy(it, key, downstream);
+		} finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * Restricts the fetched attributes, see {@link Query#fields(String...)}.
+	 */
+	@Override
+	public Query<T> fields(String... fields) {
+		List<String> l = new ArrayList<String>();
+		for (String f : fields) {
+			EntityModel.Attribute a = this.model.getAttribute(f);
+			if (a == null)
+				throw new IllegalArgumentException("No attribute " + f
+						+ " in " + this.model.getTable());
+			l.add(a.getName());
+		}
+		QuerySupport<T> q = this.copy();
+		q.fields = Collections.unmodifiableList(l);
+		return q;
+	}
+
+	/**
+	 * The query, also fetching the given attribute.
+	 */
+	private QuerySupport<T> including(String field) {
+		if (this.fields == null)
+			return this;
+		QuerySupport<T> q = this.copy();
+		List<String> l = new ArrayList<String>(this.fields);
+		l.add(field);
+		q.fields = Collections.unmodifiableList(l);
+		return q;
+	}
+
+	/**
+	 * Makes the query parallel: records are fetched by a dedicated thread,
+	 * while entities are built and client side conditions are evaluated by
+	 * the common {@link ForkJoinPool}. An ordered query always returns its
+	 * elements in order.
+	 */
+	@Override
+	public OrderedQuery<T> parallel(boolean ordered) {
+		QuerySupport<T> q = this.copy();
+		q.parallel = true;
+		q.ordered = ordered;
+		return q;
 	}
 
 	@Override
 	public Query<T> where(Condition<T> condition) {
-		QuerySupport<T> q = new QuerySupport<T>(this.datasource, this.type);
-		q.conditions.addAll(this.conditions);
+		QuerySupport<T> q = this.copy();
 		q.conditions.add(condition);
 		return q;
 	}
 
+	/**
+	 * Orders the query. A {@link FieldComparator} can be handed over to the
+	 * data source, any other comparator implies sorting on the client side.
+	 */
 	@Override
 	public OrderedQuery<T> orderBy(Comparator<T> comparator) {
-		FetchedQuery<T> q = new FetchedQuery<T>(this);
-		q.sort(comparator);
+		QuerySupport<T> q = this.copy();
+		q.comparator = comparator;
+		q.descending = false;
+		return q;
+	}
+
+	@Override
+	public OrderedQuery<T> desc() {
+		if (this.comparator == null)
+			throw new IllegalStateException("Query is not ordered");
+		QuerySupport<T> q = this.copy();
+		q.descending = !this.descending;
+		return q;
+	}
+
+	@Override
+	public OrderedQuery<T> limit(int count) {
+		if (count < 0)
+			throw new IllegalArgumentException("Invalid limit: " + count);
+		QuerySupport<T> q = this.copy();
+		q.limit = count;
+		return q;
+	}
+
+	@Override
+	public OrderedQuery<T> offset(int count) {
+		if (count < 0)
+			throw new IllegalArgumentException("Invalid offset: " + count);
+		QuerySupport<T> q = this.copy();
+		q.offset = count;
 		return q;
 	}
 
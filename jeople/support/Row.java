@@ -0,0 +1,114 @@
+package jeople.support;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A compact, immutable, record: the column values in an array, the column
+ * names being held by a {@link RowLayout} shared by all the rows of a query.
+ * <br>
+ * Data sources should return rows from
+ * {@link DataSourceSupport#fetch(Object)}: entities are then hydrated
+ * without any column name lookup, and the row (rather than a whole map per
+ * record) is kept as the entity key.
+ *
+ * @author Reda El Khattabi
+ */
+public final class Row extends AbstractMap<String, Object> {
+
+	private RowLayout layout;
+	private Object[] values;
+
+	/**
+	 * @param values
+	 *            the column values, in layout order (the array is used as is,
+	 *            and must not be modified afterwards)
+	 */
+	public Row(RowLayout layout, Object[] values) {
+		if (values.length != layout.size())
+			throw new IllegalArgumentException("Expected " + layout.size()
+					+ " values, got " + values.length);
+		this.layout = layout;
+		this.values = values;
+	}
+
+	public RowLayout getLayout() {
+		return this.layout;
+	}
+
+	/**
+	 * This row, or a copy of it if some of its values can be changed in place
+	 * (see {@link Values#isMutable(Object)}), for rows kept by a data source
+	 * and handed out to several readers.
+	 */
+	public Row copy() {
+		Object[] values = null;
+		for (int i = 0; i < this.values.length; ++i)
+			if (Values.isMutable(this.values[i])) {
+				if (values == null)
+					values = this.values.clone();
+				values[i] = Values.copy(this.values[i]);
+			}
+		return values == null ? this : new Row(this.layout, values);
+	}
+
+	/**
+	 * The value of the column at the given index.
+	 */
+	public Object get(int index) {
+		return this.values[index];
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (!(key instanceof String))
+			return null;
+		int i = this.layout.indexOf((String) key);
+		return i >= 0 ? this.values[i] : null;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key instanceof String && this.layout.indexOf((String) key) >= 0;
+	}
+
+	@Override
+	public int size() {
+		return this.values.length;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new Iterator<Map.Entry<String, Object>>() {
+					private int index = 0;
+
+					@Override
+					public boolean hasNext() {
+						return this.index < Row.this.values.length;
+					}
+
+					@Override
+					public Map.Entry<String, Object> next() {
+						if (!this.hasNext())
+							throw new NoSuchElementException();
+						int i = this.index++;
+						return new AbstractMap.SimpleImmutableEntry<String, Object>(
+								Row.this.layout.getName(i), Row.this.values[i]);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return Row.this.values.length;
+			}
+		};
+	}
+}
@@ -0,0 +1,91 @@
+package jeople.support;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The columns of a set of {@link Row}s (typically the rows of a single
+ * query), computed once and shared by all of them: column names, the index
+ * of each column (looked up case insensitively) and an optional data source
+ * specific type name for each column.<br>
+ * Instances are immutable, and thus can be shared between threads.
+ *
+ * @author Reda El Khattabi
+ */
+public class RowLayout {
+
+	/**
+	 * The entity attributes matching the layout columns, resolved once per
+	 * entity model (see {@link EntityModel}).
+	 */
+	static class Binding {
+		public EntityModel<?> model;
+		public EntityModel.Attribute[] attributes;
+
+		public Binding(EntityModel<?> model,
+				EntityModel.Attribute[] attributes) {
+			this.model = model;
+			this.attributes = attributes;
+		}
+	}
+
+	private String[] names;
+	private String[] typeNames;
+	private Map<String, Integer> indexes;
+	volatile Binding binding;
+
+	/**
+	 * @param names
+	 *            the column names, in row order
+	 * @param typeNames
+	 *            the column type names (in the same order), or null if
+	 *            unknown
+	 */
+	public RowLayout(String[] names, String[] typeNames) {
+		if (typeNames != null && typeNames.length != names.length)
+			throw new IllegalArgumentException("Expected " + names.length
+					+ " type names, got " + typeNames.length);
+		this.names = names.clone();
+		this.typeNames = typeNames != null ? typeNames.clone()
+				: new String[names.length];
+		this.indexes = new TreeMap<String, Integer>(
+				String.CASE_INSENSITIVE_ORDER);
+		for (int i = 0; i < names.length; ++i)
+			if (!this.indexes.containsKey(names[i]))
+				this.indexes.put(names[i], i);
+		this.binding = null;
+	}
+
+	/**
+	 * The number of columns.
+	 */
+	public int size() {
+		return this.names.length;
+	}
+
+	public String getName(int index) {
+		return this.names[index];
+	}
+
+	/**
+	 * The type name of the column, or null if unknown.
+	 */
+	public String getTypeName(int index) {
+		return this.typeNames[index];
+	}
+
+	/**
+	 * The index of the given column (case insensitive), or -1 if there is no
+	 * such column.
+	 */
+	public int indexOf(String name) {
+		Integer i = this.indexes.get(name);
+		return i != null ? i : -1;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(this.names);
+	}
+}
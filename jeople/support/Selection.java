@@ -0,0 +1,105 @@
+package jeople.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import jeople.Condition;
+
+/**
+ * Describes what a {@link QuerySupport} iteration requests from its data
+ * source, beyond the table to read: the conditions the data source accepted
+ * to evaluate itself (see
+ * {@link DataSourceSupport#canFilter(String, Condition)}), the order the
+ * records should be returned in (see
+ * {@link DataSourceSupport#canOrder(String, Comparator)}), the range of
+ * records to return (see {@link DataSourceSupport#canLimit(String)}), and
+ * the columns needed (records may have more of them).<br>
+ * Records returned by
+ * {@link DataSourceSupport#select(String, Selection)} must satisfy all these
+ * conditions.
+ * 
+ * @author Reda El Khattabi
+ */
+public class Selection {
+
+	private List<Condition<?>> conditions;
+	private Comparator<?> order;
+	private int offset;
+	private int limit;
+	private List<String> columns;
+
+	public Selection() {
+		this.conditions = new ArrayList<Condition<?>>();
+		this.order = null;
+		this.offset = 0;
+		this.limit = -1;
+		this.columns = null;
+	}
+
+	/**
+	 * The conditions to apply (all of them have to be satisfied).
+	 */
+	public List<Condition<?>> getConditions() {
+		return Collections.unmodifiableList(this.conditions);
+	}
+
+	public void addCondition(Condition<?> condition) {
+		this.conditions.add(condition);
+	}
+
+	/**
+	 * The order records should be returned in, or null if it doesn't matter.
+	 */
+	public Comparator<?> getOrder() {
+		return this.order;
+	}
+
+	public void setOrder(Comparator<?> order) {
+		this.order = order;
+	}
+
+	/**
+	 * Number of (matching and ordered) records to skip.
+	 */
+	public int getOffset() {
+		return this.offset;
+	}
+
+	/**
+	 * Maximum number of records to return, or -1 if there is no limit.
+	 */
+	public int getLimit() {
+		return this.limit;
+	}
+
+	public void setRange(int offset, int limit) {
+		this.offset = offset;
+		this.limit = limit;
+	}
+
+	/**
+	 * The columns to fetch, or null to fetch all of them.
+	 */
+	public List<String> getColumns() {
+		return this.columns;
+	}
+
+	public void setColumns(List<String> columns) {
+		this.columns = columns == null ? null : Collections
+				.unmodifiableList(new ArrayList<String>(columns));
+	}
+
+	@Override
+	public String toString() {
+		String s = "where " + this.conditions;
+		if (this.columns != null)
+			s = "select " + this.columns + " " + s;
+		if (this.order != null)
+			s += " order by " + this.order;
+		if (this.limit >= 0)
+			s += " limit " + this.limit + " offset " + this.offset;
+		return s;
+	}
+}
@@ -19,9 +19,4 @@ class Utils {
 		s += "";
 		return s;
 	}
-
-	static String getSimpleClassName(Object o) {
-		String[] ss = o.getClass().getName().split("[\\.\\$]");
-		return ss[ss.length - 1];
-	}
 }
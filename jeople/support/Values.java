@@ -0,0 +1,128 @@
+package jeople.support;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Attribute value comparisons, consistent with the way databases compare
+ * column values: numbers are compared by value whatever their Java type (an
+ * {@link Integer} 1 equals a {@link Long} 1).
+ *
+ * @author Reda El Khattabi
+ */
+public class Values {
+
+	private Values() {
+	}
+
+	private static boolean isIntegral(Object o) {
+		return o instanceof Integer || o instanceof Long || o instanceof Short
+				|| o instanceof Byte;
+	}
+
+	/**
+	 * Whether the number isn't a NaN or an infinity, which have no
+	 * {@link BigDecimal} value.
+	 */
+	private static boolean isFinite(Object o) {
+		return !(o instanceof Double || o instanceof Float)
+				|| Double.isFinite(((Number) o).doubleValue());
+	}
+
+	/**
+	 * The exact value of a finite number.
+	 */
+	static BigDecimal toBigDecimal(Number n) {
+		if (n instanceof BigDecimal)
+			return (BigDecimal) n;
+		if (n instanceof BigInteger)
+			return new BigDecimal((BigInteger) n);
+		if (Values.isIntegral(n))
+			return BigDecimal.valueOf(n.longValue());
+		return BigDecimal.valueOf(n.doubleValue());
+	}
+
+	/**
+	 * Whether both values are equal (two nulls are equal, byte arrays are
+	 * compared by content).
+	 */
+	public static boolean equal(Object a, Object b) {
+		if (a == b)
+			return true;
+		if (a == null || b == null)
+			return false;
+		if (a instanceof Number && b instanceof Number)
+			return Values.compare(a, b) == 0;
+		if (a instanceof byte[] && b instanceof byte[])
+			return Arrays.equals((byte[]) a, (byte[]) b);
+		return a.equals(b);
+	}
+
+	/**
+	 * Whether the value can be changed in place (dates and byte arrays).
+	 */
+	static boolean isMutable(Object o) {
+		return o instanceof Date || o instanceof byte[];
+	}
+
+	/**
+	 * A copy of a value that can be changed in place, or the value itself.
+	 */
+	public static Object copy(Object o) {
+		if (o instanceof Date)
+			return ((Date) o).clone();
+		if (o instanceof byte[])
+			return ((byte[]) o).clone();
+		return o;
+	}
+
+	/**
+	 * Compares two non null values, numbers are compared by value, other
+	 * values must be mutually {@link Comparable}.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static int compare(Object a, Object b) {
+		if (a instanceof Number && b instanceof Number) {
+			if (Values.isIntegral(a) && Values.isIntegral(b)) {
+				long x = ((Number) a).longValue();
+				long y = ((Number) b).longValue();
+				return x < y ? -1 : (x == y ? 0 : 1);
+			}
+			if ((a instanceof Double || a instanceof Float)
+					&& (b instanceof Double || b instanceof Float))
+				return Double.compare(((Number) a).doubleValue(),
+						((Number) b).doubleValue());
+			if (!Values.isFinite(a) || !Values.isFinite(b))
+				return Double.compare(((Number) a).doubleValue(),
+						((Number) b).doubleValue());
+			return Values.toBigDecimal((Number) a).compareTo(
+					Values.toBigDecimal((Number) b));
+		}
+		return ((Comparable) a).compareTo(b);
+	}
+
+	/**
+	 * A hash code consistent with {@link #equal(Object, Object)}.
+	 */
+	public static int hashCode(Object o) {
+		if (o == null)
+			return 0;
+		if (o instanceof Number) {
+			if (Values.isIntegral(o))
+				return Long.valueOf(((Number) o).longValue()).hashCode();
+			if (!Values.isFinite(o))
+				return Double.hashCode(((Number) o).doubleValue());
+			BigDecimal d = Values.toBigDecimal((Number) o).stripTrailingZeros();
+			try {
+				return Long.valueOf(d.longValueExact()).hashCode();
+			} catch (ArithmeticException e) {
+				return d.hashCode();
+			}
+		}
+		if (o instanceof byte[])
+			return Arrays.hashCode((byte[]) o);
+		return o.hashCode();
+	}
+}
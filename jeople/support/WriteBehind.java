@@ -0,0 +1,268 @@
+package jeople.support;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jeople.Entity;
+import jeople.errors.InternalError;
+
+/**
+ * The queue of writes of a data source in write-behind mode (see
+ * {@link DataSourceSupport#setWriteBehind(int, long, int)}): one pending
+ * write per entity, repeated saves and deletes of the same entity
+ * coalescing into it, written in batches by a background thread.
+ *
+ * @author Reda El Khattabi
+ */
+class WriteBehind implements Runnable {
+
+	/**
+	 * Identifies entities by instance.
+	 */
+	private static class Ref {
+		private Entity entity;
+
+		public Ref(Entity entity) {
+			this.entity = entity;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(this.entity);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Ref && ((Ref) obj).entity == this.entity;
+		}
+	}
+
+	/**
+	 * The pending write of an entity: deleting its record (as it was last
+	 * written), then saving the given data, or both.
+	 */
+	static class Pending {
+		public Entity entity;
+		public boolean delete;
+		public Row data;
+		public long queued;
+
+		public Pending(Entity entity, long queued) {
+			this.entity = entity;
+			this.delete = false;
+			this.data = null;
+			this.queued = queued;
+		}
+	}
+
+	private DataSourceSupport source;
+	private int batchSize;
+	private long maxDelay;
+	private int capacity;
+
+	// in queuing order, guarded by itself
+	private LinkedHashMap<Ref, Pending> pending;
+	private Throwable failure;
+	private boolean closed;
+
+	// held while writing a batch
+	private ReentrantLock writing;
+	private Thread flusher;
+
+	public WriteBehind(DataSourceSupport source, int batchSize,
+			long maxDelay, int capacity) {
+		this.source = source;
+		this.batchSize = batchSize;
+		this.maxDelay = maxDelay;
+		this.capacity = capacity;
+		this.pending = new LinkedHashMap<Ref, Pending>();
+		this.failure = null;
+		this.closed = false;
+		this.writing = new ReentrantLock();
+		this.flusher = new Thread(this, "jeople-write-behind");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Throws (once) the failure of a previous background write.
+	 */
+	private void check() {
+		if (this.failure != null) {
+			Throwable f = this.failure;
+			this.failure = null;
+			throw new InternalError("Write-behind failed", f);
+		}
+	}
+
+	/**
+	 * Queues a save (with the entity data) or a delete, waiting while the
+	 * queue is full.
+	 *
+	 * @return false if the queue is closed, the write then has to be done
+	 *         directly
+	 */
+	public boolean queue(Entity entity, boolean delete, Row data) {
+		Ref ref = new Ref(entity);
+		synchronized (this.pending) {
+			this.check();
+			Pending p = this.pending.get(ref);
+			while (p == null && !this.closed
+					&& this.pending.size() >= this.capacity) {
+				try {
+					this.pending.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InternalError("Interrupted while queuing", e);
+				}
+				p = this.pending.get(ref);
+			}
+			if (this.closed)
+				return false;
+			if (p == null) {
+				p = new Pending(entity, System.nanoTime());
+				this.pending.put(ref, p);
+			}
+			if (delete) {
+				p.delete = true;
+				p.data = null;
+			} else
+				p.data = data;
+			// the background thread waits without a timeout while the queue
+			// is empty, and for the oldest write to be due otherwise
+			if (this.pending.size() == 1
+					|| this.pending.size() >= this.batchSize)
+				this.pending.notifyAll();
+			return true;
+		}
+	}
+
+	/**
+	 * Removes (at most) the given number of pending writes, oldest first.
+	 * Called with the queue locked.
+	 */
+	private List<Pending> take(int count) {
+		List<Pending> batch = new ArrayList<Pending>(Math.min(count,
+				this.pending.size()));
+		Iterator<Pending> it = this.pending.values().iterator();
+		while (batch.size() < count && it.hasNext()) {
+			batch.add(it.next());
+			it.remove();
+		}
+		this.pending.notifyAll();
+		return batch;
+	}
+
+	/**
+	 * Writes a batch, keeping the failure if it fails (the batch is then
+	 * dropped). Called with the writing lock held.
+	 */
+	private void write(List<Pending> batch) {
+		if (batch.isEmpty())
+			return;
+		try {
+			this.source.write(batch);
+		} catch (RuntimeException | Error e) {
+			synchronized (this.pending) {
+				if (this.failure == null)
+					this.failure = e;
+				else
+					this.failure.addSuppressed(e);
+			}
+		}
+	}
+
+	/**
+	 * Writes all the pending writes (including those being written by the
+	 * background thread) before returning.
+	 */
+	public void flush() {
+		this.writing.lock();
+		try {
+			List<Pending> batch;
+			synchronized (this.pending) {
+				batch = this.take(Integer.MAX_VALUE);
+			}
+			this.write(batch);
+			synchronized (this.pending) {
+				this.check();
+			}
+		} finally {
+			this.writing.unlock();
+		}
+	}
+
+	/**
+	 * Flushes the pending writes, and stops the background thread: writes
+	 * aren't queued anymore. Writes queued while flushing are flushed as
+	 * well, the queue only refuses writes once it is empty, so that a write
+	 * done directly is never overwritten by an older pending one.
+	 */
+	public void close() {
+		this.writing.lock();
+		try {
+			while (true) {
+				List<Pending> batch;
+				synchronized (this.pending) {
+					if (this.pending.isEmpty()) {
+						this.closed = true;
+						this.pending.notifyAll();
+						this.check();
+						return;
+					}
+					batch = this.take(Integer.MAX_VALUE);
+				}
+				this.write(batch);
+			}
+		} finally {
+			this.writing.unlock();
+		}
+	}
+
+	/**
+	 * Whether the oldest pending write is due. Called with the queue
+	 * locked.
+	 *
+	 * @return the time to wait (in milliseconds) before it is, 0 if it is
+	 *         due, or -1 if there is no pending write
+	 */
+	private long due() {
+		if (this.pending.isEmpty())
+			return -1;
+		if (this.pending.size() >= this.batchSize)
+			return 0;
+		long age = (System.nanoTime() - this.pending.values().iterator()
+				.next().queued) / 1000000L;
+		return Math.max(0, this.maxDelay - age);
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				synchronized (this.pending) {
+					long wait;
+					while (!this.closed && (wait = this.due()) != 0)
+						this.pending.wait(wait < 0 ? 0 : wait);
+					if (this.closed)
+						return;
+				}
+				this.writing.lock();
+				try {
+					List<Pending> batch;
+					synchronized (this.pending) {
+						batch = this.take(this.batchSize);
+					}
+					this.write(batch);
+				} finally {
+					this.writing.unlock();
+				}
+			}
+		} catch (InterruptedException e) {
+			// stopped
+		}
+	}
+}